@@ -12,29 +12,44 @@ import org.apache.commons.logging.LogFactory;
 import com.amazonaws.services.kinesis.connectors.interfaces.ITransformer;
 import com.amazonaws.services.kinesis.model.Record;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 /**
  * This class implements the ITransformer interface and provides an implementation of the toClass()
  * method for deserializing and serializing JSON strings. The constructor takes the class to
  * transform to/from JSON. The Record parameter of the toClass() method is expected to contain a
  * byte representation of a JSON string.
+ * <p>
+ * The reader for the input class and the writer are created once from a shared ObjectMapper. They are
+ * immutable and thread-safe, so records are transformed without building a new mapper or warming up
+ * its serializer caches each time.
  * 
  * @param <T>
  */
 public abstract class BasicJsonTransformer<T, U> implements ITransformer<T, U> {
     private static final Log LOG = LogFactory.getLog(BasicJsonTransformer.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
     protected Class<T> inputClass;
+    protected final ObjectReader reader;
+    protected final ObjectWriter writer;
 
     public BasicJsonTransformer(Class<T> inputClass) {
         this.inputClass = inputClass;
+        this.reader = MAPPER.readerFor(inputClass);
+        // Serialize with the runtime type, so the fields of subclasses of the input class are kept
+        this.writer = MAPPER.writer();
     }
 
     @Override
     public T toClass(Record record) throws IOException {
         try {
-            return new ObjectMapper().readValue(record.getData().array(), this.inputClass);
+            if (RecordData.hasArray(record)) {
+                return reader.readValue(RecordData.array(record), RecordData.offset(record), RecordData.size(record));
+            }
+            return reader.readValue(RecordData.asInputStream(record));
         } catch (IOException e) {
-            String message = "Error parsing record from JSON: " + new String(record.getData().array());
+            String message = "Error parsing record from JSON: " + RecordData.asString(record);
             LOG.error(message, e);
             throw new IOException(message, e);
         }
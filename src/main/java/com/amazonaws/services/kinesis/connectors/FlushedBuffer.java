@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.connectors.interfaces.IBuffer;
+
+/**
+ * This class is a point-in-time copy of an IBuffer taken when the buffer is flushed. It keeps the
+ * limits and the first and last sequence numbers of the source buffer along with the flushed
+ * records, so the batch can be emitted after the source buffer has been cleared and refilled.
+ * Calling consumeRecord() or clear() will cause an UnsupportedOperationException to be thrown.
+ *
+ * @param <T>
+ */
+public class FlushedBuffer<T> implements IBuffer<T> {
+
+    private final long bytesToBuffer;
+    private final long numRecordsToBuffer;
+    private final long millisecondsToBuffer;
+    private final String firstSequenceNumber;
+    private final String lastSequenceNumber;
+    private final List<T> records;
+
+    public FlushedBuffer(IBuffer<?> buf, List<T> records) {
+        this(buf, buf.getFirstSequenceNumber(), buf.getLastSequenceNumber(), records);
+    }
+
+    public FlushedBuffer(IBuffer<?> buf, String firstSequenceNumber, String lastSequenceNumber, List<T> records) {
+        this.bytesToBuffer = buf.getBytesToBuffer();
+        this.numRecordsToBuffer = buf.getNumRecordsToBuffer();
+        this.millisecondsToBuffer = buf.getMillisecondsToBuffer();
+        this.firstSequenceNumber = firstSequenceNumber;
+        this.lastSequenceNumber = lastSequenceNumber;
+        this.records = records;
+    }
+
+    @Override
+    public long getBytesToBuffer() {
+        return bytesToBuffer;
+    }
+
+    @Override
+    public long getNumRecordsToBuffer() {
+        return numRecordsToBuffer;
+    }
+
+    @Override
+    public long getMillisecondsToBuffer() {
+        return millisecondsToBuffer;
+    }
+
+    /**
+     * A flushed buffer is always ready to be sent to the emitter.
+     *
+     * @return true
+     */
+    @Override
+    public boolean shouldFlush() {
+        return true;
+    }
+
+    @Override
+    public void consumeRecord(T record, int recordBytes, String sequenceNumber) {
+        throw new UnsupportedOperationException("This is a flushed buffer");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("This is a flushed buffer");
+    }
+
+    @Override
+    public String getFirstSequenceNumber() {
+        return firstSequenceNumber;
+    }
+
+    @Override
+    public String getLastSequenceNumber() {
+        return lastSequenceNumber;
+    }
+
+    @Override
+    public List<T> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+}
@@ -12,6 +12,8 @@ import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
+import com.amazonaws.services.kinesis.connectors.s3.ParquetFileEncoder;
+import com.amazonaws.services.kinesis.connectors.s3.S3Compression;
 
 /**
  * This class contains constants used to configure AWS Services in Amazon Kinesis Connectors. The user
@@ -54,6 +56,13 @@ public class KinesisConnectorConfiguration {
     public static final String PROP_BATCH_RECORDS_IN_PUT_REQUEST = "batchRecordsInPutRequest";
     public static final String PROP_S3_ENDPOINT = "s3Endpoint";
     public static final String PROP_S3_BUCKET = "s3Bucket";
+    public static final String PROP_S3_COMPRESSION = "s3Compression";
+    public static final String PROP_S3_COMPRESSION_BLOCK_SIZE = "s3CompressionBlockSize";
+    public static final String PROP_S3_MAX_PARTITIONS = "s3MaxPartitions";
+    public static final String PROP_S3_MULTIPART_UPLOAD_THRESHOLD = "s3MultipartUploadThreshold";
+    public static final String PROP_S3_MULTIPART_PART_SIZE = "s3MultipartPartSize";
+    public static final String PROP_S3_MULTIPART_UPLOAD_THREADS = "s3MultipartUploadThreads";
+    public static final String PROP_S3_MANIFEST_SLICES = "s3ManifestSlices";
     public static final String PROP_REDSHIFT_ENDPOINT = "redshiftEndpoint";
     public static final String PROP_REDSHIFT_USERNAME = "redshiftUsername";
     public static final String PROP_REDSHIFT_PASSWORD = "redshiftPassword";
@@ -63,11 +72,30 @@ public class KinesisConnectorConfiguration {
     public static final String PROP_REDSHIFT_FILE_KEY_COLUMN = "redshiftFileKeyColumn";
     public static final String PROP_REDSHIFT_DATA_DELIMITER = "redshiftDataDelimiter";
     public static final String PROP_REDSHIFT_COPY_MANDATORY = "redshiftCopyMandatory";
+    public static final String PROP_REDSHIFT_COPY_FORMAT = "redshiftCopyFormat";
+    public static final String PROP_REDSHIFT_COPY_COLUMN_TYPES = "redshiftCopyColumnTypes";
+    public static final String PROP_REDSHIFT_COPY_COALESCE_WINDOW = "redshiftCopyCoalesceWindow";
+    public static final String PROP_REDSHIFT_MAX_CONNECTIONS = "redshiftMaxConnections";
+    public static final String PROP_REDSHIFT_CONNECTION_IDLE_TIMEOUT = "redshiftConnectionIdleTimeout";
+    public static final String PROP_REDSHIFT_FILE_CACHE_RETENTION = "redshiftFileCacheRetention";
+    public static final String PROP_REDSHIFT_UPSERT_KEY_COLUMNS = "redshiftUpsertKeyColumns";
+    public static final String PROP_REDSHIFT_UPSERT_ORDER_COLUMN = "redshiftUpsertOrderColumn";
     public static final String PROP_BUFFER_RECORD_COUNT_LIMIT = "bufferRecordCountLimit";
     public static final String PROP_BUFFER_BYTE_SIZE_LIMIT = "bufferByteSizeLimit";
     public static final String PROP_BUFFER_MILLISECONDS_LIMIT = "bufferMillisecondsLimit";
+    public static final String PROP_BUFFER_TIMER_FLUSH = "bufferTimerFlush";
+    public static final String PROP_WORKER_BUFFER_BYTE_SIZE_LIMIT = "workerBufferByteSizeLimit";
+    public static final String PROP_BUFFER_SPILL_DIRECTORY = "bufferSpillDirectory";
+    public static final String PROP_BUFFER_SPILL_THRESHOLD = "bufferSpillThreshold";
+    public static final String PROP_ASYNC_EMIT = "asyncEmit";
+    public static final String PROP_ASYNC_EMIT_MAX_IN_FLIGHT = "asyncEmitMaxInFlight";
     public static final String PROP_DYNAMODB_ENDPOINT = "dynamoDBEndpoint";
     public static final String PROP_DYNAMODB_DATA_TABLE_NAME = "dynamoDBDataTableName";
+    public static final String PROP_DYNAMODB_BATCH_WRITE_THREADS = "dynamoDBBatchWriteThreads";
+    public static final String PROP_DYNAMODB_MAX_IN_FLIGHT_BATCHES = "dynamoDBMaxInFlightBatches";
+    public static final String PROP_DYNAMODB_RETRY_TIME_BUDGET = "dynamoDBRetryTimeBudget";
+    public static final String PROP_DYNAMODB_WRITE_CAPACITY = "dynamoDBWriteCapacity";
+    public static final String PROP_DYNAMODB_COALESCE_BY_KEY = "dynamoDBCoalesceByKey";
     public static final String PROP_CLOUDWATCH_NAMESPACE = "cloudWatchNamespace";
     public static final String PROP_CLOUDWATCH_BUFFER_TIME = "cloudWatchBufferTime";
     public static final String PROP_CLOUDWATCH_MAX_QUEUE_SIZE = "cloudWatchMaxQueueSize";
@@ -102,6 +130,12 @@ public class KinesisConnectorConfiguration {
     public static final long DEFAULT_BUFFER_BYTE_SIZE_LIMIT = 1024 * 1024L;
     public static final long DEFAULT_BUFFER_MILLISECONDS_LIMIT = Long.MAX_VALUE;
     public static final boolean DEFAULT_BATCH_RECORDS_IN_PUT_REQUEST = false;
+    public static final boolean DEFAULT_BUFFER_TIMER_FLUSH = false;
+    public static final long DEFAULT_WORKER_BUFFER_BYTE_SIZE_LIMIT = Long.MAX_VALUE;
+    public static final String DEFAULT_BUFFER_SPILL_DIRECTORY = System.getProperty("java.io.tmpdir");
+    public static final long DEFAULT_BUFFER_SPILL_THRESHOLD = 8 * 1024 * 1024L;
+    public static final boolean DEFAULT_ASYNC_EMIT = false;
+    public static final int DEFAULT_ASYNC_EMIT_MAX_IN_FLIGHT = 2;
 
     // Default Amazon Kinesis Constants
     public static final String DEFAULT_KINESIS_ENDPOINT = null;
@@ -118,7 +152,8 @@ public class KinesisConnectorConfiguration {
     public static final long DEFAULT_IDLE_TIME_BETWEEN_READS = 1000L;
     public static final long DEFAULT_PARENT_SHARD_POLL_INTERVAL = 10000L;
     public static final long DEFAULT_SHARD_SYNC_INTERVAL = 60000L;
-    // CALL_PROCESS_RECORDS_EVEN_FOR_EMPTY_LIST must be set to true for bufferMillisecondsLimit to work
+    // CALL_PROCESS_RECORDS_EVEN_FOR_EMPTY_LIST must be set to true for bufferMillisecondsLimit to work, unless
+    // bufferTimerFlush is enabled
     public static final boolean DEFAULT_CALL_PROCESS_RECORDS_EVEN_FOR_EMPTY_LIST = true;
     public static final boolean DEFAULT_CLEANUP_TERMINATED_SHARDS_BEFORE_EXPIRY = false;
     public static final String DEFAULT_REGION_NAME = "us-east-1";
@@ -126,6 +161,16 @@ public class KinesisConnectorConfiguration {
     // Default Amazon S3 Constants
     public static final String DEFAULT_S3_ENDPOINT = "https://s3.amazonaws.com";
     public static final String DEFAULT_S3_BUCKET = "kinesis-bucket";
+    public static final S3Compression DEFAULT_S3_COMPRESSION = S3Compression.NONE;
+    public static final long DEFAULT_S3_COMPRESSION_BLOCK_SIZE = 4 * 1024 * 1024L;
+    public static final int DEFAULT_S3_MAX_PARTITIONS = 100;
+    // Multipart uploads are disabled by default
+    public static final long DEFAULT_S3_MULTIPART_UPLOAD_THRESHOLD = Long.MAX_VALUE;
+    public static final long DEFAULT_S3_MULTIPART_PART_SIZE = 16 * 1024 * 1024L;
+    public static final int DEFAULT_S3_MULTIPART_UPLOAD_THREADS = 8;
+    // S3ManifestEmitters write one file per flush by default; a negative value reads the slice count of the
+    // Amazon Redshift cluster at redshiftURL
+    public static final int DEFAULT_S3_MANIFEST_SLICES = 0;
 
     // Default Amazon Redshift Constants
     public static final String DEFAULT_REDSHIFT_ENDPOINT = "https://redshift.us-east-1.amazonaws.com";
@@ -137,10 +182,30 @@ public class KinesisConnectorConfiguration {
     public static final String DEFAULT_REDSHIFT_FILE_KEY_COLUMN = "file";
     public static final Character DEFAULT_REDSHIFT_DATA_DELIMITER = '|';
     public static final boolean DEFAULT_REDSHIFT_COPY_MANDATORY = true;
+    // Delimited text by default
+    public static final String DEFAULT_REDSHIFT_COPY_FORMAT = null;
+    // Comma separated column types of the Parquet files written when redshiftCopyFormat is PARQUET
+    public static final String DEFAULT_REDSHIFT_COPY_COLUMN_TYPES = null;
+    // Each RedshiftBasicEmitter copies its own files by default
+    public static final long DEFAULT_REDSHIFT_COPY_COALESCE_WINDOW = 0L;
+    public static final int DEFAULT_REDSHIFT_MAX_CONNECTIONS = 10;
+    public static final long DEFAULT_REDSHIFT_CONNECTION_IDLE_TIMEOUT = 5 * 60 * 1000L;
+    // RedshiftManifestEmitters query the files table for every emit by default
+    public static final long DEFAULT_REDSHIFT_FILE_CACHE_RETENTION = 0L;
+    // Comma separated key columns of the data table; files are appended to the data table by default
+    public static final String DEFAULT_REDSHIFT_UPSERT_KEY_COLUMNS = null;
+    // Column whose highest value wins among rows with the same key in one load, required with upsert key columns
+    public static final String DEFAULT_REDSHIFT_UPSERT_ORDER_COLUMN = null;
 
     // Default Amazon DynamoDB Constants
     public static final String DEFAULT_DYNAMODB_ENDPOINT = "dynamodb.us-east-1.amazonaws.com";
     public static final String DEFAULT_DYNAMODB_DATA_TABLE_NAME = "dynamodb_emitter_test";
+    public static final int DEFAULT_DYNAMODB_BATCH_WRITE_THREADS = 16;
+    public static final int DEFAULT_DYNAMODB_MAX_IN_FLIGHT_BATCHES = 4;
+    public static final long DEFAULT_DYNAMODB_RETRY_TIME_BUDGET = 5000L;
+    // Initial write capacity units per second of the write limiter; DynamoDBEmitters write unpaced by default
+    public static final long DEFAULT_DYNAMODB_WRITE_CAPACITY = 0L;
+    public static final boolean DEFAULT_DYNAMODB_COALESCE_BY_KEY = false;
 
     // Default Amazon CloudWatch Constants
     public static final String DEFAULT_CLOUDWATCH_NAMESPACE = DEFAULT_APP_NAME;
@@ -177,6 +242,12 @@ public class KinesisConnectorConfiguration {
     public final long BUFFER_BYTE_SIZE_LIMIT;
     public final long BUFFER_MILLISECONDS_LIMIT;
     public final boolean BATCH_RECORDS_IN_PUT_REQUEST;
+    public final boolean BUFFER_TIMER_FLUSH;
+    public final long WORKER_BUFFER_BYTE_SIZE_LIMIT;
+    public final String BUFFER_SPILL_DIRECTORY;
+    public final long BUFFER_SPILL_THRESHOLD;
+    public final boolean ASYNC_EMIT;
+    public final int ASYNC_EMIT_MAX_IN_FLIGHT;
 
     public final String KINESIS_ENDPOINT;
     public final String KINESIS_INPUT_STREAM;
@@ -196,6 +267,13 @@ public class KinesisConnectorConfiguration {
     public final String REGION_NAME;
     public final String S3_ENDPOINT;
     public final String S3_BUCKET;
+    public final S3Compression S3_COMPRESSION;
+    public final long S3_COMPRESSION_BLOCK_SIZE;
+    public final int S3_MAX_PARTITIONS;
+    public final long S3_MULTIPART_UPLOAD_THRESHOLD;
+    public final long S3_MULTIPART_PART_SIZE;
+    public final int S3_MULTIPART_UPLOAD_THREADS;
+    public final int S3_MANIFEST_SLICES;
     public final String REDSHIFT_ENDPOINT;
     public final String REDSHIFT_USERNAME;
     public final String REDSHIFT_PASSWORD;
@@ -205,8 +283,21 @@ public class KinesisConnectorConfiguration {
     public final String REDSHIFT_FILE_KEY_COLUMN;
     public final Character REDSHIFT_DATA_DELIMITER;
     public final boolean REDSHIFT_COPY_MANDATORY;
+    public final String REDSHIFT_COPY_FORMAT;
+    public final String REDSHIFT_COPY_COLUMN_TYPES;
+    public final long REDSHIFT_COPY_COALESCE_WINDOW;
+    public final int REDSHIFT_MAX_CONNECTIONS;
+    public final long REDSHIFT_CONNECTION_IDLE_TIMEOUT;
+    public final long REDSHIFT_FILE_CACHE_RETENTION;
+    public final String REDSHIFT_UPSERT_KEY_COLUMNS;
+    public final String REDSHIFT_UPSERT_ORDER_COLUMN;
     public final String DYNAMODB_ENDPOINT;
     public final String DYNAMODB_DATA_TABLE_NAME;
+    public final int DYNAMODB_BATCH_WRITE_THREADS;
+    public final int DYNAMODB_MAX_IN_FLIGHT_BATCHES;
+    public final long DYNAMODB_RETRY_TIME_BUDGET;
+    public final long DYNAMODB_WRITE_CAPACITY;
+    public final boolean DYNAMODB_COALESCE_BY_KEY;
     public final String CLOUDWATCH_NAMESPACE;
     public final long CLOUDWATCH_BUFFER_TIME;
     public final int CLOUDWATCH_MAX_QUEUE_SIZE;
@@ -252,6 +343,15 @@ public class KinesisConnectorConfiguration {
                 getLongProperty(PROP_BUFFER_MILLISECONDS_LIMIT, DEFAULT_BUFFER_MILLISECONDS_LIMIT, properties);
         BATCH_RECORDS_IN_PUT_REQUEST =
                 getBooleanProperty(PROP_BATCH_RECORDS_IN_PUT_REQUEST, DEFAULT_BATCH_RECORDS_IN_PUT_REQUEST, properties);
+        BUFFER_TIMER_FLUSH = getBooleanProperty(PROP_BUFFER_TIMER_FLUSH, DEFAULT_BUFFER_TIMER_FLUSH, properties);
+        WORKER_BUFFER_BYTE_SIZE_LIMIT =
+                getLongProperty(PROP_WORKER_BUFFER_BYTE_SIZE_LIMIT, DEFAULT_WORKER_BUFFER_BYTE_SIZE_LIMIT, properties);
+        BUFFER_SPILL_DIRECTORY = properties.getProperty(PROP_BUFFER_SPILL_DIRECTORY, DEFAULT_BUFFER_SPILL_DIRECTORY);
+        BUFFER_SPILL_THRESHOLD =
+                getLongProperty(PROP_BUFFER_SPILL_THRESHOLD, DEFAULT_BUFFER_SPILL_THRESHOLD, properties);
+        ASYNC_EMIT = getBooleanProperty(PROP_ASYNC_EMIT, DEFAULT_ASYNC_EMIT, properties);
+        ASYNC_EMIT_MAX_IN_FLIGHT =
+                getIntegerProperty(PROP_ASYNC_EMIT_MAX_IN_FLIGHT, DEFAULT_ASYNC_EMIT_MAX_IN_FLIGHT, properties);
 
         // Amazon Kinesis configuration
         KINESIS_ENDPOINT = properties.getProperty(PROP_KINESIS_ENDPOINT, DEFAULT_KINESIS_ENDPOINT);
@@ -269,6 +369,16 @@ public class KinesisConnectorConfiguration {
         // Amazon S3 configuration
         S3_ENDPOINT = properties.getProperty(PROP_S3_ENDPOINT, DEFAULT_S3_ENDPOINT);
         S3_BUCKET = properties.getProperty(PROP_S3_BUCKET, DEFAULT_S3_BUCKET);
+        S3_COMPRESSION = getS3CompressionProperty(PROP_S3_COMPRESSION, DEFAULT_S3_COMPRESSION, properties);
+        S3_COMPRESSION_BLOCK_SIZE =
+                getLongProperty(PROP_S3_COMPRESSION_BLOCK_SIZE, DEFAULT_S3_COMPRESSION_BLOCK_SIZE, properties);
+        S3_MAX_PARTITIONS = getIntegerProperty(PROP_S3_MAX_PARTITIONS, DEFAULT_S3_MAX_PARTITIONS, properties);
+        S3_MULTIPART_UPLOAD_THRESHOLD =
+                getLongProperty(PROP_S3_MULTIPART_UPLOAD_THRESHOLD, DEFAULT_S3_MULTIPART_UPLOAD_THRESHOLD, properties);
+        S3_MULTIPART_PART_SIZE = getLongProperty(PROP_S3_MULTIPART_PART_SIZE, DEFAULT_S3_MULTIPART_PART_SIZE, properties);
+        S3_MULTIPART_UPLOAD_THREADS =
+                getIntegerProperty(PROP_S3_MULTIPART_UPLOAD_THREADS, DEFAULT_S3_MULTIPART_UPLOAD_THREADS, properties);
+        S3_MANIFEST_SLICES = getIntegerProperty(PROP_S3_MANIFEST_SLICES, DEFAULT_S3_MANIFEST_SLICES, properties);
 
         // Amazon Redshift configuration
         REDSHIFT_ENDPOINT = properties.getProperty(PROP_REDSHIFT_ENDPOINT, DEFAULT_REDSHIFT_ENDPOINT);
@@ -283,11 +393,42 @@ public class KinesisConnectorConfiguration {
                 getCharacterProperty(PROP_REDSHIFT_DATA_DELIMITER, DEFAULT_REDSHIFT_DATA_DELIMITER, properties);
         REDSHIFT_COPY_MANDATORY =
                 getBooleanProperty(PROP_REDSHIFT_COPY_MANDATORY, DEFAULT_REDSHIFT_COPY_MANDATORY, properties);
+        REDSHIFT_COPY_COLUMN_TYPES =
+                properties.getProperty(PROP_REDSHIFT_COPY_COLUMN_TYPES, DEFAULT_REDSHIFT_COPY_COLUMN_TYPES);
+        REDSHIFT_COPY_FORMAT =
+                getRedshiftCopyFormatProperty(PROP_REDSHIFT_COPY_FORMAT,
+                        DEFAULT_REDSHIFT_COPY_FORMAT,
+                        REDSHIFT_COPY_COLUMN_TYPES,
+                        properties);
+        REDSHIFT_COPY_COALESCE_WINDOW =
+                getLongProperty(PROP_REDSHIFT_COPY_COALESCE_WINDOW, DEFAULT_REDSHIFT_COPY_COALESCE_WINDOW, properties);
+        REDSHIFT_MAX_CONNECTIONS =
+                getIntegerProperty(PROP_REDSHIFT_MAX_CONNECTIONS, DEFAULT_REDSHIFT_MAX_CONNECTIONS, properties);
+        REDSHIFT_CONNECTION_IDLE_TIMEOUT =
+                getLongProperty(PROP_REDSHIFT_CONNECTION_IDLE_TIMEOUT, DEFAULT_REDSHIFT_CONNECTION_IDLE_TIMEOUT, properties);
+        REDSHIFT_FILE_CACHE_RETENTION =
+                getLongProperty(PROP_REDSHIFT_FILE_CACHE_RETENTION, DEFAULT_REDSHIFT_FILE_CACHE_RETENTION, properties);
+        REDSHIFT_UPSERT_KEY_COLUMNS =
+                properties.getProperty(PROP_REDSHIFT_UPSERT_KEY_COLUMNS, DEFAULT_REDSHIFT_UPSERT_KEY_COLUMNS);
+        REDSHIFT_UPSERT_ORDER_COLUMN =
+                properties.getProperty(PROP_REDSHIFT_UPSERT_ORDER_COLUMN, DEFAULT_REDSHIFT_UPSERT_ORDER_COLUMN);
 
         // Amazon DynamoDB configuration
         DYNAMODB_ENDPOINT = properties.getProperty(PROP_DYNAMODB_ENDPOINT, DEFAULT_DYNAMODB_ENDPOINT);
         DYNAMODB_DATA_TABLE_NAME =
                 properties.getProperty(PROP_DYNAMODB_DATA_TABLE_NAME, DEFAULT_DYNAMODB_DATA_TABLE_NAME);
+        DYNAMODB_BATCH_WRITE_THREADS =
+                getIntegerProperty(PROP_DYNAMODB_BATCH_WRITE_THREADS, DEFAULT_DYNAMODB_BATCH_WRITE_THREADS, properties);
+        DYNAMODB_MAX_IN_FLIGHT_BATCHES =
+                getIntegerProperty(PROP_DYNAMODB_MAX_IN_FLIGHT_BATCHES,
+                        DEFAULT_DYNAMODB_MAX_IN_FLIGHT_BATCHES,
+                        properties);
+        DYNAMODB_RETRY_TIME_BUDGET =
+                getLongProperty(PROP_DYNAMODB_RETRY_TIME_BUDGET, DEFAULT_DYNAMODB_RETRY_TIME_BUDGET, properties);
+        DYNAMODB_WRITE_CAPACITY =
+                getLongProperty(PROP_DYNAMODB_WRITE_CAPACITY, DEFAULT_DYNAMODB_WRITE_CAPACITY, properties);
+        DYNAMODB_COALESCE_BY_KEY =
+                getBooleanProperty(PROP_DYNAMODB_COALESCE_BY_KEY, DEFAULT_DYNAMODB_COALESCE_BY_KEY, properties);
 
         // Amazon CloudWatch configuration
         CLOUDWATCH_NAMESPACE = properties.getProperty(PROP_CLOUDWATCH_NAMESPACE, DEFAULT_CLOUDWATCH_NAMESPACE);
@@ -408,4 +549,47 @@ public class KinesisConnectorConfiguration {
             return defaultInitialPositionInInputStream;
         }
     }
+
+    private S3Compression getS3CompressionProperty(String property,
+            S3Compression defaultCompression,
+            Properties properties) {
+        String propertyValue = properties.getProperty(property, defaultCompression.toString());
+        try {
+            return S3Compression.valueOf(propertyValue.trim().toUpperCase());
+        } catch (Exception e) {
+            LOG.error(e);
+            return defaultCompression;
+        }
+    }
+
+    /**
+     * Columnar files must be written by an encoder of the emitters, and Parquet files can only be written for valid
+     * column types. A format that cannot be written is rejected rather than replaced with delimited text, which
+     * the Amazon Redshift COPY would then load with the wrong format.
+     *
+     * @throws IllegalArgumentException
+     *         if the files of the format cannot be written
+     */
+    private String getRedshiftCopyFormatProperty(String property,
+            String defaultFormat,
+            String columnTypes,
+            Properties properties) {
+        String propertyValue = properties.getProperty(property, defaultFormat);
+        if (propertyValue == null) {
+            return defaultFormat;
+        }
+        if (propertyValue.trim().equalsIgnoreCase("ORC")) {
+            throw new IllegalArgumentException("ORC files cannot be written to Amazon S3. Use PARQUET as " + property
+                    + " instead.");
+        }
+        if (ParquetFileEncoder.isParquet(propertyValue)) {
+            try {
+                ParquetFileEncoder.parseColumnTypes(columnTypes);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid " + PROP_REDSHIFT_COPY_COLUMN_TYPES + " for "
+                        + property + " " + propertyValue + ": " + e.getMessage(), e);
+            }
+        }
+        return propertyValue;
+    }
 }
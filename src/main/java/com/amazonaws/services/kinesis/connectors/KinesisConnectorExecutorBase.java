@@ -17,6 +17,8 @@ public abstract class KinesisConnectorExecutorBase<T, U> implements Runnable {
 
     // Amazon Kinesis Client Library worker to process records
     protected Worker worker;
+    // Factory of the worker's record processors, shut down when the worker stops
+    private KinesisConnectorRecordProcessorFactory<T, U> recordProcessorFactory;
 
     /**
      * Initialize the Amazon Kinesis Client Library configuration and worker
@@ -44,7 +46,9 @@ public abstract class KinesisConnectorExecutorBase<T, U> implements Runnable {
                         .withMaxRecords(kinesisConnectorConfiguration.MAX_RECORDS)
                         .withInitialPositionInStream(kinesisConnectorConfiguration.INITIAL_POSITION_IN_STREAM)
                         .withIdleTimeBetweenReadsInMillis(kinesisConnectorConfiguration.IDLE_TIME_BETWEEN_READS)
-                        .withCallProcessRecordsEvenForEmptyRecordList(KinesisConnectorConfiguration.DEFAULT_CALL_PROCESS_RECORDS_EVEN_FOR_EMPTY_LIST)
+                        .withCallProcessRecordsEvenForEmptyRecordList(kinesisConnectorConfiguration.BUFFER_TIMER_FLUSH
+                                ? kinesisConnectorConfiguration.CALL_PROCESS_RECORDS_EVEN_FOR_EMPTY_LIST
+                                : KinesisConnectorConfiguration.DEFAULT_CALL_PROCESS_RECORDS_EVEN_FOR_EMPTY_LIST)
                         .withCleanupLeasesUponShardCompletion(kinesisConnectorConfiguration.CLEANUP_TERMINATED_SHARDS_BEFORE_EXPIRY)
                         .withParentShardPollIntervalMillis(kinesisConnectorConfiguration.PARENT_SHARD_POLL_INTERVAL)
                         .withShardSyncIntervalMillis(kinesisConnectorConfiguration.SHARD_SYNC_INTERVAL)
@@ -56,22 +60,25 @@ public abstract class KinesisConnectorExecutorBase<T, U> implements Runnable {
                                 + KinesisConnectorConfiguration.KINESIS_CONNECTOR_USER_AGENT)
                         .withRegionName(kinesisConnectorConfiguration.REGION_NAME);
 
-        if (!kinesisConnectorConfiguration.CALL_PROCESS_RECORDS_EVEN_FOR_EMPTY_LIST) {
-            LOG.warn("The false value of callProcessRecordsEvenForEmptyList will be ignored. It must be set to true for the bufferTimeMillisecondsLimit to work correctly.");
+        if (!kinesisConnectorConfiguration.CALL_PROCESS_RECORDS_EVEN_FOR_EMPTY_LIST
+                && !kinesisConnectorConfiguration.BUFFER_TIMER_FLUSH) {
+            LOG.warn("The false value of callProcessRecordsEvenForEmptyList will be ignored. It must be set to true for the bufferTimeMillisecondsLimit to work correctly unless bufferTimerFlush is enabled.");
         }
 
-        if (kinesisConnectorConfiguration.IDLE_TIME_BETWEEN_READS > kinesisConnectorConfiguration.BUFFER_MILLISECONDS_LIMIT) {
+        if (!kinesisConnectorConfiguration.BUFFER_TIMER_FLUSH
+                && kinesisConnectorConfiguration.IDLE_TIME_BETWEEN_READS > kinesisConnectorConfiguration.BUFFER_MILLISECONDS_LIMIT) {
             LOG.warn("idleTimeBetweenReads is greater than bufferTimeMillisecondsLimit. For best results, ensure that bufferTimeMillisecondsLimit is more than or equal to idleTimeBetweenReads ");
         }
 
+        recordProcessorFactory = getKinesisConnectorRecordProcessorFactory();
         // If a metrics factory was specified, use it.
         if (metricFactory != null) {
             worker =
-                    new Worker(getKinesisConnectorRecordProcessorFactory(),
+                    new Worker(recordProcessorFactory,
                             kinesisClientLibConfiguration,
                             metricFactory);
         } else {
-            worker = new Worker(getKinesisConnectorRecordProcessorFactory(), kinesisClientLibConfiguration);
+            worker = new Worker(recordProcessorFactory, kinesisClientLibConfiguration);
         }
         LOG.info(getClass().getSimpleName() + " worker created");
     }
@@ -88,6 +95,7 @@ public abstract class KinesisConnectorExecutorBase<T, U> implements Runnable {
                 throw t;
             } finally {
                 LOG.error("Worker " + getClass().getSimpleName() + " is not running.");
+                recordProcessorFactory.shutdown();
             }
         } else {
             throw new RuntimeException("Initialize must be called before run.");
@@ -4,10 +4,22 @@
  */
 package com.amazonaws.services.kinesis.connectors;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,6 +35,7 @@ import com.amazonaws.services.kinesis.connectors.interfaces.IBuffer;
 import com.amazonaws.services.kinesis.connectors.interfaces.ICollectionTransformer;
 import com.amazonaws.services.kinesis.connectors.interfaces.IEmitter;
 import com.amazonaws.services.kinesis.connectors.interfaces.IFilter;
+import com.amazonaws.services.kinesis.connectors.interfaces.ISwappableBuffer;
 import com.amazonaws.services.kinesis.connectors.interfaces.ITransformer;
 import com.amazonaws.services.kinesis.connectors.interfaces.ITransformerBase;
 import com.amazonaws.services.kinesis.model.Record;
@@ -45,8 +58,33 @@ import com.amazonaws.services.kinesis.model.Record;
  * Upon exceeding the retry limit or an exception being thrown, the IEmitter.fail() method will be called with the
  * unprocessed records.</li>
  * <li>When the shutdown() method of this class is invoked, a call is made to the IEmitter.shutdown() method which
- * should close any existing client connections.</li>
+ * should close any existing client connections. A buffer that implements Closeable is closed afterwards.</li>
  * </ol>
+ * <p>
+ * When asyncEmit is enabled in the KinesisConnectorConfiguration, a full buffer is copied into a FlushedBuffer and
+ * cleared, and the emit (including retries) runs on a dedicated emit thread while processRecords() keeps filling the
+ * buffer. At most asyncEmitMaxInFlight batches are pending at a time; processRecords() blocks on the oldest batch
+ * when that limit is reached. Batches are emitted in order, and the checkpoint only advances to the last sequence
+ * number of the highest contiguous completed batch. A batch that exceeds the retry limit is passed to IEmitter.fail()
+ * and is treated as completed, as in synchronous mode. A batch whose emit throws is passed to IEmitter.fail() as well
+ * and is kept: the record processor then falls back to synchronous emit, as if the batch had never left the buffer.
+ * The failed batches are emitted again on the processRecords() thread, in order, before any further batch is handed
+ * to the emit thread, and new records stay in the buffer until they succeed. The checkpoint does not advance past a
+ * failed batch until it has been emitted. On a TERMINATE shutdown the failed batches are emitted again before the end
+ * of the shard is checkpointed; if they still fail, shutdown() throws so the shard is not finished without them. If
+ * the buffer is an ISwappableBuffer, its records are swapped out instead of copied and ITransformerBase.fromClass()
+ * is called on the emit thread. A batch that cannot be emitted again because its transformation threw stops the
+ * checkpoint for the rest of the lease, and processRecords() throws instead of taking further records.
+ * <p>
+ * If a WorkerMemoryBudget is given, the size of every buffered record is charged to it until the batch has been
+ * emitted, and the buffer is flushed early whenever the budget requests it.
+ * <p>
+ * If a flush scheduler is given, the buffer is also flushed by a timer that fires IBuffer.getMillisecondsToBuffer()
+ * milliseconds after the first record was added to an empty buffer, so the time limit does not depend on
+ * processRecords() being called for empty record lists. The timer uses the checkpointer of the latest
+ * processRecords() call. If a flush executor is given, the timer only hands the flush to it, so a slow emit does not
+ * hold up the timers of other record processors sharing the scheduler. Timer flushes, processRecords() and
+ * shutdown() are synchronized on the record processor.
  *
  */
 public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
@@ -57,6 +95,28 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
     private final IBuffer<T> buffer;
     private final int retryLimit;
     private final long backoffInterval;
+    private final boolean asyncEmit;
+    private final int maxInFlightEmits;
+    private final ExecutorService emitExecutor;
+    // Pending asynchronous emits in flush order. Each completes with the last sequence number of its batch.
+    private final Deque<Future<String>> inFlightEmits = new ArrayDeque<Future<String>>();
+    // Batches whose asynchronous emit threw, in flush order, to be emitted again before any further batch
+    private final Deque<FlushedBuffer<U>> failedEmits = new ArrayDeque<FlushedBuffer<U>>();
+    // Set by the emit thread when an emit threw, so the batches queued behind it are handed back unemitted and stay
+    // in order. Cleared once the failed batches have been emitted again and no emits are pending.
+    private volatile boolean emitThreadFailed = false;
+    // Last sequence number of the latest collected asynchronous batch, whether it was emitted or failed
+    private String lastCollectedSequenceNumber;
+    // Set when an asynchronous batch was lost without a way to emit it again. The checkpoint does not advance after it.
+    private boolean asyncEmitLost = false;
+    private final WorkerMemoryBudget memoryBudget;
+    private WorkerMemoryBudget.Account memoryAccount;
+    private final ScheduledExecutorService flushScheduler;
+    private final ExecutorService flushExecutor;
+    private ScheduledFuture<?> flushTimer;
+    // Incremented whenever the flush timer is scheduled or cancelled, so a timer that already fired can tell it is stale
+    private long flushTimerGeneration;
+    private IRecordProcessorCheckpointer lastCheckpointer;
     private boolean isShutdown = false;
 
     private static final Log LOG = LogFactory.getLog(KinesisConnectorRecordProcessor.class);
@@ -68,6 +128,36 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
             IEmitter<U> emitter,
             ITransformerBase<T, U> transformer,
             KinesisConnectorConfiguration configuration) {
+        this(buffer, filter, emitter, transformer, configuration, null);
+    }
+
+    public KinesisConnectorRecordProcessor(IBuffer<T> buffer,
+            IFilter<T> filter,
+            IEmitter<U> emitter,
+            ITransformerBase<T, U> transformer,
+            KinesisConnectorConfiguration configuration,
+            WorkerMemoryBudget memoryBudget) {
+        this(buffer, filter, emitter, transformer, configuration, memoryBudget, null);
+    }
+
+    public KinesisConnectorRecordProcessor(IBuffer<T> buffer,
+            IFilter<T> filter,
+            IEmitter<U> emitter,
+            ITransformerBase<T, U> transformer,
+            KinesisConnectorConfiguration configuration,
+            WorkerMemoryBudget memoryBudget,
+            ScheduledExecutorService flushScheduler) {
+        this(buffer, filter, emitter, transformer, configuration, memoryBudget, flushScheduler, null);
+    }
+
+    public KinesisConnectorRecordProcessor(IBuffer<T> buffer,
+            IFilter<T> filter,
+            IEmitter<U> emitter,
+            ITransformerBase<T, U> transformer,
+            KinesisConnectorConfiguration configuration,
+            WorkerMemoryBudget memoryBudget,
+            ScheduledExecutorService flushScheduler,
+            ExecutorService flushExecutor) {
         if (buffer == null || filter == null || emitter == null || transformer == null) {
             throw new IllegalArgumentException("buffer, filter, emitter, and transformer must not be null");
         }
@@ -75,6 +165,9 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
         this.filter = filter;
         this.emitter = emitter;
         this.transformer = transformer;
+        this.memoryBudget = memoryBudget;
+        this.flushScheduler = flushScheduler;
+        this.flushExecutor = flushExecutor;
         // Limit must be greater than zero
         if (configuration.RETRY_LIMIT <= 0) {
             retryLimit = 1;
@@ -82,17 +175,32 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
             retryLimit = configuration.RETRY_LIMIT;
         }
         this.backoffInterval = configuration.BACKOFF_INTERVAL;
+        this.asyncEmit = configuration.ASYNC_EMIT;
+        // Limit must be greater than zero
+        if (configuration.ASYNC_EMIT_MAX_IN_FLIGHT <= 0) {
+            maxInFlightEmits = 1;
+        } else {
+            maxInFlightEmits = configuration.ASYNC_EMIT_MAX_IN_FLIGHT;
+        }
+        if (asyncEmit) {
+            emitExecutor = Executors.newSingleThreadExecutor();
+        } else {
+            emitExecutor = null;
+        }
     }
 
     @Override
     public void initialize(String shardId) {
         this.shardId = shardId;
+        if (memoryBudget != null) {
+            memoryAccount = memoryBudget.register(shardId);
+        }
     }
 
     @Override
-    public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
+    public synchronized void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
         // Note: This method will be called even for empty record lists. This is needed for checking the buffer time
-        // threshold.
+        // threshold, unless a flush scheduler is used.
         if (isShutdown) {
             LOG.warn("processRecords called on shutdown record processor for shardId: " + shardId);
             return;
@@ -100,6 +208,15 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
         if (shardId == null) {
             throw new IllegalStateException("Record processor not initialized");
         }
+        if (asyncEmitLost) {
+            throw new IllegalStateException("Not processing records for shardId: " + shardId
+                    + " after an asynchronous batch was lost. The shard is processed again from the last checkpoint.");
+        }
+        lastCheckpointer = checkpointer;
+        if (asyncEmit && !failedEmits.isEmpty()) {
+            // Emit synchronously until the failed batches succeed
+            emitFailedBatches(checkpointer);
+        }
 
         // Transform each Amazon Kinesis Record and add the result to the buffer
         for (Record record : records) {
@@ -121,15 +238,106 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
             }
         }
 
-        if (buffer.shouldFlush()) {
+        if (buffer.shouldFlush() || isEarlyFlushRequested()) {
+            flush(checkpointer);
+        }
+        if (asyncEmit) {
+            completeEmits(checkpointer, maxInFlightEmits);
+        }
+    }
+
+    private void flush(IRecordProcessorCheckpointer checkpointer) {
+        cancelFlushTimer();
+        if (asyncEmit) {
+            completeEmits(checkpointer, maxInFlightEmits - 1);
+            // Hand no further batch to the emit thread while failed batches remain, and keep the records buffered
+            if (failedEmits.isEmpty()) {
+                emitAsync();
+            }
+        } else {
             List<U> emitItems = transformToOutput(buffer.getRecords());
             emit(checkpointer, emitItems);
         }
+        // A failed synchronous emit, or a failed batch that was not emitted again, leaves the records in the buffer
+        if (flushScheduler != null && !buffer.getRecords().isEmpty()) {
+            scheduleFlushTimer();
+        }
+    }
+
+    private void scheduleFlushTimer() {
+        long delay = buffer.getMillisecondsToBuffer();
+        if (delay == Long.MAX_VALUE) {
+            return;
+        }
+        final long generation = ++flushTimerGeneration;
+        final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushOnTimer(generation);
+            }
+        };
+        flushTimer = flushScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (flushExecutor == null) {
+                    flushTask.run();
+                    return;
+                }
+                try {
+                    flushExecutor.execute(flushTask);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Flush executor shut down. Skipping timer flush for shardId: " + shardId);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelFlushTimer() {
+        if (flushTimer != null) {
+            flushTimer.cancel(false);
+            flushTimer = null;
+            flushTimerGeneration++;
+        }
+    }
+
+    private synchronized void flushOnTimer(long generation) {
+        if (isShutdown || generation != flushTimerGeneration) {
+            return;
+        }
+        flushTimer = null;
+        if (!buffer.getRecords().isEmpty()) {
+            LOG.debug("Buffer time limit reached for shardId: " + shardId + ". Flushing on timer.");
+            flush(lastCheckpointer);
+        }
     }
 
     private void filterAndBufferRecord(T transformedRecord, Record record) {
         if (filter.keepRecord(transformedRecord)) {
-            buffer.consumeRecord(transformedRecord, record.getData().array().length, record.getSequenceNumber());
+            int recordBytes = RecordData.size(record);
+            buffer.consumeRecord(transformedRecord, recordBytes, record.getSequenceNumber());
+            if (memoryAccount != null) {
+                memoryAccount.add(recordBytes);
+            }
+            if (flushScheduler != null && flushTimer == null) {
+                scheduleFlushTimer();
+            }
+        }
+    }
+
+    private boolean isEarlyFlushRequested() {
+        return memoryAccount != null && memoryAccount.isFlushRequested() && memoryAccount.getBufferedBytes() > 0;
+    }
+
+    /**
+     * Stops charging the buffered bytes to the buffer. They stay charged to the worker until released.
+     */
+    private long detachBufferedBytes() {
+        return (memoryAccount == null) ? 0 : memoryAccount.detach();
+    }
+
+    private void releaseBufferedBytes(long bytes) {
+        if (memoryAccount != null) {
+            memoryAccount.release(bytes);
         }
     }
 
@@ -146,10 +354,176 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
     }
 
     private void emit(IRecordProcessorCheckpointer checkpointer, List<U> emitItems) {
+        if (!emitRecords(buffer, emitItems)) {
+            return;
+        }
+        final String lastSequenceNumberProcessed = buffer.getLastSequenceNumber();
+        buffer.clear();
+        releaseBufferedBytes(detachBufferedBytes());
+        // checkpoint once all the records have been consumed
+        checkpoint(checkpointer, lastSequenceNumberProcessed);
+    }
+
+    /**
+     * Hands the current contents of the buffer to the emit thread and clears the buffer so it can keep
+     * filling. The caller must first wait until fewer than asyncEmitMaxInFlight batches are pending. An
+     * ISwappableBuffer is swapped rather than copied, and its records are transformed on the emit thread.
+     */
+    private void emitAsync() {
+        Callable<String> emitTask;
+        final long flushedBytes = detachBufferedBytes();
+        if (buffer instanceof ISwappableBuffer) {
+            final ISwappableBuffer<T> swappableBuffer = (ISwappableBuffer<T>) buffer;
+            final FlushedBuffer<T> sealed = swappableBuffer.swap();
+            emitTask = new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    try {
+                        return emitFlushed(new FlushedBuffer<U>(sealed, transformToOutput(sealed.getRecords())));
+                    } finally {
+                        swappableBuffer.recycle(sealed);
+                        releaseBufferedBytes(flushedBytes);
+                    }
+                }
+            };
+        } else {
+            final FlushedBuffer<U> flushed = new FlushedBuffer<U>(buffer, transformToOutput(buffer.getRecords()));
+            buffer.clear();
+            emitTask = new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    try {
+                        return emitFlushed(flushed);
+                    } finally {
+                        releaseBufferedBytes(flushedBytes);
+                    }
+                }
+            };
+        }
+        inFlightEmits.add(emitExecutor.submit(emitTask));
+    }
+
+    /**
+     * @return the last sequence number of the batch
+     * @throws FailedEmitException
+     *         if the emitter threw, in which case the records have been failed, or if an earlier batch failed, in
+     *         which case the batch was not emitted
+     */
+    private String emitFlushed(FlushedBuffer<U> flushed) throws IOException {
+        if (emitThreadFailed) {
+            // Leave the batch to be emitted after the failed batch before it
+            throw new FailedEmitException(flushed);
+        }
+        if (!emitBatch(flushed)) {
+            emitThreadFailed = true;
+            throw new FailedEmitException(flushed);
+        }
+        return flushed.getLastSequenceNumber();
+    }
+
+    /**
+     * @return false if the emitter threw, in which case the records have been failed
+     */
+    private boolean emitBatch(FlushedBuffer<U> flushed) {
+        try {
+            return emitRecords(flushed, flushed.getRecords());
+        } catch (RuntimeException e) {
+            LOG.error("Unexpected exception emitting records for shardId: " + shardId, e);
+            emitter.fail(flushed.getRecords());
+            return false;
+        }
+    }
+
+    /**
+     * Waits for all pending emits, then emits the batches whose asynchronous emit threw again on the calling
+     * thread, in order, and checkpoints the latest collected batch once none are left. Stops at the first batch
+     * that fails again.
+     *
+     * @return true if no failed batches are left
+     */
+    private boolean emitFailedBatches(IRecordProcessorCheckpointer checkpointer) {
+        completeEmits(checkpointer, 0);
+        if (failedEmits.isEmpty()) {
+            return true;
+        }
+        while (!failedEmits.isEmpty()) {
+            FlushedBuffer<U> failed = failedEmits.peekFirst();
+            if (!emitBatch(failed)) {
+                LOG.error("Emitting the failed batch up to sequence number " + failed.getLastSequenceNumber()
+                        + " failed again for shardId: " + shardId + ". Keeping further records buffered.");
+                return false;
+            }
+            failedEmits.pollFirst();
+        }
+        emitThreadFailed = false;
+        if (!asyncEmitLost) {
+            checkpoint(checkpointer, lastCollectedSequenceNumber);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until no more than maxRemaining emits are pending, also collecting any emits that have
+     * already completed in order, and checkpoints the last sequence number of the highest contiguous
+     * completed batch. Batches after a failed batch are collected but not checkpointed until the failed
+     * batch has been emitted again.
+     */
+    private void completeEmits(IRecordProcessorCheckpointer checkpointer, int maxRemaining) {
+        String lastSequenceNumberProcessed = null;
+        while (!inFlightEmits.isEmpty()
+                && (inFlightEmits.size() > maxRemaining || inFlightEmits.peekFirst().isDone())) {
+            awaitEmit(inFlightEmits.pollFirst());
+            if (failedEmits.isEmpty() && !asyncEmitLost) {
+                lastSequenceNumberProcessed = lastCollectedSequenceNumber;
+            }
+        }
+        checkpoint(checkpointer, lastSequenceNumberProcessed);
+    }
+
+    private void awaitEmit(Future<String> pendingEmit) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    lastCollectedSequenceNumber = pendingEmit.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof FailedEmitException) {
+                        @SuppressWarnings("unchecked")
+                        FlushedBuffer<U> failed = (FlushedBuffer<U>) ((FailedEmitException) e.getCause()).batch;
+                        LOG.error("Asynchronous emit failed for shardId: " + shardId
+                                + ". Emitting the batch again before any further batch.", e.getCause());
+                        failedEmits.add(failed);
+                        lastCollectedSequenceNumber = failed.getLastSequenceNumber();
+                    } else {
+                        LOG.error("Asynchronous emit failed for shardId: " + shardId
+                                + ". The batch cannot be emitted again and the checkpoint will not advance.",
+                                e.getCause());
+                        asyncEmitLost = true;
+                    }
+                    return;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Emits the records, retrying unprocessed records up to the retry limit and failing whatever is
+     * left.
+     *
+     * @return false if the emitter threw an IOException, in which case the records have been failed
+     */
+    private boolean emitRecords(IBuffer<?> source, List<U> emitItems) {
         List<U> unprocessed = new ArrayList<U>(emitItems);
         try {
             for (int numTries = 0; numTries < retryLimit; numTries++) {
-                unprocessed = emitter.emit(new UnmodifiableBuffer<U>(buffer, unprocessed));
+                unprocessed = emitter.emit(new UnmodifiableBuffer<U>(source, unprocessed));
                 if (unprocessed.isEmpty()) {
                     break;
                 }
@@ -161,28 +535,57 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
             if (!unprocessed.isEmpty()) {
                 emitter.fail(unprocessed);
             }
-            final String lastSequenceNumberProcessed = buffer.getLastSequenceNumber();
-            buffer.clear();
-            // checkpoint once all the records have been consumed
-            if (lastSequenceNumberProcessed != null) {
-                checkpointer.checkpoint(lastSequenceNumberProcessed);
-            }
-        } catch (IOException | KinesisClientLibDependencyException | InvalidStateException | ThrottlingException
-                | ShutdownException e) {
+            return true;
+        } catch (IOException e) {
             LOG.error(e);
             emitter.fail(unprocessed);
+            return false;
+        }
+    }
+
+    private void checkpoint(IRecordProcessorCheckpointer checkpointer, String sequenceNumber) {
+        if (sequenceNumber == null) {
+            return;
+        }
+        try {
+            checkpointer.checkpoint(sequenceNumber);
+        } catch (KinesisClientLibDependencyException | InvalidStateException | ThrottlingException
+                | ShutdownException e) {
+            LOG.error(e);
         }
     }
 
     @Override
-    public void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
+    public synchronized void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
         LOG.info("Shutting down record processor with shardId: " + shardId + " with reason " + reason);
         if (isShutdown) {
             LOG.warn("Record processor for shardId: " + shardId + " has been shutdown multiple times.");
             return;
         }
+        cancelFlushTimer();
+        if (asyncEmit) {
+            // Let pending emits finish before flushing the remainder of the buffer or shutting down the emitter
+            if (reason == ShutdownReason.TERMINATE) {
+                completeEmits(checkpointer, 0);
+            } else {
+                while (!inFlightEmits.isEmpty()) {
+                    awaitEmit(inFlightEmits.pollFirst());
+                }
+            }
+            emitExecutor.shutdown();
+        }
         switch (reason) {
             case TERMINATE:
+                // The end of the shard must not be checkpointed without the failed batches. Throwing leaves the
+                // record processor open, so the shutdown can be retried.
+                if (asyncEmitLost) {
+                    throw new IllegalStateException("Unable to checkpoint the end of shardId: " + shardId
+                            + " after an asynchronous batch was lost.");
+                }
+                if (!emitFailedBatches(checkpointer)) {
+                    throw new IllegalStateException("Unable to checkpoint the end of shardId: " + shardId
+                            + " because a failed batch could not be emitted again.");
+                }
                 emit(checkpointer, transformToOutput(buffer.getRecords()));
                 try {
                     checkpointer.checkpoint();
@@ -195,8 +598,32 @@ public class KinesisConnectorRecordProcessor<T, U> implements IRecordProcessor {
             default:
                 throw new IllegalStateException("invalid shutdown reason");
         }
+        if (memoryAccount != null) {
+            memoryAccount.close();
+        }
         emitter.shutdown();
+        if (buffer instanceof Closeable) {
+            try {
+                ((Closeable) buffer).close();
+            } catch (IOException e) {
+                LOG.error("Unable to close buffer for shardId: " + shardId, e);
+            }
+        }
         isShutdown = true;
     }
 
+    /**
+     * Thrown on the emit thread when the emitter threw for an asynchronous batch. Carries the batch, so it can be
+     * emitted again.
+     */
+    private static class FailedEmitException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final FlushedBuffer<?> batch;
+
+        FailedEmitException(FlushedBuffer<?> batch) {
+            super("Unable to emit records up to sequence number " + batch.getLastSequenceNumber());
+            this.batch = batch;
+        }
+    }
+
 }
@@ -4,6 +4,12 @@
  */
 package com.amazonaws.services.kinesis.connectors;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
 import com.amazonaws.services.kinesis.connectors.interfaces.IBuffer;
@@ -16,17 +22,47 @@ import com.amazonaws.services.kinesis.connectors.interfaces.ITransformerBase;
  * This class is used to generate KinesisConnectorRecordProcessors that operate using the user's
  * implemented classes. The createProcessor() method sets the dependencies of the
  * KinesisConnectorRecordProcessor that are specified in the KinesisConnectorPipeline argument,
- * which accesses instances of the users implementations.
+ * which accesses instances of the users implementations. If workerBufferByteSizeLimit is configured, all
+ * record processors created by the factory share one WorkerMemoryBudget. If bufferTimerFlush is enabled, they
+ * share one scheduler thread for their flush timers, and the timer flushes run on a shared pool of daemon threads
+ * so one slow emit does not delay the flushes of other shards. Call shutdown() once the worker has stopped to
+ * stop these threads.
  */
 public class KinesisConnectorRecordProcessorFactory<T, U> implements IRecordProcessorFactory {
 
     private IKinesisConnectorPipeline<T, U> pipeline;
     private KinesisConnectorConfiguration configuration;
+    private final WorkerMemoryBudget memoryBudget;
+    private final ScheduledExecutorService flushScheduler;
+    private final ExecutorService flushExecutor;
 
     public KinesisConnectorRecordProcessorFactory(IKinesisConnectorPipeline<T, U> pipeline,
             KinesisConnectorConfiguration configuration) {
         this.configuration = configuration;
         this.pipeline = pipeline;
+        if (configuration.WORKER_BUFFER_BYTE_SIZE_LIMIT != KinesisConnectorConfiguration.DEFAULT_WORKER_BUFFER_BYTE_SIZE_LIMIT) {
+            memoryBudget = new WorkerMemoryBudget(configuration.WORKER_BUFFER_BYTE_SIZE_LIMIT);
+        } else {
+            memoryBudget = null;
+        }
+        if (configuration.BUFFER_TIMER_FLUSH) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("buffer-flush-timer-"));
+            // A record processor has at most one timer flush at a time, so this grows with the number of leases
+            flushExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("buffer-flush-"));
+        } else {
+            flushScheduler = null;
+            flushExecutor = null;
+        }
+    }
+
+    /**
+     * Stops the flush timer threads. Record processors created afterwards no longer flush on a timer.
+     */
+    public void shutdown() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+            flushExecutor.shutdown();
+        }
     }
 
     @Override
@@ -37,10 +73,27 @@ public class KinesisConnectorRecordProcessorFactory<T, U> implements IRecordProc
             ITransformerBase<T, U> transformer = pipeline.getTransformer(configuration);
             IFilter<T> filter = pipeline.getFilter(configuration);
             KinesisConnectorRecordProcessor<T, U> processor =
-                    new KinesisConnectorRecordProcessor<T, U>(buffer, filter, emitter, transformer, configuration);
+                    new KinesisConnectorRecordProcessor<T, U>(buffer, filter, emitter, transformer, configuration,
+                            memoryBudget, flushScheduler, flushExecutor);
             return processor;
         } catch (Throwable t) {
             throw new RuntimeException(t);
         }
     }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * This class provides access to the data of an Amazon Kinesis Record for transformers. The data is
+ * read between the position and the limit of the record's ByteBuffer, so sliced, read-only and direct
+ * buffers are handled correctly, and the data is never copied into a new array when the buffer is backed
+ * by one. None of the methods change the position of the record's ByteBuffer.
+ */
+public final class RecordData {
+
+    private RecordData() {
+    }
+
+    /**
+     * @param record
+     *        the Amazon Kinesis Record
+     * @return the number of data bytes in the record
+     */
+    public static int size(Record record) {
+        return record.getData().remaining();
+    }
+
+    /**
+     * Returns true if the data of the record can be read with array(), offset() and size() without copying.
+     *
+     * @param record
+     *        the Amazon Kinesis Record
+     * @return true if the record's ByteBuffer is backed by an accessible array
+     */
+    public static boolean hasArray(Record record) {
+        return record.getData().hasArray();
+    }
+
+    /**
+     * @param record
+     *        an Amazon Kinesis Record for which hasArray() returns true
+     * @return the array backing the record's ByteBuffer
+     */
+    public static byte[] array(Record record) {
+        return record.getData().array();
+    }
+
+    /**
+     * @param record
+     *        an Amazon Kinesis Record for which hasArray() returns true
+     * @return the offset of the first data byte in the array returned by array()
+     */
+    public static int offset(Record record) {
+        ByteBuffer data = record.getData();
+        return data.arrayOffset() + data.position();
+    }
+
+    /**
+     * @param record
+     *        the Amazon Kinesis Record
+     * @return a stream reading the data of the record without copying it
+     */
+    public static InputStream asInputStream(Record record) {
+        return new ByteBufferBackedInputStream(record.getData().duplicate());
+    }
+
+    /**
+     * Decodes the data of the record with the platform's default charset.
+     *
+     * @param record
+     *        the Amazon Kinesis Record
+     * @return the data of the record as a string
+     */
+    public static String asString(Record record) {
+        if (hasArray(record)) {
+            return new String(array(record), offset(record), size(record));
+        }
+        return new String(toByteArray(record));
+    }
+
+    /**
+     * Copies the data of the record into a new array. Use this only when an API requires an array of
+     * exactly the data.
+     *
+     * @param record
+     *        the Amazon Kinesis Record
+     * @return a copy of the data of the record
+     */
+    public static byte[] toByteArray(Record record) {
+        byte[] bytes = new byte[size(record)];
+        record.getData().duplicate().get(bytes);
+        return bytes;
+    }
+}
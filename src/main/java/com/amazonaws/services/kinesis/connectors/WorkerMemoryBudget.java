@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class accounts for the bytes buffered by all KinesisConnectorRecordProcessors of a worker
+ * against a single limit. Each record processor registers an Account and adds the size of every record
+ * it buffers. Bytes stay charged to the worker until the record processor releases them after emitting.
+ * <p>
+ * When the worker total reaches the limit, the budget asks the record processors with the largest
+ * buffers to flush early, until the bytes that are not already being flushed drop below three quarters
+ * of the limit. A record processor checks its Account on every processRecords() call and flushes its
+ * buffer when asked to, even if IBuffer.shouldFlush() returns false.
+ * <p>
+ * A KinesisConnectorRecordProcessorFactory creates one budget for all of its record processors when
+ * workerBufferByteSizeLimit is set in the KinesisConnectorConfiguration.
+ */
+public class WorkerMemoryBudget {
+    private static final Log LOG = LogFactory.getLog(WorkerMemoryBudget.class);
+
+    private final long limitBytes;
+    private final long lowWatermarkBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final Set<Account> accounts = Collections.newSetFromMap(new ConcurrentHashMap<Account, Boolean>());
+
+    /**
+     * @param limitBytes
+     *        the number of bytes all buffers of the worker may hold before early flushes are requested
+     */
+    public WorkerMemoryBudget(long limitBytes) {
+        if (limitBytes <= 0) {
+            throw new IllegalArgumentException("limitBytes must be greater than zero");
+        }
+        this.limitBytes = limitBytes;
+        this.lowWatermarkBytes = limitBytes / 4 * 3;
+    }
+
+    /**
+     * @return the limit in bytes
+     */
+    public long getLimitBytes() {
+        return limitBytes;
+    }
+
+    /**
+     * @return the number of bytes currently charged to the worker, including batches being emitted
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Registers a new account for a record processor.
+     *
+     * @param shardId
+     *        the shard the record processor is processing, used for logging
+     * @return the account to charge buffered bytes to
+     */
+    public Account register(String shardId) {
+        Account account = new Account(shardId);
+        accounts.add(account);
+        return account;
+    }
+
+    /**
+     * Marks the largest buffers that are not already being flushed until enough bytes are being flushed to
+     * bring the worker under its low watermark.
+     */
+    private synchronized void requestFlushes() {
+        long remaining = usedBytes.get();
+        for (Account account : accounts) {
+            if (account.flushRequested) {
+                remaining -= account.bufferedBytes.get();
+            }
+        }
+        while (remaining > lowWatermarkBytes) {
+            Account largest = null;
+            long largestBytes = 0;
+            for (Account account : accounts) {
+                long bytes = account.bufferedBytes.get();
+                if (!account.flushRequested && bytes > largestBytes) {
+                    largest = account;
+                    largestBytes = bytes;
+                }
+            }
+            if (largest == null) {
+                // Everything left is already being flushed or emitted
+                return;
+            }
+            largest.flushRequested = true;
+            remaining -= largestBytes;
+            LOG.info("Worker buffers hold " + usedBytes.get() + " of " + limitBytes
+                    + " bytes. Requesting early flush of " + largestBytes + " bytes for shardId: " + largest.shardId);
+        }
+    }
+
+    /**
+     * The bytes buffered by a single record processor.
+     */
+    public class Account {
+        private final String shardId;
+        private final AtomicLong bufferedBytes = new AtomicLong();
+        private volatile boolean flushRequested = false;
+
+        private Account(String shardId) {
+            this.shardId = shardId;
+        }
+
+        /**
+         * Charges the bytes of a buffered record to the worker.
+         *
+         * @param bytes
+         *        size of the record
+         */
+        public void add(long bytes) {
+            bufferedBytes.addAndGet(bytes);
+            if (usedBytes.addAndGet(bytes) >= limitBytes) {
+                requestFlushes();
+            }
+        }
+
+        /**
+         * @return the number of bytes in the buffer of this record processor
+         */
+        public long getBufferedBytes() {
+            return bufferedBytes.get();
+        }
+
+        /**
+         * @return true if the worker asked this record processor to flush its buffer
+         */
+        public boolean isFlushRequested() {
+            return flushRequested;
+        }
+
+        /**
+         * Called when the buffer is flushed. The buffered bytes remain charged to the worker until they are
+         * released.
+         *
+         * @return the number of bytes that were in the buffer, to be passed to release()
+         */
+        public long detach() {
+            flushRequested = false;
+            return bufferedBytes.getAndSet(0);
+        }
+
+        /**
+         * Releases bytes that were detached from the buffer once they have been emitted.
+         *
+         * @param bytes
+         *        the value returned by detach()
+         */
+        public void release(long bytes) {
+            usedBytes.addAndGet(-bytes);
+        }
+
+        /**
+         * Releases everything charged by this account and stops tracking it.
+         */
+        public void close() {
+            release(detach());
+            accounts.remove(this);
+        }
+    }
+}
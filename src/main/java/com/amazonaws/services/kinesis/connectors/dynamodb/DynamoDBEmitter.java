@@ -5,14 +5,26 @@
 package com.amazonaws.services.kinesis.connectors.dynamodb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,7 +34,11 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
 import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
@@ -33,12 +49,49 @@ import com.amazonaws.services.kinesis.connectors.interfaces.IEmitter;
  * DynamoDBTransformer, which is able to transform records into a format that can be sent to
  * Amazon DynamoDB. An Amazon DynamoDB client is used to perform batch requests on the contents of a buffer when
  * emitting. This class requires the configuration of an Amazon DynamoDB endpoint and table name.
+ * <p>
+ * The batch requests of a buffer are performed concurrently on an executor shared by all DynamoDBEmitters of the
+ * JVM, which has as many threads as the largest dynamoDBBatchWriteThreads of these emitters and is shut down with the
+ * last of them. Each emit has at most dynamoDBMaxInFlightBatches requests in
+ * flight; a limit of 1 performs the requests one after another on the calling thread.
+ * <p>
+ * Unprocessed items of a batch request are retried with jittered exponential backoff for up to
+ * dynamoDBRetryTimeBudget milliseconds before they are returned as unprocessed records.
+ * <p>
+ * If dynamoDBWriteCapacity is set, the requests of all DynamoDBEmitters of the JVM that write to the table are
+ * paced by a DynamoDBWriteLimiter, which adapts to the consumed capacity and throttling reported by Amazon DynamoDB.
+ * <p>
+ * If dynamoDBCoalesceByKey is set, the key schema of the table is read once and only the last write to each primary
+ * key in a buffer is sent, instead of only collapsing identical items.
  */
 public class DynamoDBEmitter implements IEmitter<Map<String, AttributeValue>> {
     private static final Log LOG = LogFactory.getLog(DynamoDBEmitter.class);
+    // Limits of a BatchWriteItem request
+    private static final int MAX_BATCH_ITEMS = 25;
+    private static final long MAX_BATCH_BYTES = 16 * 1024 * 1024L;
+    // Generous allowance for the JSON of a request and of each write request and attribute
+    private static final long REQUEST_OVERHEAD_BYTES = 1024L;
+    private static final long WRITE_REQUEST_OVERHEAD_BYTES = 64L;
+    private static final long ATTRIBUTE_OVERHEAD_BYTES = 16L;
+    private static final long BASE_RETRY_BACKOFF_MILLIS = 25L;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 1000L;
     protected final String dynamoDBEndpoint;
     protected final String dynamoDBTableName;
     protected final AmazonDynamoDBClient dynamoDBClient;
+    protected final int batchWriteThreads;
+    protected final int maxInFlightBatches;
+    protected final long retryTimeBudget;
+    protected final DynamoDBWriteLimiter writeLimiter;
+    protected final boolean coalesceByKey;
+    // Primary key attributes of the table, read on first use
+    private volatile List<String> keyAttributeNames;
+    private final Random random = new Random();
+    private boolean isShutdown;
+    // Shared by all DynamoDBEmitters of the JVM and sized for the largest dynamoDBBatchWriteThreads among them.
+    // The pool is shut down with the last of these emitters. Guarded by the DynamoDBEmitter class.
+    private static ThreadPoolExecutor workerExecutor;
+    private static int workerExecutorThreads;
+    private static int workerExecutorUsers;
 
     public DynamoDBEmitter(KinesisConnectorConfiguration configuration) {
         // Amazon DynamoDB Config
@@ -47,36 +100,36 @@ public class DynamoDBEmitter implements IEmitter<Map<String, AttributeValue>> {
         // Client
         this.dynamoDBClient = new AmazonDynamoDBClient(configuration.AWS_CREDENTIALS_PROVIDER);
         this.dynamoDBClient.setEndpoint(this.dynamoDBEndpoint);
+        this.batchWriteThreads = configuration.DYNAMODB_BATCH_WRITE_THREADS;
+        this.maxInFlightBatches = configuration.DYNAMODB_MAX_IN_FLIGHT_BATCHES;
+        this.retryTimeBudget = configuration.DYNAMODB_RETRY_TIME_BUDGET;
+        this.writeLimiter = (configuration.DYNAMODB_WRITE_CAPACITY > 0) ? DynamoDBWriteLimiter.getLimiter(configuration)
+                : null;
+        this.coalesceByKey = configuration.DYNAMODB_COALESCE_BY_KEY;
+        registerWorkerExecutorUser(batchWriteThreads);
     }
 
     @Override
     public List<Map<String, AttributeValue>> emit(final UnmodifiableBuffer<Map<String, AttributeValue>> buffer)
         throws IOException {
-        // Map of WriteRequests to records for reference
-        Map<WriteRequest, Map<String, AttributeValue>> requestMap =
-                new HashMap<WriteRequest, Map<String, AttributeValue>>();
         List<Map<String, AttributeValue>> unproc = new ArrayList<Map<String, AttributeValue>>();
-        // Build a batch request with a record list
-        List<WriteRequest> rList = new ArrayList<WriteRequest>();
-        List<Map<String, AttributeValue>> resultList;
         // Amazon DynamoDB only allows one operation per item in a bulk insertion (no duplicate items)
-        Set<Map<String, AttributeValue>> uniqueItems = uniqueItems(buffer.getRecords());
-        for (Map<String, AttributeValue> item : uniqueItems) {
-            WriteRequest wr = new WriteRequest().withPutRequest(new PutRequest().withItem(item));
-            // add to the map
-            requestMap.put(wr, item);
-            // add to the list of requests
-            rList.add(wr);
-            // Max of sixteen not to exceed maximum request size
-            if (rList.size() == 16) {
-                resultList = performBatchRequest(rList, requestMap);
-                unproc.addAll(resultList);
-                rList.clear();
+        Collection<Map<String, AttributeValue>> uniqueItems;
+        if (coalesceByKey) {
+            uniqueItems = coalesceByKey(buffer.getRecords(), getKeyAttributeNames());
+        } else {
+            uniqueItems = uniqueItems(buffer.getRecords());
+        }
+        List<List<Map<String, AttributeValue>>> batches = packBatches(uniqueItems);
+        if (maxInFlightBatches <= 1 || batches.size() == 1) {
+            for (List<Map<String, AttributeValue>> batch : batches) {
+                unproc.addAll(performBatchRequest(batch));
             }
+        } else {
+            unproc.addAll(performBatchRequestsConcurrently(batches));
         }
-        resultList = performBatchRequest(rList, requestMap);
-        unproc.addAll(resultList);
-        LOG.info("Successfully emitted " + (buffer.getRecords().size() - unproc.size()) + " records into DynamoDB.");
+        LOG.info("Successfully emitted " + (uniqueItems.size() - unproc.size()) + " items from "
+                + buffer.getRecords().size() + " records into DynamoDB.");
         return unproc;
     }
 
@@ -88,20 +141,132 @@ public class DynamoDBEmitter implements IEmitter<Map<String, AttributeValue>> {
     }
 
     /**
-     * This method performs a batch request into Amazon DynamoDB and returns records that were
-     * unsuccessfully processed by the batch request. Throws IOException if the client calls to
+     * Performs the batch requests on the worker executor, with at most maxInFlightBatches of them in flight,
+     * and returns the records that were unsuccessfully processed by any of them. Throws IOException after all
+     * batch requests have finished if any of them encountered an exception.
+     * 
+     * @param batches
+     *        the batches of records
+     * @return records that did not get put in the table by the batch requests
+     * @throws IOException
+     *         if the Amazon DynamoDB client encounters an exception
+     */
+    private List<Map<String, AttributeValue>> performBatchRequestsConcurrently(
+            List<List<Map<String, AttributeValue>>> batches) throws IOException {
+        ExecutorService executor = getWorkerExecutor();
+        final Semaphore inFlight = new Semaphore(maxInFlightBatches);
+        List<Future<List<Map<String, AttributeValue>>>> futures =
+                new ArrayList<Future<List<Map<String, AttributeValue>>>>(batches.size());
+        List<Map<String, AttributeValue>> unprocessed = new ArrayList<Map<String, AttributeValue>>();
+        IOException failure = null;
+        try {
+            for (final List<Map<String, AttributeValue>> batch : batches) {
+                inFlight.acquire();
+                futures.add(executor.submit(new Callable<List<Map<String, AttributeValue>>>() {
+                    @Override
+                    public List<Map<String, AttributeValue>> call() throws IOException {
+                        try {
+                            return performBatchRequest(batch);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException("Interrupted while performing batch requests", e);
+        }
+        for (Future<List<Map<String, AttributeValue>>> future : futures) {
+            try {
+                unprocessed.addAll(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+                            : new IOException("Unexpected Exception while performing batch request", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new IOException("Interrupted while performing batch requests", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return unprocessed;
+    }
+
+    private static synchronized void registerWorkerExecutorUser(int threads) {
+        workerExecutorUsers++;
+        threads = Math.max(1, threads);
+        if (workerExecutorThreads > 0 && threads != workerExecutorThreads) {
+            LOG.warn("dynamoDBBatchWriteThreads of " + threads + " differs from the " + workerExecutorThreads
+                    + " threads of the shared pool. Using " + Math.max(threads, workerExecutorThreads) + " threads.");
+        }
+        if (threads > workerExecutorThreads) {
+            workerExecutorThreads = threads;
+            if (workerExecutor != null) {
+                // Raise the maximum first, it must never be below the core size
+                workerExecutor.setMaximumPoolSize(threads);
+                workerExecutor.setCorePoolSize(threads);
+            }
+        }
+    }
+
+    private static synchronized void releaseWorkerExecutorUser() {
+        if (--workerExecutorUsers == 0) {
+            if (workerExecutor != null) {
+                workerExecutor.shutdown();
+                workerExecutor = null;
+            }
+            workerExecutorThreads = 0;
+        }
+    }
+
+    private static synchronized ExecutorService getWorkerExecutor() {
+        if (workerExecutor == null) {
+            workerExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(workerExecutorThreads,
+                    new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "dynamodb-emitter-worker-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return workerExecutor;
+    }
+
+    /**
+     * This method performs a batch request into Amazon DynamoDB, retries its unprocessed items within the retry
+     * time budget, and returns records that were still unsuccessfully processed. Throws IOException if the client calls to
      * Amazon DynamoDB encounter an exception.
      * 
-     * @param rList
-     *        list of WriteRequests to batch
-     * @param requestMap
-     *        map of WriteRequests to records
+     * @param batch
+     *        list of records to batch
      * @return records that did not get put in the table by the batch request
      * @throws IOException
      *         if the Amazon DynamoDB client encounters an exception
      */
-    private List<Map<String, AttributeValue>> performBatchRequest(List<WriteRequest> rList,
-            Map<WriteRequest, Map<String, AttributeValue>> requestMap) throws IOException {
+    private List<Map<String, AttributeValue>> performBatchRequest(List<Map<String, AttributeValue>> batch)
+        throws IOException {
+        // Map of WriteRequests to records for reference
+        Map<WriteRequest, Map<String, AttributeValue>> requestMap =
+                new HashMap<WriteRequest, Map<String, AttributeValue>>();
+        // Build a batch request with a record list
+        List<WriteRequest> rList = new ArrayList<WriteRequest>(batch.size());
+        for (Map<String, AttributeValue> item : batch) {
+            WriteRequest wr = new WriteRequest().withPutRequest(new PutRequest().withItem(item));
+            // add to the map
+            requestMap.put(wr, item);
+            // add to the list of requests
+            rList.add(wr);
+        }
         // Requests in the batch
         Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
 
@@ -109,11 +274,31 @@ public class DynamoDBEmitter implements IEmitter<Map<String, AttributeValue>> {
             return Collections.emptyList();
         }
         requestItems.put(dynamoDBTableName, rList);
-        BatchWriteItemResult result;
-        BatchWriteItemRequest batchWriteItemRequest = new BatchWriteItemRequest().withRequestItems(requestItems);
+        long deadline = getCurrentTimeMilliseconds() + retryTimeBudget;
         try {
-            result = dynamoDBClient.batchWriteItem(batchWriteItemRequest);
-            return unproccessedItems(result, requestMap);
+            for (int retries = 0;; retries++) {
+                BatchWriteItemResult result = writeBatch(requestItems);
+                if (!hasUnprocessedItems(result)) {
+                    return Collections.emptyList();
+                }
+                // Full jitter spreads the retries of throttled batches
+                long backoff = (long) (random.nextDouble()
+                        * Math.min(MAX_RETRY_BACKOFF_MILLIS, BASE_RETRY_BACKOFF_MILLIS << Math.min(retries, 16)));
+                // A retry must end before the deadline, so a budget of zero never retries
+                if (getCurrentTimeMilliseconds() + backoff >= deadline) {
+                    return unproccessedItems(result, requestMap);
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return unproccessedItems(result, requestMap);
+                }
+                requestItems = result.getUnprocessedItems();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Amazon DynamoDB write capacity", e);
         } catch (AmazonClientException e) {
             String message = "Amazon DynamoDB Client could not perform batch request";
             LOG.error(message, e);
@@ -125,6 +310,81 @@ public class DynamoDBEmitter implements IEmitter<Map<String, AttributeValue>> {
         }
     }
 
+    /**
+     * Performs one BatchWriteItem request, paced by the write limiter if there is one.
+     */
+    private BatchWriteItemResult writeBatch(Map<String, List<WriteRequest>> requestItems)
+        throws InterruptedException {
+        BatchWriteItemRequest request = new BatchWriteItemRequest().withRequestItems(requestItems);
+        if (writeLimiter == null) {
+            return batchWriteItem(request);
+        }
+        double units = estimateWriteUnits(requestItems);
+        writeLimiter.acquire(units);
+        BatchWriteItemResult result;
+        try {
+            result = batchWriteItem(request.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+        } catch (RuntimeException e) {
+            // A failed request consumes no capacity
+            writeLimiter.onResult(units, 0.0, e instanceof ProvisionedThroughputExceededException);
+            throw e;
+        }
+        writeLimiter.onResult(units, getConsumedUnits(result), hasUnprocessedItems(result));
+        return result;
+    }
+
+    /**
+     * Estimates write capacity units as one unit per started kilobyte of each item.
+     */
+    private static double estimateWriteUnits(Map<String, List<WriteRequest>> requestItems) {
+        double units = 0;
+        for (List<WriteRequest> requests : requestItems.values()) {
+            for (WriteRequest request : requests) {
+                if (request.getPutRequest() != null) {
+                    units += Math.ceil(estimateSerializedSize(request.getPutRequest().getItem()) / 1024.0);
+                } else {
+                    units += 1;
+                }
+            }
+        }
+        return units;
+    }
+
+    private static Double getConsumedUnits(BatchWriteItemResult result) {
+        if (result.getConsumedCapacity() == null || result.getConsumedCapacity().isEmpty()) {
+            return null;
+        }
+        double units = 0;
+        for (ConsumedCapacity consumedCapacity : result.getConsumedCapacity()) {
+            if (consumedCapacity.getCapacityUnits() != null) {
+                units += consumedCapacity.getCapacityUnits();
+            }
+        }
+        return units;
+    }
+
+    private static boolean hasUnprocessedItems(BatchWriteItemResult result) {
+        if (result.getUnprocessedItems() == null) {
+            return false;
+        }
+        for (List<WriteRequest> requests : result.getUnprocessedItems().values()) {
+            if (!requests.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected long getCurrentTimeMilliseconds() {
+        return System.currentTimeMillis();
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected BatchWriteItemResult batchWriteItem(BatchWriteItemRequest batchWriteItemRequest) {
+        return dynamoDBClient.batchWriteItem(batchWriteItemRequest);
+    }
+
     private List<Map<String, AttributeValue>> unproccessedItems(BatchWriteItemResult result,
             Map<WriteRequest, Map<String, AttributeValue>> requestMap) {
         Collection<List<WriteRequest>> items = result.getUnprocessedItems().values();
@@ -139,6 +399,101 @@ public class DynamoDBEmitter implements IEmitter<Map<String, AttributeValue>> {
         return unprocessed;
     }
 
+    /**
+     * Packs items into batches of up to 25 items each, starting a new batch early when the estimated size of the
+     * request would exceed the 16 MB request size limit of BatchWriteItem.
+     * 
+     * @param items
+     *        the items to write
+     * @return the batches in order
+     */
+    protected List<List<Map<String, AttributeValue>>> packBatches(Collection<Map<String, AttributeValue>> items) {
+        List<List<Map<String, AttributeValue>>> batches = new ArrayList<List<Map<String, AttributeValue>>>();
+        List<Map<String, AttributeValue>> batch = new ArrayList<Map<String, AttributeValue>>();
+        long batchBytes = REQUEST_OVERHEAD_BYTES;
+        for (Map<String, AttributeValue> item : items) {
+            long itemBytes = WRITE_REQUEST_OVERHEAD_BYTES + estimateSerializedSize(item);
+            if (!batch.isEmpty() && (batch.size() == MAX_BATCH_ITEMS || batchBytes + itemBytes > MAX_BATCH_BYTES)) {
+                batches.add(batch);
+                batch = new ArrayList<Map<String, AttributeValue>>();
+                batchBytes = REQUEST_OVERHEAD_BYTES;
+            }
+            batch.add(item);
+            batchBytes += itemBytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Estimates the number of bytes an item takes in the JSON of a request. The estimate is an upper bound for
+     * attribute values without characters that need escaping.
+     * 
+     * @param item
+     *        an Amazon DynamoDB item
+     * @return the estimated size of the item in a request
+     */
+    protected static long estimateSerializedSize(Map<String, AttributeValue> item) {
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            size += ATTRIBUTE_OVERHEAD_BYTES + utf8Length(attribute.getKey())
+                    + estimateSerializedSize(attribute.getValue());
+        }
+        return size;
+    }
+
+    private static long estimateSerializedSize(AttributeValue value) {
+        long size = ATTRIBUTE_OVERHEAD_BYTES;
+        if (value.getS() != null) {
+            size += utf8Length(value.getS());
+        } else if (value.getN() != null) {
+            size += value.getN().length();
+        } else if (value.getB() != null) {
+            size += base64Length(value.getB().remaining());
+        } else if (value.getSS() != null) {
+            for (String s : value.getSS()) {
+                size += ATTRIBUTE_OVERHEAD_BYTES + utf8Length(s);
+            }
+        } else if (value.getNS() != null) {
+            for (String n : value.getNS()) {
+                size += ATTRIBUTE_OVERHEAD_BYTES + n.length();
+            }
+        } else if (value.getBS() != null) {
+            for (ByteBuffer b : value.getBS()) {
+                size += ATTRIBUTE_OVERHEAD_BYTES + base64Length(b.remaining());
+            }
+        } else if (value.getM() != null) {
+            size += estimateSerializedSize(value.getM());
+        } else if (value.getL() != null) {
+            for (AttributeValue element : value.getL()) {
+                size += estimateSerializedSize(element);
+            }
+        }
+        return size;
+    }
+
+    private static long utf8Length(String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else {
+                // Surrogate pairs take four bytes in total
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static long base64Length(int bytes) {
+        return 4L * ((bytes + 2) / 3);
+    }
+
     /**
      * This helper method is used to dedupe a list of items. Use this method to dedupe the contents
      * of a buffer before performing an Amazon DynamoDB batch write request.
@@ -151,8 +506,74 @@ public class DynamoDBEmitter implements IEmitter<Map<String, AttributeValue>> {
         return new HashSet<Map<String, AttributeValue>>(items);
     }
 
+    /**
+     * This helper method keeps only the last write to each primary key of a list of items, in the order of the list.
+     * Items without all key attributes are only deduped.
+     * 
+     * @param items
+     *        a list of Map<String,AttributeValue> items in sequence order
+     * @param keyAttributeNames
+     *        the names of the primary key attributes of the table
+     * @return the last item for each primary key
+     */
+    public Collection<Map<String, AttributeValue>> coalesceByKey(List<Map<String, AttributeValue>> items,
+            List<String> keyAttributeNames) {
+        Map<Map<String, AttributeValue>, Map<String, AttributeValue>> lastWrites =
+                new LinkedHashMap<Map<String, AttributeValue>, Map<String, AttributeValue>>();
+        List<Map<String, AttributeValue>> withoutKey = new ArrayList<Map<String, AttributeValue>>();
+        for (Map<String, AttributeValue> item : items) {
+            Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+            for (String keyAttributeName : keyAttributeNames) {
+                AttributeValue value = item.get(keyAttributeName);
+                if (value != null) {
+                    key.put(keyAttributeName, value);
+                }
+            }
+            if (key.size() < keyAttributeNames.size()) {
+                withoutKey.add(item);
+            } else {
+                // Move the key to the end so the write keeps its place in sequence order
+                lastWrites.remove(key);
+                lastWrites.put(key, item);
+            }
+        }
+        List<Map<String, AttributeValue>> coalesced =
+                new ArrayList<Map<String, AttributeValue>>(uniqueItems(withoutKey));
+        coalesced.addAll(lastWrites.values());
+        if (coalesced.size() < items.size()) {
+            LOG.debug("Coalesced " + items.size() + " writes into " + coalesced.size() + " writes by primary key.");
+        }
+        return coalesced;
+    }
+
+    private List<String> getKeyAttributeNames() throws IOException {
+        if (keyAttributeNames == null) {
+            try {
+                keyAttributeNames = describeKeyAttributeNames();
+            } catch (AmazonClientException e) {
+                String message = "Amazon DynamoDB Client could not describe table " + dynamoDBTableName;
+                LOG.error(message, e);
+                throw new IOException(message, e);
+            }
+        }
+        return keyAttributeNames;
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected List<String> describeKeyAttributeNames() {
+        List<String> names = new ArrayList<String>();
+        for (KeySchemaElement element : dynamoDBClient.describeTable(dynamoDBTableName).getTable().getKeySchema()) {
+            names.add(element.getAttributeName());
+        }
+        return names;
+    }
+
     @Override
     public void shutdown() {
         dynamoDBClient.shutdown();
+        if (!isShutdown) {
+            isShutdown = true;
+            releaseWorkerExecutorUser();
+        }
     }
 }
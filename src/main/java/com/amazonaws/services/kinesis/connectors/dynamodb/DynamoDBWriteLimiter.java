@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.dynamodb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+/**
+ * This class paces the writes of all DynamoDBEmitters of a JVM to the same Amazon DynamoDB table with a token
+ * bucket of write capacity units. Requests take their estimated units before they are sent, and the bucket is
+ * corrected with the consumed capacity that Amazon DynamoDB reports.
+ * <p>
+ * The rate starts at dynamoDBWriteCapacity units per second and adapts with additive increase and multiplicative
+ * decrease: it is halved when a request is throttled, and grows by a twentieth of the initial rate for every second
+ * in which writers had to wait for the bucket without being throttled. Each adjustment happens at most once per
+ * second, so one throttling event does not collapse the rate.
+ */
+public class DynamoDBWriteLimiter {
+    private static final Log LOG = LogFactory.getLog(DynamoDBWriteLimiter.class);
+    private static final Map<String, DynamoDBWriteLimiter> LIMITERS = new HashMap<String, DynamoDBWriteLimiter>();
+    private static final long ADJUSTMENT_INTERVAL_MILLIS = 1000L;
+    private static final double MIN_RATE = 1.0;
+
+    private final double additiveIncrease;
+    // All fields below are guarded by this
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastAdjustment;
+    private boolean limited;
+    private boolean throttled;
+
+    /**
+     * Returns the limiter for the Amazon DynamoDB endpoint and table of the configuration, creating it on first use.
+     *
+     * @param configuration
+     *        the Amazon DynamoDB endpoint, table and initial write capacity
+     * @return the shared limiter
+     */
+    public static synchronized DynamoDBWriteLimiter getLimiter(KinesisConnectorConfiguration configuration) {
+        String key = configuration.DYNAMODB_ENDPOINT + "|" + configuration.DYNAMODB_DATA_TABLE_NAME;
+        DynamoDBWriteLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            limiter = new DynamoDBWriteLimiter(configuration.DYNAMODB_WRITE_CAPACITY);
+            LIMITERS.put(key, limiter);
+        }
+        return limiter;
+    }
+
+    public DynamoDBWriteLimiter(double initialRate) {
+        if (initialRate <= 0) {
+            throw new IllegalArgumentException("initialRate must be greater than zero");
+        }
+        this.additiveIncrease = Math.max(MIN_RATE, initialRate / 20);
+        this.rate = initialRate;
+        this.tokens = initialRate;
+        this.lastRefill = getCurrentTimeMilliseconds();
+        this.lastAdjustment = lastRefill;
+    }
+
+    /**
+     * Takes write capacity units from the bucket, waiting until the bucket has paid off any debt at the current
+     * rate.
+     *
+     * @param units
+     *        the estimated write capacity units of a request
+     * @throws InterruptedException
+     *         if the thread was interrupted while waiting
+     */
+    public void acquire(double units) throws InterruptedException {
+        long waitMillis;
+        synchronized (this) {
+            refill();
+            tokens -= units;
+            waitMillis = (tokens < 0) ? (long) Math.ceil(-tokens / rate * 1000) : 0;
+            if (waitMillis > 0) {
+                limited = true;
+            }
+        }
+        if (waitMillis > 0) {
+            sleep(waitMillis);
+        }
+    }
+
+    /**
+     * Reports the result of a request that took units with acquire().
+     *
+     * @param estimatedUnits
+     *        the units the request took from the bucket
+     * @param consumedUnits
+     *        the units Amazon DynamoDB reported as consumed, or null if not reported
+     * @param wasThrottled
+     *        true if any item of the request was throttled
+     */
+    public synchronized void onResult(double estimatedUnits, Double consumedUnits, boolean wasThrottled) {
+        refill();
+        if (consumedUnits != null) {
+            tokens += estimatedUnits - consumedUnits;
+        }
+        throttled |= wasThrottled;
+        long now = getCurrentTimeMilliseconds();
+        if (now - lastAdjustment < ADJUSTMENT_INTERVAL_MILLIS) {
+            return;
+        }
+        if (throttled) {
+            rate = Math.max(MIN_RATE, rate / 2);
+            // Give up the burst that led to the throttling
+            tokens = Math.min(tokens, 0);
+            LOG.info("Amazon DynamoDB writes throttled. Reducing write rate to " + rate + " units per second.");
+        } else if (limited) {
+            rate += additiveIncrease;
+            LOG.debug("Increasing Amazon DynamoDB write rate to " + rate + " units per second.");
+        }
+        throttled = false;
+        limited = false;
+        lastAdjustment = now;
+    }
+
+    /**
+     * @return the current rate in write capacity units per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    // Callers must hold the lock on this limiter
+    private void refill() {
+        long now = getCurrentTimeMilliseconds();
+        // The bucket holds at most one second of writes
+        tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1000);
+        lastRefill = now;
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected long getCurrentTimeMilliseconds() {
+        return System.currentTimeMillis();
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+}
@@ -6,6 +6,7 @@ package com.amazonaws.services.kinesis.connectors.elasticsearch;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 /**
  * ElasticsearchObject defines the information needed by the ElasticsearchEmitter
@@ -14,6 +15,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * during the fromClass transformation.
  */
 public class ElasticsearchObject {
+    private static final ObjectWriter WRITER = new ObjectMapper().writerFor(ElasticsearchObject.class);
 
     /**
      * The index name within Elasticsearch to store the source document.
@@ -113,7 +115,7 @@ public class ElasticsearchObject {
     @Override
     public String toString() {
         try {
-            return new ObjectMapper().writeValueAsString(this);
+            return WRITER.writeValueAsString(this);
         } catch (JsonProcessingException e) {
             return super.toString();
         }
@@ -4,7 +4,7 @@
  */
 package com.amazonaws.services.kinesis.connectors.impl;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -15,11 +15,17 @@ import com.amazonaws.services.kinesis.connectors.interfaces.IBuffer;
  * This class is a basic implementation of the IBuffer interface. It is a wrapper on a buffer of
  * records that are periodically flushed. It is configured with an implementation of IFilter that
  * decides whether a record will be added to the buffer to be emitted.
+ * <p>
+ * By default records are stored in an ArrayList presized to the record count limit. Clearing the
+ * buffer keeps the backing array, so it is reused across flushes.
  * 
  * @param <T>
  */
 public class BasicMemoryBuffer<T> implements IBuffer<T> {
 
+    // Upper bound on the capacity preallocated for the default record list
+    private static final int MAX_INITIAL_CAPACITY = 1 << 16;
+
     private final long bytesPerFlush;
     private final long numMessagesToBuffer;
     private final long millisecondsToBuffer;
@@ -42,7 +48,15 @@ public class BasicMemoryBuffer<T> implements IBuffer<T> {
     }
 
     public BasicMemoryBuffer(KinesisConnectorConfiguration configuration) {
-        this(configuration, new LinkedList<T>());
+        this(configuration, new ArrayList<T>(getInitialCapacity(configuration.BUFFER_RECORD_COUNT_LIMIT)));
+    }
+
+    /**
+     * Returns the capacity to preallocate for a record list that is flushed after numRecordsToBuffer
+     * records.
+     */
+    static int getInitialCapacity(long numRecordsToBuffer) {
+        return (int) Math.max(1, Math.min(numRecordsToBuffer, MAX_INITIAL_CAPACITY));
     }
 
     @Override
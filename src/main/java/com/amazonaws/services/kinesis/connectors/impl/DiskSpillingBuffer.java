@@ -0,0 +1,363 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+import com.amazonaws.services.kinesis.connectors.interfaces.IBuffer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * This class is an implementation of the IBuffer interface for large flush windows. Records are kept
+ * on the heap until the buffered bytes cross the spill threshold; after that each record is encoded
+ * with a RecordCodec and appended to a memory-mapped segment file in the spill directory. The records
+ * returned by getRecords() are read back from the segment file as they are accessed, and are only
+ * valid until the buffer is cleared. Mapped segments are reused across flushes.
+ * <p>
+ * The spill directory and threshold are configured with bufferSpillDirectory and bufferSpillThreshold
+ * in the KinesisConnectorConfiguration. The segment file is closed and deleted by close(), which the
+ * KinesisConnectorRecordProcessor calls when it shuts down; the mapped segments are released when they are
+ * garbage collected. The buffer cannot be used after it is closed.
+ *
+ * @param <T>
+ */
+public class DiskSpillingBuffer<T> implements IBuffer<T>, Closeable {
+    private static final Log LOG = LogFactory.getLog(DiskSpillingBuffer.class);
+
+    /**
+     * Default size of a mapped segment of the spill file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Records never span segments, so their location is packed as (segment index << 32) | position
+    private static final int POSITION_BITS = 32;
+    private static final long POSITION_MASK = 0xFFFFFFFFL;
+
+    private final long bytesPerFlush;
+    private final long numMessagesToBuffer;
+    private final long millisecondsToBuffer;
+    private final long spillThreshold;
+    private final int segmentSize;
+    private final RecordCodec<T> codec;
+    private final File spillFile;
+    private final FileChannel channel;
+
+    private final List<T> memoryRecords;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private final SpilledRecordList records = new SpilledRecordList();
+    private long mappedBytes;
+    private long[] spilledLocations = new long[1024];
+    private int numSpilled;
+    private int writeSegment;
+
+    private long byteCount;
+
+    private String firstSequenceNumber;
+    private String lastSequenceNumber;
+
+    private long previousFlushTimeMillisecond;
+    // Read by the emit thread while the record processor shuts down the buffer
+    private volatile boolean closed;
+
+    public DiskSpillingBuffer(KinesisConnectorConfiguration configuration, RecordCodec<T> codec) throws IOException {
+        this(configuration, codec, new File(configuration.BUFFER_SPILL_DIRECTORY), configuration.BUFFER_SPILL_THRESHOLD,
+                DEFAULT_SEGMENT_SIZE);
+    }
+
+    public DiskSpillingBuffer(KinesisConnectorConfiguration configuration,
+            RecordCodec<T> codec,
+            File spillDirectory,
+            long spillThreshold,
+            int segmentSize) throws IOException {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be greater than zero");
+        }
+        bytesPerFlush = configuration.BUFFER_BYTE_SIZE_LIMIT;
+        numMessagesToBuffer = configuration.BUFFER_RECORD_COUNT_LIMIT;
+        millisecondsToBuffer = configuration.BUFFER_MILLISECONDS_LIMIT;
+        this.spillThreshold = spillThreshold;
+        this.segmentSize = segmentSize;
+        this.codec = codec;
+        memoryRecords = new ArrayList<T>(BasicMemoryBuffer.getInitialCapacity(numMessagesToBuffer));
+        spillFile = File.createTempFile("kinesis-buffer-", ".spill", spillDirectory);
+        try {
+            channel = new RandomAccessFile(spillFile, "rw").getChannel();
+        } catch (IOException e) {
+            spillFile.delete();
+            throw e;
+        }
+        previousFlushTimeMillisecond = getCurrentTimeMilliseconds();
+    }
+
+    @Override
+    public long getBytesToBuffer() {
+        return bytesPerFlush;
+    }
+
+    @Override
+    public long getNumRecordsToBuffer() {
+        return numMessagesToBuffer;
+    }
+
+    @Override
+    public long getMillisecondsToBuffer() {
+        return millisecondsToBuffer;
+    }
+
+    @Override
+    public void consumeRecord(T record, int recordSize, String sequenceNumber) {
+        if (records.isEmpty()) {
+            firstSequenceNumber = sequenceNumber;
+        }
+        // Once spilling starts, every later record is spilled to keep the records in order
+        if (numSpilled > 0 || byteCount + recordSize > spillThreshold) {
+            spill(record);
+        } else {
+            memoryRecords.add(record);
+        }
+        lastSequenceNumber = sequenceNumber;
+        byteCount += recordSize;
+    }
+
+    private void spill(T record) {
+        checkOpen();
+        try {
+            byte[] data = codec.encode(record);
+            int length = 4 + data.length;
+            MappedByteBuffer segment = segmentFor(length);
+            int position = segment.position();
+            segment.putInt(data.length);
+            segment.put(data);
+            if (numSpilled == spilledLocations.length) {
+                spilledLocations = Arrays.copyOf(spilledLocations, numSpilled * 2);
+            }
+            spilledLocations[numSpilled++] = ((long) writeSegment << POSITION_BITS) | position;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to spill record to " + spillFile, e);
+        }
+    }
+
+    /**
+     * Returns the segment to append a record of the given length to, mapping a new segment at the end
+     * of the file if no existing segment has room.
+     */
+    private MappedByteBuffer segmentFor(int length) throws IOException {
+        while (writeSegment < segments.size()) {
+            MappedByteBuffer segment = segments.get(writeSegment);
+            if (segment.remaining() >= length) {
+                return segment;
+            }
+            writeSegment++;
+        }
+        int size = Math.max(segmentSize, length);
+        MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, mappedBytes, size);
+        mappedBytes += size;
+        segments.add(segment);
+        LOG.debug("Mapped " + size + " bytes of spill file " + spillFile + " (" + mappedBytes + " bytes total)");
+        return segment;
+    }
+
+    private T readSpilled(int index) {
+        checkOpen();
+        long location = spilledLocations[index];
+        ByteBuffer view = segments.get((int) (location >>> POSITION_BITS)).duplicate();
+        view.position((int) (location & POSITION_MASK));
+        byte[] data = new byte[view.getInt()];
+        view.get(data);
+        try {
+            return codec.decode(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read spilled record from " + spillFile, e);
+        }
+    }
+
+    @Override
+    public void clear() {
+        memoryRecords.clear();
+        for (MappedByteBuffer segment : segments) {
+            segment.clear();
+        }
+        numSpilled = 0;
+        writeSegment = 0;
+        byteCount = 0;
+        previousFlushTimeMillisecond = getCurrentTimeMilliseconds();
+    }
+
+    @Override
+    public String getFirstSequenceNumber() {
+        return firstSequenceNumber;
+    }
+
+    @Override
+    public String getLastSequenceNumber() {
+        return lastSequenceNumber;
+    }
+
+    /**
+     * Flushes once the number of records, the number of bytes or the time since the last flush exceeds its
+     * limit, like BasicMemoryBuffer.
+     */
+    @Override
+    public boolean shouldFlush() {
+        long timelapseMillisecond = getCurrentTimeMilliseconds() - previousFlushTimeMillisecond;
+        return (!records.isEmpty())
+                && ((records.size() >= getNumRecordsToBuffer()) || (byteCount >= getBytesToBuffer()) || (timelapseMillisecond >= getMillisecondsToBuffer()));
+    }
+
+    /**
+     * Returns the buffered records. Spilled records are decoded from the segment file each time they are
+     * accessed.
+     */
+    @Override
+    public List<T> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the number of records currently stored in the segment file
+     */
+    public int getNumSpilledRecords() {
+        return numSpilled;
+    }
+
+    /**
+     * Closes the segment file and deletes it. The records of the buffer are discarded, and the mapped
+     * segments are released once they are garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        memoryRecords.clear();
+        numSpilled = 0;
+        segments.clear();
+        try {
+            channel.close();
+        } finally {
+            // Some platforms cannot delete a file while it is mapped
+            if (!spillFile.delete()) {
+                LOG.warn("Unable to delete spill file " + spillFile + ". It is deleted when the JVM exits.");
+                spillFile.deleteOnExit();
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Buffer with spill file " + spillFile + " is closed");
+        }
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected long getCurrentTimeMilliseconds() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * In-memory records followed by the spilled records, in the order they were consumed.
+     */
+    private class SpilledRecordList extends AbstractList<T> {
+        @Override
+        public T get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            if (index < memoryRecords.size()) {
+                return memoryRecords.get(index);
+            }
+            return readSpilled(index - memoryRecords.size());
+        }
+
+        @Override
+        public int size() {
+            return memoryRecords.size() + numSpilled;
+        }
+    }
+
+    /**
+     * Encodes records to bytes for the segment file and decodes them back.
+     *
+     * @param <T>
+     */
+    public interface RecordCodec<T> {
+        byte[] encode(T record) throws IOException;
+
+        T decode(byte[] data) throws IOException;
+    }
+
+    /**
+     * Stores byte array records as they are.
+     */
+    public static class ByteArrayCodec implements RecordCodec<byte[]> {
+        @Override
+        public byte[] encode(byte[] record) {
+            return record;
+        }
+
+        @Override
+        public byte[] decode(byte[] data) {
+            return data;
+        }
+    }
+
+    /**
+     * Stores String records as UTF-8.
+     */
+    public static class StringCodec implements RecordCodec<String> {
+        @Override
+        public byte[] encode(String record) {
+            return record.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Stores records of the data model class as JSON.
+     *
+     * @param <T>
+     */
+    public static class JsonCodec<T> implements RecordCodec<T> {
+        private final ObjectMapper mapper = new ObjectMapper();
+        private final Class<T> recordClass;
+
+        public JsonCodec(Class<T> recordClass) {
+            this.recordClass = recordClass;
+        }
+
+        @Override
+        public byte[] encode(T record) throws IOException {
+            return mapper.writeValueAsBytes(record);
+        }
+
+        @Override
+        public T decode(byte[] data) throws IOException {
+            return mapper.readValue(data, recordClass);
+        }
+    }
+}
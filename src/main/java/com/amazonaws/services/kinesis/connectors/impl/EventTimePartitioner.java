@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.impl;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import com.amazonaws.services.kinesis.connectors.interfaces.IPartitioner;
+
+/**
+ * This class is an implementation of IPartitioner that partitions records by a UTC time read from each record,
+ * formatted with a SimpleDateFormat pattern. The default pattern produces hourly Hive-style partitions such as
+ * "dt=2016-01-01/hour=05". Subclasses read the event time of a record; records without one are written to the
+ * default partition of the emitter.
+ * <p>
+ * Because the partition only depends on the record, a retried record is written to the same partition.
+ *
+ * @param <T>
+ */
+public abstract class EventTimePartitioner<T> implements IPartitioner<T> {
+    public static final String DEFAULT_PATTERN = "'dt='yyyy-MM-dd'/hour='HH";
+
+    private final SimpleDateFormat format;
+
+    public EventTimePartitioner() {
+        this(DEFAULT_PATTERN);
+    }
+
+    public EventTimePartitioner(String pattern) {
+        format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    public synchronized String getPartition(T record) {
+        Long eventTime = getEventTimeMilliseconds(record);
+        return (eventTime == null) ? null : format.format(new Date(eventTime));
+    }
+
+    /**
+     * @param record
+     *        the record to partition
+     * @return the event time of the record in milliseconds since the epoch, or null if it has none
+     */
+    protected abstract Long getEventTimeMilliseconds(T record);
+}
@@ -11,7 +11,6 @@ import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.services.kinesis.connectors.BasicJsonTransformer;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * The JsonToByteArrayTransformer defines a BasicJsonTransformer with byte array for its output
@@ -27,7 +26,7 @@ public class JsonToByteArrayTransformer<T> extends BasicJsonTransformer<T, byte[
     @Override
     public byte[] fromClass(T record) throws IOException {
         try {
-            return new ObjectMapper().writeValueAsString(record).getBytes();
+            return writer.writeValueAsBytes(record);
         } catch (JsonProcessingException e) {
             String message = "Error parsing record to JSON";
             LOG.error(message, e);
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.impl;
+
+/**
+ * This class is an implementation of IPartitioner that partitions records by the UTC time at which they
+ * are emitted, formatted with a SimpleDateFormat pattern. The default pattern produces hourly Hive-style
+ * partitions such as "dt=2016-01-01/hour=05". Prefer an EventTimePartitioner when the records carry a
+ * timestamp, since the partition then does not depend on when a batch happens to be emitted.
+ * 
+ * @param <T>
+ */
+public class ProcessingTimePartitioner<T> extends EventTimePartitioner<T> {
+
+    public ProcessingTimePartitioner() {
+        super();
+    }
+
+    public ProcessingTimePartitioner(String pattern) {
+        super(pattern);
+    }
+
+    @Override
+    protected Long getEventTimeMilliseconds(T record) {
+        return getCurrentTimeMilliseconds();
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected long getCurrentTimeMilliseconds() {
+        return System.currentTimeMillis();
+    }
+}
@@ -4,6 +4,7 @@
  */
 package com.amazonaws.services.kinesis.connectors.impl;
 
+import com.amazonaws.services.kinesis.connectors.RecordData;
 import com.amazonaws.services.kinesis.connectors.interfaces.ITransformer;
 import com.amazonaws.services.kinesis.model.Record;
 
@@ -18,7 +19,7 @@ public class StringToStringTransformer implements ITransformer<String, String> {
 
     @Override
     public String toClass(Record record) {
-        return new String(record.getData().array());
+        return RecordData.asString(record);
     }
 
     @Override
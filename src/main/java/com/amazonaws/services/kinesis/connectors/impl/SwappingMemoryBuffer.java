@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.amazonaws.services.kinesis.connectors.FlushedBuffer;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+import com.amazonaws.services.kinesis.connectors.interfaces.ISwappableBuffer;
+
+/**
+ * This class is an in-memory implementation of the ISwappableBuffer interface that keeps a small pool
+ * of record lists. Records are consumed into the active list; swap() seals the active list and takes
+ * an empty list from the pool in constant time, so records can be consumed while the sealed list is
+ * being emitted. Recycled lists are cleared and returned to the pool, keeping their capacity across
+ * flushes.
+ * <p>
+ * It uses the same record count, byte size and time limits as BasicMemoryBuffer. Use it with asyncEmit
+ * enabled in the KinesisConnectorConfiguration, where the number of buffers should be at least one more
+ * than asyncEmitMaxInFlight to avoid allocating new lists.
+ *
+ * @param <T>
+ */
+public class SwappingMemoryBuffer<T> implements ISwappableBuffer<T> {
+
+    private final long bytesPerFlush;
+    private final long numMessagesToBuffer;
+    private final long millisecondsToBuffer;
+    private final int initialCapacity;
+
+    // Spare record lists. Sealed lists are recycled from the emitting thread.
+    private final BlockingQueue<List<T>> pool;
+
+    private List<T> buffer;
+    private long byteCount;
+
+    private String firstSequenceNumber;
+    private String lastSequenceNumber;
+
+    private long previousFlushTimeMillisecond;
+
+    /**
+     * @param configuration
+     *        the buffer limits
+     * @param numBuffers
+     *        number of record lists to keep, including the active one
+     */
+    public SwappingMemoryBuffer(KinesisConnectorConfiguration configuration, int numBuffers) {
+        if (numBuffers < 2) {
+            throw new IllegalArgumentException("numBuffers must be at least 2");
+        }
+        bytesPerFlush = configuration.BUFFER_BYTE_SIZE_LIMIT;
+        numMessagesToBuffer = configuration.BUFFER_RECORD_COUNT_LIMIT;
+        millisecondsToBuffer = configuration.BUFFER_MILLISECONDS_LIMIT;
+        initialCapacity = BasicMemoryBuffer.getInitialCapacity(numMessagesToBuffer);
+        pool = new ArrayBlockingQueue<List<T>>(numBuffers - 1);
+        for (int i = 0; i < numBuffers - 1; i++) {
+            pool.offer(new ArrayList<T>(initialCapacity));
+        }
+        buffer = new ArrayList<T>(initialCapacity);
+        previousFlushTimeMillisecond = getCurrentTimeMilliseconds();
+    }
+
+    /**
+     * Keeps one record list per pending asynchronous emit plus the active one.
+     *
+     * @param configuration
+     *        the buffer limits and asyncEmitMaxInFlight
+     */
+    public SwappingMemoryBuffer(KinesisConnectorConfiguration configuration) {
+        this(configuration, Math.max(1, configuration.ASYNC_EMIT_MAX_IN_FLIGHT) + 1);
+    }
+
+    @Override
+    public long getBytesToBuffer() {
+        return bytesPerFlush;
+    }
+
+    @Override
+    public long getNumRecordsToBuffer() {
+        return numMessagesToBuffer;
+    }
+
+    @Override
+    public long getMillisecondsToBuffer() {
+        return millisecondsToBuffer;
+    }
+
+    @Override
+    public void consumeRecord(T record, int recordSize, String sequenceNumber) {
+        if (buffer.isEmpty()) {
+            firstSequenceNumber = sequenceNumber;
+        }
+        lastSequenceNumber = sequenceNumber;
+        buffer.add(record);
+        byteCount += recordSize;
+    }
+
+    @Override
+    public void clear() {
+        buffer.clear();
+        reset();
+    }
+
+    @Override
+    public FlushedBuffer<T> swap() {
+        SealedRecords<T> sealed = new SealedRecords<T>(this, buffer);
+        List<T> next = pool.poll();
+        buffer = (next != null) ? next : new ArrayList<T>(initialCapacity);
+        reset();
+        return sealed;
+    }
+
+    @Override
+    public void recycle(FlushedBuffer<T> flushed) {
+        if (!(flushed instanceof SealedRecords)) {
+            throw new IllegalArgumentException("Records were not obtained from this buffer");
+        }
+        List<T> storage = ((SealedRecords<T>) flushed).storage;
+        storage.clear();
+        // Drop the list if the pool is already full
+        pool.offer(storage);
+    }
+
+    private void reset() {
+        byteCount = 0;
+        previousFlushTimeMillisecond = getCurrentTimeMilliseconds();
+    }
+
+    @Override
+    public String getFirstSequenceNumber() {
+        return firstSequenceNumber;
+    }
+
+    @Override
+    public String getLastSequenceNumber() {
+        return lastSequenceNumber;
+    }
+
+    /**
+     * Flushes once the number of records, the number of bytes or the time since the last flush exceeds its
+     * limit, like BasicMemoryBuffer.
+     */
+    @Override
+    public boolean shouldFlush() {
+        long timelapseMillisecond = getCurrentTimeMilliseconds() - previousFlushTimeMillisecond;
+        return (!buffer.isEmpty())
+                && ((buffer.size() >= getNumRecordsToBuffer()) || (byteCount >= getBytesToBuffer()) || (timelapseMillisecond >= getMillisecondsToBuffer()));
+    }
+
+    @Override
+    public List<T> getRecords() {
+        return buffer;
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected long getCurrentTimeMilliseconds() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Sealed records that keep a reference to their backing list so it can be recycled.
+     */
+    private static class SealedRecords<T> extends FlushedBuffer<T> {
+        private final List<T> storage;
+
+        SealedRecords(SwappingMemoryBuffer<T> source, List<T> storage) {
+            super(source, storage);
+            this.storage = storage;
+        }
+    }
+}
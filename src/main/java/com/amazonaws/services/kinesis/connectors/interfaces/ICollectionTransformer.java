@@ -13,6 +13,8 @@ import com.amazonaws.services.kinesis.model.Record;
  * ICollectionTransformer is used to transform data from an Amazon Kinesis Record (byte array) to
  * a collection of the data model class (T) for processing in the application and from the
  * data model class to the output type (U) for the emitter.
+ * <p>
+ * As with ITransformer, read the data of the record with RecordData.
  * 
  * @param <T>
  *        the data type stored in the record
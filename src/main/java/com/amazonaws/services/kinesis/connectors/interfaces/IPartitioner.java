@@ -0,0 +1,25 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.interfaces;
+
+/**
+ * The IPartitioner is used by partitioning emitters to route each record of a batch to a partition.
+ * Records of the same partition are written together, for example under a common Amazon S3 prefix.
+ * 
+ * @param <T>
+ *        the data type to emit
+ */
+public interface IPartitioner<T> {
+
+    /**
+     * Returns the partition of a record. For Amazon S3, the partition is used as a key prefix and
+     * should be in the Hive style, for example "dt=2016-01-01/tenant=example".
+     * 
+     * @param record
+     * @return the partition the record belongs to
+     */
+    public String getPartition(T record);
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.interfaces;
+
+import com.amazonaws.services.kinesis.connectors.FlushedBuffer;
+
+/**
+ * ISwappableBuffer defines an IBuffer that can hand off its contents without copying them. When the
+ * buffer should be flushed, the KinesisConnectorRecordProcessor calls swap() to seal the stored records
+ * and continue consuming records into an empty record list. Once the sealed records have been emitted,
+ * the record processor returns them with recycle() so their storage can be reused.
+ *
+ * @param <T>
+ *        the data type stored in the record
+ */
+public interface ISwappableBuffer<T> extends IBuffer<T> {
+
+    /**
+     * Seals the records currently stored in the buffer, together with their first and last sequence
+     * numbers, and replaces them with an empty record list. After this call the buffer behaves as if it
+     * had been cleared.
+     *
+     * @return the sealed records
+     */
+    public FlushedBuffer<T> swap();
+
+    /**
+     * Returns records obtained from swap() once they are no longer needed. The records must not be used
+     * after this call.
+     *
+     * @param flushed
+     *        records previously returned by swap()
+     */
+    public void recycle(FlushedBuffer<T> flushed);
+}
@@ -12,6 +12,9 @@ import com.amazonaws.services.kinesis.model.Record;
  * ITransformer is used to transform data from a Record (byte array) to the data model class (T) for
  * processing in the application and from the data model class to the output type (U) for the
  * emitter.
+ * <p>
+ * The data of the record lies between the position and the limit of its ByteBuffer. Use RecordData to
+ * read it without assuming the buffer is backed by an array of exactly the data.
  * 
  * @param <T>
  *        the data type stored in the record
@@ -4,15 +4,14 @@
  */
 package com.amazonaws.services.kinesis.connectors.redshift;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,6 +19,7 @@ import org.apache.commons.logging.LogFactory;
 import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
 import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
 import com.amazonaws.services.kinesis.connectors.s3.S3Emitter;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 
 /**
  * This class is an implementation of IEmitter that emits records into Amazon Redshift one by one. It
@@ -34,6 +34,18 @@ import com.amazonaws.services.kinesis.connectors.s3.S3Emitter;
  * <li>data table and key column (data table stores items from the manifest copy)</li>
  * <li>file table and key column (file table is used to store file names to prevent duplicate entries)</li>
  * <li>the delimiter used for string parsing when inserting entries into Redshift</li>
+ * <li>the copy format, if the files are not delimited text</li>
+ * </ul>
+ * <br>
+ * If redshiftCopyCoalesceWindow is set, the files of all RedshiftBasicEmitters of the JVM that are flushed within
+ * the window are copied together through a manifest by the RedshiftCopyCoalescer.
+ * <br>
+ * If redshiftUpsertKeyColumns is set, files are copied into a temporary staging table and merged into the data
+ * table in one transaction, replacing the rows with the same key columns. Of the rows of one copy with the same key,
+ * the one with the highest redshiftUpsertOrderColumn is kept.
+ * <br>
+ * Records that cannot be encoded into the file, such as rows that do not match redshiftCopyColumnTypes, are
+ * returned as unprocessed; the file of the other records is still copied, and only once.
  * <br>
  * NOTE: The Amazon S3 bucket and the Amazon Redshift cluster need to be in the same region.
  */
@@ -41,44 +53,75 @@ public class RedshiftBasicEmitter extends S3Emitter {
     private static final Log LOG = LogFactory.getLog(RedshiftBasicEmitter.class);
     private final String s3bucket;
     private final String redshiftTable;
-    private final String redshiftURL;
     private final char redshiftDelimiter;
-    private final Properties loginProperties;
+    private final RedshiftConnectionPool connectionPool;
     private final String accessKey;
     private final String secretKey;
+    private final RedshiftCopyOptions copyOptions;
+    private final RedshiftCopyCoalescer copyCoalescer;
+    private final RedshiftUpsert upsert;
+    private final RedshiftCopyCoalescer.ManifestCopier manifestCopier = new RedshiftCopyCoalescer.ManifestCopier() {
+        @Override
+        public void copyManifest(List<String> s3Files) throws IOException, SQLException {
+            RedshiftBasicEmitter.this.copyManifest(s3Files);
+        }
+    };
+    private static final String MANIFEST_PREFIX = "manifests/";
+    private boolean isShutdown;
 
     public RedshiftBasicEmitter(KinesisConnectorConfiguration configuration) {
         super(configuration);
         s3bucket = configuration.S3_BUCKET;
         redshiftTable = configuration.REDSHIFT_DATA_TABLE;
         redshiftDelimiter = configuration.REDSHIFT_DATA_DELIMITER;
-        redshiftURL = configuration.REDSHIFT_URL;
-        loginProperties = new Properties();
-        loginProperties.setProperty("user", configuration.REDSHIFT_USERNAME);
-        loginProperties.setProperty("password", configuration.REDSHIFT_PASSWORD);
         accessKey = configuration.AWS_CREDENTIALS_PROVIDER.getCredentials().getAWSAccessKeyId();
         secretKey = configuration.AWS_CREDENTIALS_PROVIDER.getCredentials().getAWSSecretKey();
+        copyOptions = new RedshiftCopyOptions(configuration.REDSHIFT_COPY_FORMAT, redshiftDelimiter, compression);
+        upsert = RedshiftUpsert.forKeyColumns(redshiftTable, configuration.REDSHIFT_UPSERT_KEY_COLUMNS,
+                configuration.REDSHIFT_UPSERT_ORDER_COLUMN);
+        connectionPool = RedshiftConnectionPool.getPool(configuration);
+        if (configuration.REDSHIFT_COPY_COALESCE_WINDOW > 0) {
+            copyCoalescer = RedshiftCopyCoalescer.getCoalescer(configuration);
+        } else {
+            copyCoalescer = null;
+        }
     }
 
     @Override
     public List<byte[]> emit(final UnmodifiableBuffer<byte[]> buffer) throws IOException {
-        List<byte[]> failed = super.emit(buffer);
-        if (!failed.isEmpty()) {
+        String s3File = getS3FileName(buffer.getFirstSequenceNumber(), buffer.getLastSequenceNumber());
+        // Records that cannot be encoded are left out of the file and returned without copying it again on retry
+        List<byte[]> rejected = new ArrayList<byte[]>();
+        try {
+            if (!upload(s3File, buffer.getRecords(), rejected)) {
+                return rejected;
+            }
+        } catch (Exception e) {
+            LOG.error("Caught exception when uploading file " + getS3URI(s3File)
+                    + " to Amazon S3. Failing this emit attempt.", e);
             return buffer.getRecords();
         }
+        if (copyCoalescer != null) {
+            try {
+                copyCoalescer.copy(s3File, manifestCopier);
+                return rejected;
+            } catch (IOException e) {
+                LOG.error(e);
+                return buffer.getRecords();
+            }
+        }
         Connection conn = null;
         try {
-            conn = DriverManager.getConnection(redshiftURL, loginProperties);
-            String s3File = getS3FileName(buffer.getFirstSequenceNumber(), buffer.getLastSequenceNumber());
-            executeStatement(generateCopyStatement(s3File), conn);
+            conn = connectionPool.getConnection();
+            copy(conn, s3File, false);
             LOG.info("Successfully copied " + getNumberOfCopiedRecords(conn)
                     + " records to Amazon Redshift from file s3://" + s3Bucket + "/" + s3File);
-            return Collections.emptyList();
+            return rejected;
         } catch (Exception e) {
             LOG.error(e);
             return buffer.getRecords();
         } finally {
-            closeConnection(conn);
+            connectionPool.release(conn);
         }
     }
 
@@ -90,25 +133,79 @@ public class RedshiftBasicEmitter extends S3Emitter {
     @Override
     public void shutdown() {
         super.shutdown();
+        if (!isShutdown) {
+            isShutdown = true;
+            if (copyCoalescer != null) {
+                RedshiftCopyCoalescer.releaseCoalescer(copyCoalescer);
+            }
+            RedshiftConnectionPool.releasePool(connectionPool);
+        }
     }
 
-    private void closeConnection(Connection conn) {
+    /**
+     * Writes a manifest of the files to Amazon S3 and copies the files into Amazon Redshift in one COPY.
+     */
+    private void copyManifest(List<String> s3Files) throws IOException, SQLException {
+        String manifestFile = MANIFEST_PREFIX + s3Files.get(0) + "-" + s3Files.size();
+        byte[] manifest = generateManifestFile(s3Files).getBytes();
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentLength(manifest.length);
+        s3client.putObject(s3Bucket, manifestFile, new ByteArrayInputStream(manifest), meta);
+        Connection conn = null;
         try {
-            if (conn != null && !conn.isClosed()) {
-                conn.close();
-            }
-        } catch (Exception e) {
-            LOG.error(e);
+            conn = connectionPool.getConnection();
+            copy(conn, manifestFile, true);
+            LOG.info("Successfully copied " + getNumberOfCopiedRecords(conn) + " records to Amazon Redshift from "
+                    + s3Files.size() + " files using manifest s3://" + s3Bucket + "/" + manifestFile);
+        } finally {
+            connectionPool.release(conn);
         }
     }
 
+    private String generateManifestFile(List<String> s3Files) {
+        StringBuilder s = new StringBuilder();
+        s.append("{\n");
+        s.append("\t\"entries\": [\n");
+        for (int i = 0; i < s3Files.size(); i++) {
+            s.append("\t\t{\"url\":\"s3://" + s3Bucket + "/" + s3Files.get(i) + "\",\"mandatory\":true}");
+            s.append((i < s3Files.size() - 1) ? ",\n" : "\n");
+        }
+        s.append("\t]\n");
+        s.append("}\n");
+        return s.toString();
+    }
+
+    /**
+     * Copies a file or manifest into the data table, or merges it through the staging table in upsert mode.
+     */
+    private void copy(Connection conn, String s3File, boolean manifest) throws SQLException {
+        if (upsert == null) {
+            executeStatement(generateCopyStatement(redshiftTable, s3File, manifest), conn);
+            return;
+        }
+        conn.setAutoCommit(false);
+        executeStatement(upsert.getCreateStagingTableStatement(), conn);
+        executeStatement(generateCopyStatement(upsert.getStagingTable(), s3File, manifest), conn);
+        for (String statement : upsert.getMergeStatements(conn)) {
+            executeStatement(statement, conn);
+        }
+        conn.commit();
+    }
+
     protected String generateCopyStatement(String s3File) {
+        return generateCopyStatement(redshiftTable, s3File, false);
+    }
+
+    private String generateCopyStatement(String table, String s3File, boolean manifest) {
         StringBuilder exec = new StringBuilder();
-        exec.append("COPY " + redshiftTable + " ");
+        exec.append("COPY " + table + " ");
         exec.append("FROM 's3://" + s3bucket + "/" + s3File + "' ");
         exec.append("CREDENTIALS 'aws_access_key_id=" + accessKey);
         exec.append(";aws_secret_access_key=" + secretKey + "' ");
-        exec.append("DELIMITER '" + redshiftDelimiter + "'");
+        exec.append(copyOptions.toString());
+        if (manifest) {
+            exec.append(" MANIFEST");
+        }
         exec.append(";");
         return exec.toString();
     }
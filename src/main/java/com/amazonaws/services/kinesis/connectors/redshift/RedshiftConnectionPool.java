@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+/**
+ * This class is a bounded pool of JDBC connections to Amazon Redshift, shared by all Amazon Redshift emitters
+ * of a JVM that connect to the same URL with the same credentials and pool settings. At most redshiftMaxConnections connections are open
+ * or in use at a time; callers wait for a connection once the limit is reached. Idle connections are validated
+ * before they are reused and are closed once they have been idle for redshiftConnectionIdleTimeout
+ * milliseconds.
+ * <p>
+ * Connections must be returned with release(). A connection is returned with auto-commit enabled, and any
+ * transaction still open on it is rolled back.
+ * <p>
+ * The shared pools are counted by the emitters that use them. The idle connections of a pool are closed when the
+ * last of its emitters releases it, and connections returned after that are closed instead of pooled.
+ */
+public class RedshiftConnectionPool {
+    private static final Log LOG = LogFactory.getLog(RedshiftConnectionPool.class);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    // Pools by Amazon Redshift URL, credentials, redshiftMaxConnections and redshiftConnectionIdleTimeout,
+    // guarded by the class
+    private static final Map<List<Object>, RedshiftConnectionPool> POOLS =
+            new HashMap<List<Object>, RedshiftConnectionPool>();
+
+    private final String url;
+    private final Properties loginProperties;
+    private final long idleTimeoutMillis;
+    private final Semaphore permits;
+    // Most recently released connections first, guarded by this
+    private final Deque<IdleConnection> idleConnections = new ArrayDeque<IdleConnection>();
+    // Key of a shared pool and the number of emitters using it, guarded by the class
+    private List<Object> key;
+    private int users;
+    // Guarded by this
+    private boolean closed;
+
+    /**
+     * Returns the pool for the Amazon Redshift URL, credentials and pool settings of the configuration, creating it
+     * on first use. Each call must be matched by a call to releasePool().
+     *
+     * @param configuration
+     *        the Amazon Redshift URL, credentials and pool limits
+     * @return the shared pool
+     */
+    public static synchronized RedshiftConnectionPool getPool(KinesisConnectorConfiguration configuration) {
+        List<Object> key = Arrays.<Object> asList(configuration.REDSHIFT_URL, configuration.REDSHIFT_USERNAME,
+                configuration.REDSHIFT_PASSWORD, configuration.REDSHIFT_MAX_CONNECTIONS,
+                configuration.REDSHIFT_CONNECTION_IDLE_TIMEOUT);
+        RedshiftConnectionPool pool = POOLS.get(key);
+        if (pool == null) {
+            Properties loginProperties = new Properties();
+            loginProperties.setProperty("user", configuration.REDSHIFT_USERNAME);
+            loginProperties.setProperty("password", configuration.REDSHIFT_PASSWORD);
+            pool = new RedshiftConnectionPool(configuration.REDSHIFT_URL, loginProperties,
+                    configuration.REDSHIFT_MAX_CONNECTIONS, configuration.REDSHIFT_CONNECTION_IDLE_TIMEOUT);
+            pool.key = key;
+            POOLS.put(key, pool);
+        }
+        pool.users++;
+        return pool;
+    }
+
+    /**
+     * Releases a pool returned by getPool() and closes it if no other emitter uses it.
+     *
+     * @param pool
+     *        the shared pool
+     */
+    public static synchronized void releasePool(RedshiftConnectionPool pool) {
+        if (--pool.users == 0) {
+            POOLS.remove(pool.key);
+            pool.close();
+        }
+    }
+
+    public RedshiftConnectionPool(String url, Properties loginProperties, int maxConnections, long idleTimeoutMillis) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be greater than zero");
+        }
+        this.url = url;
+        this.loginProperties = loginProperties;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Returns a valid idle connection, or opens a new one. Waits while the maximum number of connections is in use.
+     *
+     * @return a connection that must be returned with release()
+     * @throws SQLException
+     *         if no connection could be opened or the thread was interrupted while waiting
+     */
+    public Connection getConnection() throws SQLException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for an Amazon Redshift connection", e);
+        }
+        try {
+            Connection conn;
+            while ((conn = pollIdleConnection()) != null) {
+                if (isValid(conn)) {
+                    return conn;
+                }
+                closeQuietly(conn);
+            }
+            return openConnection();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Connections that are closed or cannot be reset are discarded.
+     *
+     * @param conn
+     *        a connection obtained from getConnection(), or null
+     */
+    public void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            if (conn.isClosed()) {
+                return;
+            }
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            synchronized (this) {
+                if (!closed) {
+                    idleConnections.addFirst(new IdleConnection(conn, getCurrentTimeMilliseconds()));
+                    evictIdleConnections();
+                    return;
+                }
+            }
+            closeQuietly(conn);
+        } catch (SQLException e) {
+            LOG.warn("Discarding Amazon Redshift connection that could not be reset.", e);
+            closeQuietly(conn);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle connections. Connections in use are closed when they are returned.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (IdleConnection idle : idleConnections) {
+            closeQuietly(idle.conn);
+        }
+        idleConnections.clear();
+    }
+
+    /**
+     * @return the number of idle connections in the pool
+     */
+    public synchronized int getNumIdleConnections() {
+        return idleConnections.size();
+    }
+
+    private synchronized Connection pollIdleConnection() {
+        evictIdleConnections();
+        IdleConnection idle = idleConnections.pollFirst();
+        return (idle == null) ? null : idle.conn;
+    }
+
+    // Callers must hold the lock on this pool
+    private void evictIdleConnections() {
+        long now = getCurrentTimeMilliseconds();
+        Iterator<IdleConnection> oldestFirst = idleConnections.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            IdleConnection idle = oldestFirst.next();
+            if (now - idle.releasedAt < idleTimeoutMillis) {
+                return;
+            }
+            oldestFirst.remove();
+            closeQuietly(idle.conn);
+        }
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(url, loginProperties);
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected long getCurrentTimeMilliseconds() {
+        return System.currentTimeMillis();
+    }
+
+    private boolean isValid(Connection conn) {
+        try {
+            return conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOG.warn("Unable to close Amazon Redshift connection.", e);
+        }
+    }
+
+    private static class IdleConnection {
+        private final Connection conn;
+        private final long releasedAt;
+
+        IdleConnection(Connection conn, long releasedAt) {
+            this.conn = conn;
+            this.releasedAt = releasedAt;
+        }
+    }
+}
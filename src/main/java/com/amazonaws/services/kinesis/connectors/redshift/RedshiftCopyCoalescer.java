@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+/**
+ * This class merges the Amazon Redshift copies of files flushed by the RedshiftBasicEmitters of a JVM into a
+ * single manifest copy. The first file submitted opens a batch that collects files for
+ * redshiftCopyCoalesceWindow milliseconds; the batch is then copied by one of the submitting emitters, and
+ * every emitter whose file was in the batch returns once the copy has committed or failed.
+ * <p>
+ * Batches are copied one at a time on a daemon thread, so concurrent flushes of many shards result in a few
+ * larger COPY transactions instead of many small ones that serialize on commit.
+ * <p>
+ * The shared coalescers are counted by the emitters that use them. The thread of a coalescer is shut down when the
+ * last of its emitters releases it, after it has copied the batch that is still open.
+ */
+public class RedshiftCopyCoalescer {
+    private static final Log LOG = LogFactory.getLog(RedshiftCopyCoalescer.class);
+    // Coalescers by Amazon Redshift URL, table and Amazon S3 bucket, guarded by the class
+    private static final Map<String, RedshiftCopyCoalescer> COALESCERS = new HashMap<String, RedshiftCopyCoalescer>();
+
+    private final long windowMillis;
+    private final ScheduledExecutorService scheduler;
+    // Key of a shared coalescer and the number of emitters using it, guarded by the class
+    private String key;
+    private int users;
+    // Batch collecting files, guarded by this
+    private Batch openBatch;
+
+    /**
+     * Copies the files of a batch into Amazon Redshift with one manifest copy.
+     */
+    public interface ManifestCopier {
+        void copyManifest(List<String> s3Files) throws Exception;
+    }
+
+    /**
+     * Returns the coalescer for the Amazon Redshift URL, table and Amazon S3 bucket of the configuration, creating
+     * it on first use. Each call must be matched by a call to releaseCoalescer().
+     *
+     * @param configuration
+     *        the Amazon Redshift and Amazon S3 settings and the coalesce window
+     * @return the shared coalescer
+     */
+    public static synchronized RedshiftCopyCoalescer getCoalescer(KinesisConnectorConfiguration configuration) {
+        String key = configuration.REDSHIFT_URL + "|" + configuration.REDSHIFT_DATA_TABLE + "|"
+                + configuration.S3_BUCKET;
+        RedshiftCopyCoalescer coalescer = COALESCERS.get(key);
+        if (coalescer == null) {
+            coalescer = new RedshiftCopyCoalescer(configuration.REDSHIFT_COPY_COALESCE_WINDOW);
+            coalescer.key = key;
+            COALESCERS.put(key, coalescer);
+        }
+        coalescer.users++;
+        return coalescer;
+    }
+
+    /**
+     * Releases a coalescer returned by getCoalescer() and shuts it down if no other emitter uses it.
+     *
+     * @param coalescer
+     *        the shared coalescer
+     */
+    public static synchronized void releaseCoalescer(RedshiftCopyCoalescer coalescer) {
+        if (--coalescer.users == 0) {
+            COALESCERS.remove(coalescer.key);
+            coalescer.shutdown();
+        }
+    }
+
+    public RedshiftCopyCoalescer(long windowMillis) {
+        this.windowMillis = windowMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redshift-copy-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Shuts down the thread of the coalescer once the open batch has been copied.
+     */
+    public void shutdown() {
+        // Delayed tasks still run after shutdown, so the open batch is copied
+        scheduler.shutdown();
+    }
+
+    /**
+     * Adds a file to the open batch and waits until the batch has been copied.
+     *
+     * @param s3File
+     *        the Amazon S3 key of the file to copy
+     * @param copier
+     *        copies the batch if it is the first file of the batch
+     * @throws IOException
+     *         if the copy of the batch failed or the thread was interrupted while waiting
+     */
+    public void copy(String s3File, ManifestCopier copier) throws IOException {
+        add(s3File, copier).await();
+    }
+
+    /**
+     * Adds a file to the open batch, opening a new batch if there is none.
+     *
+     * @return the batch of the file
+     */
+    synchronized Batch add(String s3File, ManifestCopier copier) {
+        if (openBatch == null) {
+            final Batch newBatch = new Batch(copier);
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    copyBatch(newBatch);
+                }
+            }, windowMillis);
+            openBatch = newBatch;
+        }
+        openBatch.files.add(s3File);
+        return openBatch;
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected void schedule(Runnable task, long delayMillis) {
+        scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void copyBatch(Batch batch) {
+        synchronized (this) {
+            if (openBatch == batch) {
+                openBatch = null;
+            }
+        }
+        try {
+            batch.copier.copyManifest(batch.files);
+        } catch (Exception e) {
+            LOG.error("Coalesced Amazon Redshift copy of " + batch.files.size() + " files failed.", e);
+            batch.failure = e;
+        } finally {
+            batch.done.countDown();
+        }
+    }
+
+    static class Batch {
+        private final ManifestCopier copier;
+        private final List<String> files = new ArrayList<String>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception failure;
+
+        Batch(ManifestCopier copier) {
+            this.copier = copier;
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for coalesced Amazon Redshift copy", e);
+            }
+            if (failure != null) {
+                throw new IOException("Coalesced Amazon Redshift copy failed", failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import com.amazonaws.services.kinesis.connectors.s3.S3Compression;
+
+/**
+ * The data format options of the Amazon Redshift COPY statements issued by the Amazon Redshift emitters.
+ * Without a copy format, files are read as delimited text. With a copy format such as PARQUET or
+ * JSON 'auto', the statement uses FORMAT AS instead of DELIMITER. Columnar files are compressed
+ * internally, so no compression option is added for them.
+ */
+class RedshiftCopyOptions {
+    private final String format;
+    private final char delimiter;
+    private final S3Compression compression;
+
+    RedshiftCopyOptions(String format, char delimiter, S3Compression compression) {
+        this.format = (format == null || format.trim().isEmpty()) ? null : format.trim();
+        this.delimiter = delimiter;
+        this.compression = compression;
+    }
+
+    /**
+     * @return true if the files are in a columnar format that Amazon Redshift reads without DELIMITER or
+     *         compression options
+     */
+    boolean isColumnar() {
+        if (format == null) {
+            return false;
+        }
+        String upperCaseFormat = format.toUpperCase();
+        return upperCaseFormat.equals("PARQUET") || upperCaseFormat.equals("ORC");
+    }
+
+    /**
+     * @return the format and compression options, separated by spaces
+     */
+    @Override
+    public String toString() {
+        StringBuilder options = new StringBuilder();
+        if (format == null) {
+            options.append("DELIMITER '" + delimiter + "'");
+        } else {
+            options.append("FORMAT AS " + format);
+        }
+        if (!isColumnar() && compression.getCopyOption() != null) {
+            options.append(" " + compression.getCopyOption());
+        }
+        return options.toString();
+    }
+}
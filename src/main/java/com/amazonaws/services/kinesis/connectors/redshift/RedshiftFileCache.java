@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+/**
+ * This class keeps a local index of file keys that are known to be in the Amazon Redshift files table, shared by
+ * the RedshiftManifestEmitters of a JVM that use the same table. It starts empty and is updated with every file key
+ * the emitters copy or find in the table, so the emitters can leave these files out without querying the files table.
+ * The cache is not loaded from the files table, which keeps no copy time and would have to be read in full. The index only tells that a file key is in the table: other workers can copy
+ * files at any time, so any other file key must still be looked up in the files table within the COPY transaction.
+ * <p>
+ * File keys are stored as 64-bit MurmurHash2 hashes in one hash set per time bucket. A different file key is only
+ * taken for a known one if their hashes collide, which is about as likely as one in 2^64 divided by the number of
+ * cached keys. Buckets are dropped after redshiftFileCacheRetention milliseconds, which should be at least the
+ * retention period of the manifest stream: files that are older can no longer be replayed from the stream.
+ */
+public class RedshiftFileCache {
+    private static final Map<String, RedshiftFileCache> CACHES = new HashMap<String, RedshiftFileCache>();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NUM_BUCKETS = 24;
+
+    private final long retentionMillis;
+    private final long bucketMillis;
+    // Newest bucket first, guarded by this
+    private final Deque<Bucket> buckets = new ArrayDeque<Bucket>();
+
+    /**
+     * Returns the cache for the Amazon Redshift URL and files table of the configuration, creating it on first use.
+     *
+     * @param configuration
+     *        the Amazon Redshift settings and the cache retention
+     * @return the shared cache
+     */
+    public static synchronized RedshiftFileCache getCache(KinesisConnectorConfiguration configuration) {
+        String key = configuration.REDSHIFT_URL + "|" + configuration.REDSHIFT_FILE_TABLE;
+        RedshiftFileCache cache = CACHES.get(key);
+        if (cache == null) {
+            cache = new RedshiftFileCache(configuration.REDSHIFT_FILE_CACHE_RETENTION);
+            CACHES.put(key, cache);
+        }
+        return cache;
+    }
+
+    public RedshiftFileCache(long retentionMillis) {
+        if (retentionMillis <= 0) {
+            throw new IllegalArgumentException("retentionMillis must be greater than zero");
+        }
+        this.retentionMillis = retentionMillis;
+        this.bucketMillis = Math.max(1, retentionMillis / NUM_BUCKETS);
+    }
+
+    /**
+     * @param fileKey
+     *        the Amazon S3 key of a file
+     * @return true if the file is known to be in the files table, false if it must be looked up in the table
+     */
+    public synchronized boolean isKnownCopied(String fileKey) {
+        evictExpiredBuckets();
+        long hash = hash(fileKey);
+        for (Bucket bucket : buckets) {
+            if (bucket.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records file keys that have been committed to the files table.
+     *
+     * @param fileKeys
+     *        the Amazon S3 keys of the files
+     */
+    public synchronized void addAll(Collection<String> fileKeys) {
+        evictExpiredBuckets();
+        long now = getCurrentTimeMilliseconds();
+        Bucket current = buckets.peekFirst();
+        if (current == null || now - current.createdAt >= bucketMillis) {
+            current = new Bucket(now);
+            buckets.addFirst(current);
+        }
+        for (String fileKey : fileKeys) {
+            current.add(hash(fileKey));
+        }
+    }
+
+    // Callers must hold the lock on this cache
+    private void evictExpiredBuckets() {
+        long now = getCurrentTimeMilliseconds();
+        Iterator<Bucket> iterator = buckets.iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().createdAt >= retentionMillis) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected long getCurrentTimeMilliseconds() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * MurmurHash64A of the UTF-8 bytes of a file key.
+     */
+    static long hash(String fileKey) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        byte[] data = fileKey.getBytes(UTF_8);
+        int length = data.length;
+        long h = 0x9747b28cL ^ (length * m);
+        int numBlocks = length / 8;
+        for (int i = 0; i < numBlocks; i++) {
+            int offset = i * 8;
+            long k = (data[offset] & 0xffL)
+                    | (data[offset + 1] & 0xffL) << 8
+                    | (data[offset + 2] & 0xffL) << 16
+                    | (data[offset + 3] & 0xffL) << 24
+                    | (data[offset + 4] & 0xffL) << 32
+                    | (data[offset + 5] & 0xffL) << 40
+                    | (data[offset + 6] & 0xffL) << 48
+                    | (data[offset + 7] & 0xffL) << 56;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        int tail = numBlocks * 8;
+        switch (length - tail) {
+            case 7:
+                h ^= (data[tail + 6] & 0xffL) << 48;
+            case 6:
+                h ^= (data[tail + 5] & 0xffL) << 40;
+            case 5:
+                h ^= (data[tail + 4] & 0xffL) << 32;
+            case 4:
+                h ^= (data[tail + 3] & 0xffL) << 24;
+            case 3:
+                h ^= (data[tail + 2] & 0xffL) << 16;
+            case 2:
+                h ^= (data[tail + 1] & 0xffL) << 8;
+            case 1:
+                h ^= data[tail] & 0xffL;
+                h *= m;
+            default:
+                break;
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+
+    /**
+     * An open addressing hash set of file key hashes.
+     */
+    private static class Bucket {
+        private static final int INITIAL_CAPACITY = 1024;
+        // Marks an empty slot; the hash 0 is stored as 1
+        private static final long EMPTY = 0L;
+
+        private final long createdAt;
+        private long[] slots = new long[INITIAL_CAPACITY];
+        private int size;
+
+        Bucket(long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        void add(long hash) {
+            hash = (hash == EMPTY) ? 1 : hash;
+            // Keep the table at most half full
+            if (2 * (size + 1) > slots.length) {
+                long[] oldSlots = slots;
+                slots = new long[oldSlots.length * 2];
+                size = 0;
+                for (long oldHash : oldSlots) {
+                    if (oldHash != EMPTY) {
+                        insert(oldHash);
+                    }
+                }
+            }
+            insert(hash);
+        }
+
+        boolean contains(long hash) {
+            hash = (hash == EMPTY) ? 1 : hash;
+            int mask = slots.length - 1;
+            for (int i = (int) hash & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+                if (slots[i] == hash) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void insert(long hash) {
+            int mask = slots.length - 1;
+            int i = (int) hash & mask;
+            while (slots[i] != EMPTY) {
+                if (slots[i] == hash) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = hash;
+            size++;
+        }
+    }
+}
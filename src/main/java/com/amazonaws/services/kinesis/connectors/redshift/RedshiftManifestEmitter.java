@@ -7,15 +7,14 @@ package com.amazonaws.services.kinesis.connectors.redshift;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Properties;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -56,8 +55,17 @@ import com.amazonaws.services.s3.model.PutObjectRequest;
  * <li>file table and key column (file table is used to store file names to prevent duplicate entries)</li>
  * <li>mandatory flag for Amazon Redshift copy</li>
  * <li>the delimiter used for string parsing when inserting entries into Amazon Redshift</li>
+ * <li>the format and compression of the files written by the S3ManifestEmitter, if not delimited text</li>
  * </ul>
  * <br>
+ * If redshiftUpsertKeyColumns is set, the manifest copy goes into a temporary staging table that is merged into the
+ * data table within the same transaction, replacing the rows with the same key columns. Duplicate keys within the
+ * copied files are reduced to one row, ordered by redshiftUpsertOrderColumn.
+ * <br>
+ * If redshiftFileCacheRetention is set, file names are checked against a RedshiftFileCache before the file table
+ * is queried. Files the cache knows to be copied are left out without a query; all other files are still looked up
+ * in the file table within the copy transaction, since they may have been copied by another worker.
+ * <br>
  * NOTE: Amazon S3 bucket and Amazon Redshift table must be in the same region for Manifest Copy.
  */
 public class RedshiftManifestEmitter implements IEmitter<String> {
@@ -71,9 +79,14 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
     private final String s3Endpoint;
     private final AmazonS3Client s3Client;
     private final boolean copyMandatory;
-    private final Properties loginProps;
-    private final String redshiftURL;
+    private final RedshiftConnectionPool connectionPool;
+    private final RedshiftCopyOptions copyOptions;
+    private final RedshiftFileCache fileCache;
+    private final RedshiftUpsert upsert;
     private static final String MANIFEST_PREFIX = "manifests/";
+    // Number of file names bound to one statement on the file table
+    private static final int FILE_STATEMENT_CHUNK_SIZE = 500;
+    private boolean isShutdown;
 
     public RedshiftManifestEmitter(KinesisConnectorConfiguration configuration) {
         dataTable = configuration.REDSHIFT_DATA_TABLE;
@@ -88,10 +101,13 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
             s3Client.setEndpoint(s3Endpoint);
         }
         credentialsProvider = configuration.AWS_CREDENTIALS_PROVIDER;
-        loginProps = new Properties();
-        loginProps.setProperty("user", configuration.REDSHIFT_USERNAME);
-        loginProps.setProperty("password", configuration.REDSHIFT_PASSWORD);
-        redshiftURL = configuration.REDSHIFT_URL;
+        copyOptions = new RedshiftCopyOptions(configuration.REDSHIFT_COPY_FORMAT, dataDelimiter,
+                configuration.S3_COMPRESSION);
+        fileCache = (configuration.REDSHIFT_FILE_CACHE_RETENTION > 0) ? RedshiftFileCache.getCache(configuration)
+                : null;
+        upsert = RedshiftUpsert.forKeyColumns(dataTable, configuration.REDSHIFT_UPSERT_KEY_COLUMNS,
+                configuration.REDSHIFT_UPSERT_ORDER_COLUMN);
+        connectionPool = RedshiftConnectionPool.getPool(configuration);
     }
 
     @Override
@@ -102,7 +118,7 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
         String manifestFileName = getManifestFile(records);
         // Copy to Amazon Redshift using manifest file
         try {
-            conn = DriverManager.getConnection(redshiftURL, loginProps);
+            conn = connectionPool.getConnection();
             conn.setAutoCommit(false);
             List<String> deduplicatedRecords = checkForExistingFiles(conn, records);
             if (deduplicatedRecords.isEmpty()) {
@@ -122,6 +138,9 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
             LOG.info("Initiating Amazon Redshift manifest copy of " + deduplicatedRecords.size() + " files.");
             redshiftCopy(conn, manifestFileName);
             conn.commit();
+            if (fileCache != null) {
+                fileCache.addAll(deduplicatedRecords);
+            }
             LOG.info("Successful Amazon Redshift manifest copy of " + getNumberOfCopiedRecords(conn) + " records from "
                     + deduplicatedRecords.size() + " files using manifest s3://" + s3Bucket + "/"
                     + getManifestFile(records));
@@ -132,7 +151,7 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
             rollbackConnection(conn);
             return buffer.getRecords();
         } finally {
-            closeConnection(conn);
+            connectionPool.release(conn);
         }
     }
 
@@ -146,16 +165,6 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
         }
     }
 
-    private void closeConnection(Connection conn) {
-        try {
-            if (conn != null && !conn.isClosed()) {
-                conn.close();
-            }
-        } catch (Exception e) {
-            LOG.error("Unable to close Amazon Redshift connection.", e);
-        }
-    }
-
     @Override
     public void fail(List<String> records) {
         for (String record : records) {
@@ -181,52 +190,91 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
 
     /**
      * 
-     * Inserts the records to the fileTable using a SQL String in the format: INSERT INTO fileTable
-     * VALUES ('f1'),('f2'),...;
+     * Inserts the records to the fileTable with prepared statements in the format: INSERT INTO fileTable
+     * VALUES (?),(?),...; Full chunks of FILE_STATEMENT_CHUNK_SIZE records are sent as one batch, the remaining
+     * records with one more statement.
      * 
      * @param records
      * @throws SQLException
      */
-    private void insertRecords(Connection conn, Collection<String> records) throws SQLException {
-        String toInsert = getCollectionString(records, "(", "),(", ")");
-        StringBuilder insertSQL = new StringBuilder();
-        insertSQL.append("INSERT INTO ");
-        insertSQL.append(fileTable);
-        insertSQL.append(" VALUES ");
-        insertSQL.append(toInsert);
-        insertSQL.append(";");
-        executeStatement(conn, insertSQL.toString());
+    // This method has protected access for unit testing purposes.
+    protected void insertRecords(Connection conn, List<String> records) throws SQLException {
+        int numFullChunks = records.size() / FILE_STATEMENT_CHUNK_SIZE;
+        if (numFullChunks > 0) {
+            try (PreparedStatement stmt = conn.prepareStatement(getInsertStatement(FILE_STATEMENT_CHUNK_SIZE))) {
+                for (int chunk = 0; chunk < numFullChunks; chunk++) {
+                    int start = chunk * FILE_STATEMENT_CHUNK_SIZE;
+                    setStrings(stmt, records.subList(start, start + FILE_STATEMENT_CHUNK_SIZE));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        }
+        List<String> remaining = records.subList(numFullChunks * FILE_STATEMENT_CHUNK_SIZE, records.size());
+        if (!remaining.isEmpty()) {
+            try (PreparedStatement stmt = conn.prepareStatement(getInsertStatement(remaining.size()))) {
+                setStrings(stmt, remaining);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    private String getInsertStatement(int numRecords) {
+        return "INSERT INTO " + fileTable + " VALUES " + getPlaceholders("(?)", numRecords) + ";";
     }
 
     /**
-     * Selects the count of files that are already present in Amazon Redshift using a SQL Query in the
-     * format: SELECT COUNT(*) FROM fileTable WHERE fileKeyColumn IN ('f1','f2',...);
+     * Selects the files that are already present in Amazon Redshift using prepared SQL Queries in the
+     * format: SELECT fileKeyColumn FROM fileTable WHERE fileKeyColumn IN (?,?,...); with up to
+     * FILE_STATEMENT_CHUNK_SIZE files per query. Files the file cache
+     * knows to be copied are left out without a query.
      * 
      * @param records
      * @return Deduplicated list of files
      * @throws SQLException
      */
-
-    private List<String> checkForExistingFiles(Connection conn, List<String> records) throws SQLException {
+    // This method has protected access for unit testing purposes.
+    protected List<String> checkForExistingFiles(Connection conn, List<String> records) throws SQLException {
         SortedSet<String> recordSet = new TreeSet<>(records);
-        String files = getCollectionString(recordSet, "(", ",", ")");
-        StringBuilder selectExisting = new StringBuilder();
-        selectExisting.append("SELECT " + fileKeyColumn + " FROM ");
-        selectExisting.append(fileTable);
-        selectExisting.append(" WHERE ");
-        selectExisting.append(fileKeyColumn);
-        selectExisting.append(" IN ");
-        selectExisting.append(files);
-        selectExisting.append(";");
-        String query = selectExisting.toString();
-        try (Statement stmt = conn.createStatement(); ResultSet resultSet = stmt.executeQuery(query)) {
-            while (resultSet.next()) {
-                String existingFile = resultSet.getString(1);
-                LOG.info("File " + existingFile + " has already been copied. Leaving it out.");
-                recordSet.remove(existingFile);
+        if (fileCache != null) {
+            Iterator<String> iterator = recordSet.iterator();
+            while (iterator.hasNext()) {
+                String file = iterator.next();
+                if (fileCache.isKnownCopied(file)) {
+                    LOG.info("File " + file + " has already been copied. Leaving it out.");
+                    iterator.remove();
+                }
             }
-            return new ArrayList<String>(recordSet);
         }
+        List<String> existingFiles = new ArrayList<String>();
+        if (!recordSet.isEmpty()) {
+            List<String> files = new ArrayList<String>(recordSet);
+            int chunkSize = Math.min(files.size(), FILE_STATEMENT_CHUNK_SIZE);
+            String query = "SELECT " + fileKeyColumn + " FROM " + fileTable + " WHERE " + fileKeyColumn + " IN ("
+                    + getPlaceholders("?", chunkSize) + ");";
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                for (int start = 0; start < files.size(); start += chunkSize) {
+                    List<String> chunk = files.subList(start, Math.min(start + chunkSize, files.size()));
+                    setStrings(stmt, chunk);
+                    // Pad the last chunk with its last file so every chunk uses the same statement
+                    for (int i = chunk.size(); i < chunkSize; i++) {
+                        stmt.setString(i + 1, chunk.get(chunk.size() - 1));
+                    }
+                    try (ResultSet resultSet = stmt.executeQuery()) {
+                        while (resultSet.next()) {
+                            String existingFile = resultSet.getString(1);
+                            LOG.info("File " + existingFile + " has already been copied. Leaving it out.");
+                            recordSet.remove(existingFile);
+                            existingFiles.add(existingFile);
+                        }
+                    }
+                }
+            }
+        }
+        if (fileCache != null) {
+            fileCache.addAll(existingFiles);
+        }
+        return new ArrayList<String>(recordSet);
     }
 
     private int getNumberOfCopiedRecords(Connection conn) throws SQLException {
@@ -240,7 +288,7 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
 
     /**
      * Executes a, Amazon Redshift copy from Amazon S3 using a Manifest file with a command in the format: COPY
-     * dataTable FROM 's3://s3Bucket/manifestFile' CREDENTIALS
+     * dataTable (or the staging table in upsert mode) FROM 's3://s3Bucket/manifestFile' CREDENTIALS
      * 'aws_access_key_id=accessKey;aws_secret_access_key=secretKey' DELIMITER dataDelimiter
      * MANIFEST;
      * 
@@ -248,9 +296,14 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
      * @throws SQLException
      */
     protected void redshiftCopy(Connection conn, String manifestFile) throws SQLException {
+        String copyTable = dataTable;
+        if (upsert != null) {
+            executeStatement(conn, upsert.getCreateStagingTableStatement());
+            copyTable = upsert.getStagingTable();
+        }
         AWSCredentials credentials = credentialsProvider.getCredentials();
         StringBuilder redshiftCopy = new StringBuilder();
-        redshiftCopy.append("COPY " + dataTable + " ");
+        redshiftCopy.append("COPY " + copyTable + " ");
         redshiftCopy.append("FROM 's3://" + s3Bucket + "/" + manifestFile + "' ");
         redshiftCopy.append("CREDENTIALS '");
         redshiftCopy.append("aws_access_key_id=" + credentials.getAWSAccessKeyId());
@@ -261,10 +314,15 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
             redshiftCopy.append("token=" + ((AWSSessionCredentials) credentials).getSessionToken());
         }
         redshiftCopy.append("' ");
-        redshiftCopy.append("DELIMITER '" + dataDelimiter + "' ");
+        redshiftCopy.append(copyOptions.toString() + " ");
         redshiftCopy.append("MANIFEST");
         redshiftCopy.append(";");
         executeStatement(conn, redshiftCopy.toString());
+        if (upsert != null) {
+            for (String statement : upsert.getMergeStatements(conn)) {
+                executeStatement(conn, statement);
+            }
+        }
     }
 
     /**
@@ -281,33 +339,31 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
     }
 
     /**
-     * Builds a String from the members of a Set of String
+     * Builds a list of SQL placeholders
      * 
-     * @param members
-     *        List of String, each member will be surrounded by single quotes
-     * @param prepend
-     *        beginning of String
-     * @param delimiter
-     *        between each member
-     * @param append
-     *        end of String
-     * @return String in format: {prepend}
-     *         '{member1}'{delimiter}'{member2}'{delimiter}...'{lastMember}'{app e n d }
+     * @param placeholder
+     *        placeholder for one value, such as ? or (?)
+     * @param count
+     *        number of placeholders
+     * @return String in format: {placeholder},{placeholder},...
      */
-    private String getCollectionString(Collection<String> members, String prepend, String delimiter, String append) {
+    private String getPlaceholders(String placeholder, int count) {
         StringBuilder s = new StringBuilder();
-        s.append(prepend);
-        for (String m : members) {
-            s.append("'");
-            s.append(m);
-            s.append("'");
-            s.append(delimiter);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                s.append(",");
+            }
+            s.append(placeholder);
         }
-        s.replace(s.length() - delimiter.length(), s.length(), "");
-        s.append(append);
         return s.toString();
     }
 
+    private void setStrings(PreparedStatement stmt, List<String> values) throws SQLException {
+        for (int i = 0; i < values.size(); i++) {
+            stmt.setString(i + 1, values.get(i));
+        }
+    }
+
     /**
      * Manifest file is named in the format manifests/{firstFileName}-{lastFileName}
      * 
@@ -360,6 +416,10 @@ public class RedshiftManifestEmitter implements IEmitter<String> {
     @Override
     public void shutdown() {
         s3Client.shutdown();
+        if (!isShutdown) {
+            isShutdown = true;
+            RedshiftConnectionPool.releasePool(connectionPool);
+        }
     }
 
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The statements of the upsert load mode of the Amazon Redshift emitters. Files are copied into a temporary
+ * staging table shaped like the data table; rows of the data table whose key columns match a staged row are
+ * deleted, and the staged rows are inserted, all in the transaction of the copy. Of the staged rows with the same
+ * key, only the one with the highest value of the order column is inserted, so the order column is required. The
+ * inserted columns are listed explicitly, as read from the staging table before each merge, so the statements run
+ * on every Amazon Redshift release.
+ */
+class RedshiftUpsert {
+    // Numbers the staged rows of each key, and is left out of the inserted rows
+    private static final String ROW_NUMBER_COLUMN = "upsert_row_number";
+
+    private final String dataTable;
+    private final List<String> keyColumns;
+    private final String orderColumn;
+    private final String stagingTable;
+
+    /**
+     * @param dataTable
+     *        the Amazon Redshift data table
+     * @param keyColumns
+     *        comma separated key columns of the data table
+     * @param orderColumn
+     *        the column ordering the staged rows of a key
+     * @throws IllegalArgumentException
+     *         if there are no key columns or no order column
+     */
+    RedshiftUpsert(String dataTable, String keyColumns, String orderColumn) {
+        if (orderColumn == null || orderColumn.trim().isEmpty()) {
+            throw new IllegalArgumentException("An upsert order column is required to pick the latest staged row of "
+                    + "each key");
+        }
+        this.dataTable = dataTable;
+        this.orderColumn = orderColumn.trim();
+        this.keyColumns = new ArrayList<String>();
+        for (String keyColumn : keyColumns.split(",")) {
+            if (!keyColumn.trim().isEmpty()) {
+                this.keyColumns.add(keyColumn.trim());
+            }
+        }
+        if (this.keyColumns.isEmpty()) {
+            throw new IllegalArgumentException("At least one upsert key column is required");
+        }
+        // Temporary tables cannot be qualified with a schema
+        this.stagingTable = dataTable.replaceAll("\\W", "_") + "_staging";
+    }
+
+    /**
+     * @param dataTable
+     *        the Amazon Redshift data table
+     * @param keyColumns
+     *        comma separated key columns of the data table, or null
+     * @param orderColumn
+     *        the column ordering the staged rows of a key, required if there are key columns
+     * @return the upsert statements, or null if no key columns are configured and files are appended
+     * @throws IllegalArgumentException
+     *         if there are key columns but no order column
+     */
+    static RedshiftUpsert forKeyColumns(String dataTable, String keyColumns, String orderColumn) {
+        if (keyColumns == null || keyColumns.trim().isEmpty()) {
+            return null;
+        }
+        return new RedshiftUpsert(dataTable, keyColumns, orderColumn);
+    }
+
+    /**
+     * @return the temporary table the files are copied into
+     */
+    String getStagingTable() {
+        return stagingTable;
+    }
+
+    /**
+     * @return the statement creating the staging table
+     */
+    String getCreateStagingTableStatement() {
+        return "CREATE TEMP TABLE " + stagingTable + " (LIKE " + dataTable + ");";
+    }
+
+    /**
+     * Reads the columns of the staging table, which has the columns of the data table in order, and returns the
+     * statements merging the staging table into the data table and dropping it.
+     *
+     * @param conn
+     *        the connection of the copy transaction, after the staging table has been created
+     * @return the statements in order
+     */
+    List<String> getMergeStatements(Connection conn) throws SQLException {
+        List<String> columns = new ArrayList<String>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet resultSet = stmt.executeQuery("SELECT * FROM " + stagingTable + " LIMIT 0;")) {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                columns.add(metaData.getColumnName(i));
+            }
+        }
+        return getMergeStatements(columns);
+    }
+
+    /**
+     * @param columns
+     *        the columns of the data table in order
+     * @return the statements merging the staging table into the data table and dropping it, in order
+     */
+    List<String> getMergeStatements(List<String> columns) {
+        StringBuilder delete = new StringBuilder();
+        delete.append("DELETE FROM " + dataTable + " USING " + stagingTable + " WHERE ");
+        for (int i = 0; i < keyColumns.size(); i++) {
+            if (i > 0) {
+                delete.append(" AND ");
+            }
+            String keyColumn = keyColumns.get(i);
+            delete.append(dataTable + "." + keyColumn + " = " + stagingTable + "." + keyColumn);
+        }
+        delete.append(";");
+        StringBuilder columnList = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                columnList.append(", ");
+            }
+            columnList.append("\"" + columns.get(i).replace("\"", "\"\"") + "\"");
+        }
+        // Insert the latest staged row of each key, without the row number
+        StringBuilder insert = new StringBuilder();
+        insert.append("INSERT INTO " + dataTable + " (" + columnList + ") SELECT " + columnList + " FROM (SELECT *, ");
+        insert.append("ROW_NUMBER() OVER (PARTITION BY ");
+        for (int i = 0; i < keyColumns.size(); i++) {
+            if (i > 0) {
+                insert.append(", ");
+            }
+            insert.append(keyColumns.get(i));
+        }
+        insert.append(" ORDER BY " + orderColumn + " DESC) AS " + ROW_NUMBER_COLUMN + " FROM " + stagingTable
+                + ") AS staged WHERE " + ROW_NUMBER_COLUMN + " = 1;");
+        return Arrays.asList(delete.toString(), insert.toString(), "DROP TABLE " + stagingTable + ";");
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * This class puts the file names of the S3ManifestEmitters of a JVM into the manifest stream with PutRecords
+ * requests. A daemon thread sends everything that was submitted while the previous request was in flight, so the
+ * file names of many shards share one request. The pending entries of a partition key are sent in order in the same
+ * request, which keeps their order in the stream. If an entry fails, it is retried together with the later entries
+ * of its partition key in the request, so these follow it in the stream again; the manifest copy skips files that
+ * are copied twice.
+ * <p>
+ * A publication that is not in the stream within the publish timeout fails, and its entries that are not yet in a
+ * request are dropped, so the emit can be retried. The sender thread is restarted if it fails unexpectedly.
+ * <p>
+ * The shared publishers are counted by the emitters that use them. The sender thread and the Amazon Kinesis client
+ * of a publisher are shut down when the last of its emitters releases it.
+ */
+public class ManifestStreamPublisher {
+    private static final Log LOG = LogFactory.getLog(ManifestStreamPublisher.class);
+    // Publishers by Amazon Kinesis endpoint, output stream and credentials provider, guarded by the class
+    private static final Map<List<Object>, ManifestStreamPublisher> PUBLISHERS =
+            new HashMap<List<Object>, ManifestStreamPublisher>();
+    private static final int MAX_ENTRIES_PER_REQUEST = 500;
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long BACKOFF_MILLIS = 100L;
+    private static final long MAX_BACKOFF_MILLIS = 5000L;
+    // Longer than the MAX_ATTEMPTS attempts of an entry take with their backoff
+    private static final long DEFAULT_PUBLISH_TIMEOUT_MILLIS = 2 * 60 * 1000L;
+
+    private final AmazonKinesisClient kinesisClient;
+    private final String manifestStream;
+    private final long publishTimeoutMillis;
+    private final Thread sender;
+    // Key of a shared publisher and the number of emitters using it, guarded by the class
+    private List<Object> key;
+    private int users;
+    // Pending entries by partition key in submission order, guarded by this
+    private final Map<String, Deque<Entry>> pending = new LinkedHashMap<String, Deque<Entry>>();
+
+    // Guarded by this
+    private boolean stopped;
+
+    /**
+     * Returns the publisher for the Amazon Kinesis endpoint, output stream and credentials provider of the
+     * configuration, creating it on first use. Each call must be matched by a call to releasePublisher().
+     *
+     * @param configuration
+     *        the Amazon Kinesis endpoint, credentials and output stream
+     * @return the shared publisher
+     */
+    public static synchronized ManifestStreamPublisher getPublisher(KinesisConnectorConfiguration configuration) {
+        List<Object> key = Arrays.<Object> asList(configuration.KINESIS_ENDPOINT, configuration.KINESIS_OUTPUT_STREAM,
+                configuration.AWS_CREDENTIALS_PROVIDER);
+        ManifestStreamPublisher publisher = PUBLISHERS.get(key);
+        if (publisher == null) {
+            AmazonKinesisClient kinesisClient = new AmazonKinesisClient(configuration.AWS_CREDENTIALS_PROVIDER);
+            if (configuration.KINESIS_ENDPOINT != null) {
+                kinesisClient.setEndpoint(configuration.KINESIS_ENDPOINT);
+            }
+            publisher = new ManifestStreamPublisher(kinesisClient, configuration.KINESIS_OUTPUT_STREAM);
+            publisher.key = key;
+            PUBLISHERS.put(key, publisher);
+        }
+        publisher.users++;
+        return publisher;
+    }
+
+    /**
+     * Releases a publisher returned by getPublisher() and shuts it down if no other emitter uses it.
+     *
+     * @param publisher
+     *        the shared publisher
+     */
+    public static synchronized void releasePublisher(ManifestStreamPublisher publisher) {
+        if (--publisher.users == 0) {
+            PUBLISHERS.remove(publisher.key);
+            publisher.shutdown();
+        }
+    }
+
+    public ManifestStreamPublisher(AmazonKinesisClient kinesisClient, String manifestStream) {
+        this(kinesisClient, manifestStream, DEFAULT_PUBLISH_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param kinesisClient
+     *        the client used to put the file names
+     * @param manifestStream
+     *        the name of the manifest stream
+     * @param publishTimeoutMillis
+     *        the time after which publish() fails if its file names are not in the stream
+     */
+    public ManifestStreamPublisher(AmazonKinesisClient kinesisClient,
+            String manifestStream,
+            long publishTimeoutMillis) {
+        this.kinesisClient = kinesisClient;
+        this.manifestStream = manifestStream;
+        this.publishTimeoutMillis = publishTimeoutMillis;
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSender();
+            }
+        }, "manifest-stream-publisher");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Submits file names and waits until all of them are in the manifest stream.
+     *
+     * @param partitionKey
+     *        the partition key of the file names, which are put in order
+     * @param s3Files
+     *        the Amazon S3 keys of the files
+     * @throws IOException
+     *         if a file name could not be put within the publish timeout or the thread was interrupted while waiting
+     */
+    public void publish(String partitionKey, List<String> s3Files) throws IOException {
+        Publication publication = new Publication(s3Files.size());
+        synchronized (this) {
+            if (stopped) {
+                throw new IOException("Manifest stream publisher is shut down");
+            }
+            Deque<Entry> entries = pending.get(partitionKey);
+            if (entries == null) {
+                entries = new ArrayDeque<Entry>();
+                pending.put(partitionKey, entries);
+            }
+            for (String s3File : s3Files) {
+                entries.addLast(new Entry(partitionKey, s3File, publication));
+            }
+            notifyAll();
+        }
+        try {
+            publication.await(publishTimeoutMillis);
+        } catch (IOException e) {
+            synchronized (this) {
+                // Entries already in a request are put anyway; the manifest copy skips files copied twice
+                publication.cancelled = true;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the sender thread, fails the pending publications and shuts down the Amazon Kinesis client.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            stopped = true;
+            for (Deque<Entry> entries : pending.values()) {
+                for (Entry entry : entries) {
+                    entry.publication.failed = true;
+                    entry.publication.done.countDown();
+                }
+            }
+            pending.clear();
+        }
+        sender.interrupt();
+        if (kinesisClient != null) {
+            kinesisClient.shutdown();
+        }
+    }
+
+    /**
+     * Sends pending entries until the publisher is shut down, and restarts the loop if it fails.
+     */
+    private void runSender() {
+        while (!isStopped()) {
+            try {
+                sendPending();
+                return;
+            } catch (Throwable t) {
+                LOG.error("Manifest stream publisher failed. Restarting it.", t);
+                try {
+                    Thread.sleep(BACKOFF_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    private void sendPending() {
+        int failedAttempts = 0;
+        while (true) {
+            List<Entry> batch;
+            try {
+                batch = takeBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean failed;
+            try {
+                failed = send(batch);
+            } catch (RuntimeException e) {
+                LOG.warn("PutRecords request to the manifest stream failed.", e);
+                Set<String> partitionKeys = new HashSet<String>();
+                for (Entry entry : batch) {
+                    // Only the first entry of a partition key counts the attempt, the later ones wait for it
+                    if (partitionKeys.add(entry.partitionKey)) {
+                        entry.attempts++;
+                    }
+                }
+                failed = true;
+            }
+            expireEntries(batch);
+            if (failed) {
+                failedAttempts++;
+                try {
+                    Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(failedAttempts, 16)));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else {
+                failedAttempts = 0;
+            }
+        }
+    }
+
+    /**
+     * Waits for pending entries and returns the pending entries of each partition key in order, leaving them pending
+     * until they succeed.
+     */
+    private synchronized List<Entry> takeBatch() throws InterruptedException {
+        removeCancelledEntries();
+        while (pending.isEmpty()) {
+            wait();
+            removeCancelledEntries();
+        }
+        List<Entry> batch = new ArrayList<Entry>();
+        for (Deque<Entry> entries : pending.values()) {
+            for (Entry entry : entries) {
+                if (batch.size() == MAX_ENTRIES_PER_REQUEST) {
+                    return batch;
+                }
+                batch.add(entry);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Puts a batch into the manifest stream and removes the entries that succeeded from the pending entries. The
+     * entries after a failed entry of the same partition key stay pending, so they are put again after it.
+     *
+     * @return true if any entry failed
+     */
+    private boolean send(List<Entry> batch) {
+        List<PutRecordsRequestEntry> requestEntries = new ArrayList<PutRecordsRequestEntry>(batch.size());
+        for (Entry entry : batch) {
+            requestEntries.add(new PutRecordsRequestEntry().withPartitionKey(entry.partitionKey)
+                    .withData(ByteBuffer.wrap(entry.s3File.getBytes())));
+        }
+        PutRecordsResult result = putRecords(new PutRecordsRequest().withStreamName(manifestStream)
+                .withRecords(requestEntries));
+        List<PutRecordsResultEntry> resultEntries = result.getRecords();
+        Set<String> failedPartitionKeys = new HashSet<String>();
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            PutRecordsResultEntry resultEntry = resultEntries.get(i);
+            if (failedPartitionKeys.contains(entry.partitionKey)) {
+                continue;
+            }
+            if (resultEntry.getErrorCode() == null) {
+                complete(entry);
+            } else {
+                LOG.debug("Manifest stream entry " + entry.s3File + " failed: " + resultEntry.getErrorMessage());
+                entry.attempts++;
+                failedPartitionKeys.add(entry.partitionKey);
+            }
+        }
+        return !failedPartitionKeys.isEmpty();
+    }
+
+    // Callers must hold the lock on this publisher
+    private void removeCancelledEntries() {
+        Iterator<Deque<Entry>> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Deque<Entry> entries = iterator.next();
+            Iterator<Entry> entryIterator = entries.iterator();
+            while (entryIterator.hasNext()) {
+                if (entryIterator.next().publication.cancelled) {
+                    entryIterator.remove();
+                }
+            }
+            if (entries.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected PutRecordsResult putRecords(PutRecordsRequest request) {
+        return kinesisClient.putRecords(request);
+    }
+
+    private synchronized void complete(Entry entry) {
+        Deque<Entry> entries = pending.get(entry.partitionKey);
+        if (entries == null) {
+            // The publisher was shut down while the request was in flight
+            return;
+        }
+        entries.removeFirst();
+        if (entries.isEmpty()) {
+            pending.remove(entry.partitionKey);
+        }
+        entry.publication.done.countDown();
+    }
+
+    /**
+     * Fails the entries of a batch that ran out of attempts, together with the later entries of their partition
+     * keys, which would otherwise be put out of order.
+     */
+    private synchronized void expireEntries(List<Entry> batch) {
+        for (Entry entry : batch) {
+            if (entry.attempts < MAX_ATTEMPTS) {
+                continue;
+            }
+            Deque<Entry> entries = pending.remove(entry.partitionKey);
+            if (entries == null) {
+                continue;
+            }
+            LOG.error("Giving up on manifest stream entry " + entry.s3File + " after " + entry.attempts
+                    + " attempts.");
+            for (Entry expired : entries) {
+                expired.publication.failed = true;
+                expired.publication.done.countDown();
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String partitionKey;
+        private final String s3File;
+        private final Publication publication;
+        // Only accessed by the sender thread
+        private int attempts;
+
+        Entry(String partitionKey, String s3File, Publication publication) {
+            this.partitionKey = partitionKey;
+            this.s3File = s3File;
+            this.publication = publication;
+        }
+    }
+
+    private static class Publication {
+        private final CountDownLatch done;
+        private volatile boolean failed;
+        // Guarded by the publisher
+        private boolean cancelled;
+
+        Publication(int numEntries) {
+            this.done = new CountDownLatch(numEntries);
+        }
+
+        void await(long timeoutMillis) throws IOException {
+            try {
+                if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Timed out after " + timeoutMillis
+                            + " ms putting file names into the manifest stream");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while putting file names into the manifest stream", e);
+            }
+            if (failed) {
+                throw new IOException("Unable to put file names into the manifest stream");
+            }
+        }
+    }
+}
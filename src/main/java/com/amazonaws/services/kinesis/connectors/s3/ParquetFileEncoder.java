@@ -0,0 +1,486 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class encodes the delimited records of a batch, such as the output of a RedshiftTransformer, into one
+ * Apache Parquet file that Amazon Redshift loads with redshiftCopyFormat PARQUET. The columns are given by
+ * redshiftCopyColumnTypes, in the order of the fields of the records and of the columns of the Amazon Redshift
+ * table.
+ * <p>
+ * Each file has one row group with one PLAIN encoded data page per column. All columns are optional: empty
+ * fields of non VARCHAR columns and fields equal to \N are written as nulls. The pages are compressed with gzip
+ * if s3Compression is GZIP, so the file itself must not be compressed again. Records with the wrong number of
+ * fields or with values that do not match their column type are left out of the file and returned to the caller,
+ * which must not treat them as emitted.
+ */
+public class ParquetFileEncoder {
+    private static final Log LOG = LogFactory.getLog(ParquetFileEncoder.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = "PAR1".getBytes(UTF_8);
+    private static final String FILE_EXTENSION = ".parquet";
+    private static final String NULL_FIELD = "\\N";
+
+    // Parquet enum values
+    private static final int TYPE_BOOLEAN = 0;
+    private static final int TYPE_INT32 = 1;
+    private static final int TYPE_INT64 = 2;
+    private static final int TYPE_DOUBLE = 5;
+    private static final int TYPE_BYTE_ARRAY = 6;
+    private static final int CONVERTED_TYPE_UTF8 = 0;
+    private static final int REPETITION_OPTIONAL = 1;
+    private static final int ENCODING_PLAIN = 0;
+    private static final int ENCODING_RLE = 3;
+    private static final int CODEC_UNCOMPRESSED = 0;
+    private static final int CODEC_GZIP = 2;
+    private static final int PAGE_TYPE_DATA_PAGE = 0;
+
+    /**
+     * The Amazon Redshift column types that can be written to Parquet files.
+     */
+    public enum ColumnType {
+        VARCHAR(TYPE_BYTE_ARRAY, CONVERTED_TYPE_UTF8),
+        INTEGER(TYPE_INT32, null),
+        BIGINT(TYPE_INT64, null),
+        DOUBLE(TYPE_DOUBLE, null),
+        BOOLEAN(TYPE_BOOLEAN, null);
+
+        private final int physicalType;
+        private final Integer convertedType;
+
+        private ColumnType(int physicalType, Integer convertedType) {
+            this.physicalType = physicalType;
+            this.convertedType = convertedType;
+        }
+    }
+
+    private final List<ColumnType> columnTypes;
+    private final Pattern delimiter;
+    private final int codec;
+
+    /**
+     * @param columnTypes
+     *        the types of the columns, in the order of the fields of the records
+     * @param delimiter
+     *        the delimiter of the fields of the records
+     * @param compression
+     *        the compression of the data pages
+     */
+    public ParquetFileEncoder(List<ColumnType> columnTypes, char delimiter, S3Compression compression) {
+        if (columnTypes.isEmpty()) {
+            throw new IllegalArgumentException("At least one column type is required");
+        }
+        this.columnTypes = new ArrayList<ColumnType>(columnTypes);
+        this.delimiter = Pattern.compile(Pattern.quote(Character.toString(delimiter)));
+        this.codec = (compression == S3Compression.GZIP) ? CODEC_GZIP : CODEC_UNCOMPRESSED;
+    }
+
+    /**
+     * @param format
+     *        the redshiftCopyFormat of the configuration
+     * @return true if files of the format are written with a ParquetFileEncoder
+     */
+    public static boolean isParquet(String format) {
+        return format != null && format.trim().equalsIgnoreCase("PARQUET");
+    }
+
+    /**
+     * Parses the redshiftCopyColumnTypes of the configuration.
+     *
+     * @param columnTypes
+     *        comma separated column types, such as VARCHAR,BIGINT,DOUBLE
+     * @return the column types in order
+     * @throws IllegalArgumentException
+     *         if the column types are missing or one of them is not supported
+     */
+    public static List<ColumnType> parseColumnTypes(String columnTypes) {
+        if (columnTypes == null || columnTypes.trim().isEmpty()) {
+            throw new IllegalArgumentException("Column types are required to write Parquet files");
+        }
+        List<ColumnType> types = new ArrayList<ColumnType>();
+        for (String type : columnTypes.split(",")) {
+            try {
+                types.add(ColumnType.valueOf(type.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unsupported Parquet column type " + type.trim(), e);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * @return the extension of the file names of Parquet files
+     */
+    public String getFileExtension() {
+        return FILE_EXTENSION;
+    }
+
+    /**
+     * Encodes the records of a batch into one Parquet file.
+     *
+     * @param records
+     *        the delimited records of the batch
+     * @param rejectedRecords
+     *        receives the records that do not match the columns and are left out of the file
+     * @return the contents of the file, as blocks to be concatenated, or an empty list if all records were rejected
+     */
+    public List<byte[]> encode(List<byte[]> records, List<byte[]> rejectedRecords) throws IOException {
+        List<Object[]> rows = new ArrayList<Object[]>(records.size());
+        int numRejected = 0;
+        for (byte[] record : records) {
+            if (record == null) {
+                continue;
+            }
+            Object[] row = parseRow(record);
+            if (row != null) {
+                rows.add(row);
+            } else {
+                rejectedRecords.add(record);
+                numRejected++;
+            }
+        }
+        if (rows.isEmpty() && numRejected > 0) {
+            return Collections.emptyList();
+        }
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(MAGIC);
+        ThriftCompactWriter columnChunks = new ThriftCompactWriter();
+        long totalByteSize = 0;
+        for (int column = 0; column < columnTypes.size(); column++) {
+            long dataPageOffset = file.size();
+            byte[] page = encodePage(rows, column);
+            byte[] compressedPage = (codec == CODEC_GZIP) ? gzip(page) : page;
+            byte[] pageHeader = encodePageHeader(rows.size(), page.length, compressedPage.length);
+            file.write(pageHeader);
+            file.write(compressedPage);
+            totalByteSize += pageHeader.length + page.length;
+
+            // ColumnChunk
+            columnChunks.structBegin();
+            columnChunks.i64Field(2, dataPageOffset);
+            // ColumnMetaData
+            columnChunks.structFieldBegin(3);
+            columnChunks.i32Field(1, columnTypes.get(column).physicalType);
+            columnChunks.listFieldBegin(2, ThriftCompactWriter.I32, 2);
+            columnChunks.i32(ENCODING_PLAIN);
+            columnChunks.i32(ENCODING_RLE);
+            columnChunks.listFieldBegin(3, ThriftCompactWriter.BINARY, 1);
+            columnChunks.binary(getColumnName(column).getBytes(UTF_8));
+            columnChunks.i32Field(4, codec);
+            columnChunks.i64Field(5, rows.size());
+            columnChunks.i64Field(6, pageHeader.length + page.length);
+            columnChunks.i64Field(7, pageHeader.length + compressedPage.length);
+            columnChunks.i64Field(9, dataPageOffset);
+            columnChunks.structEnd();
+            columnChunks.structEnd();
+        }
+
+        byte[] footer = encodeFileMetaData(rows.size(), columnChunks.toByteArray(), totalByteSize);
+        file.write(footer);
+        writeIntLittleEndian(file, footer.length);
+        file.write(MAGIC);
+        return Collections.singletonList(file.toByteArray());
+    }
+
+    /**
+     * Splits a delimited record into the values of its columns.
+     *
+     * @return the values, with nulls for null fields, or null if the record does not match the columns
+     */
+    private Object[] parseRow(byte[] record) {
+        String line = new String(record, UTF_8);
+        if (line.endsWith("\n")) {
+            line = line.substring(0, line.length() - (line.endsWith("\r\n") ? 2 : 1));
+        }
+        String[] fields = delimiter.split(line, -1);
+        if (fields.length != columnTypes.size()) {
+            LOG.warn("Record has " + fields.length + " fields instead of " + columnTypes.size()
+                    + " and is left out of the Parquet file: " + line);
+            return null;
+        }
+        Object[] row = new Object[fields.length];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                row[i] = parseValue(columnTypes.get(i), fields[i]);
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Record does not match the Parquet column types and is left out of the file: " + line, e);
+            return null;
+        }
+        return row;
+    }
+
+    private static Object parseValue(ColumnType type, String field) {
+        if (field.equals(NULL_FIELD) || (field.isEmpty() && type != ColumnType.VARCHAR)) {
+            return null;
+        }
+        switch (type) {
+            case VARCHAR:
+                return field.getBytes(UTF_8);
+            case INTEGER:
+                return Integer.valueOf(field.trim());
+            case BIGINT:
+                return Long.valueOf(field.trim());
+            case DOUBLE:
+                return Double.valueOf(field.trim());
+            case BOOLEAN:
+                String value = field.trim().toLowerCase();
+                if (value.equals("true") || value.equals("t") || value.equals("1")) {
+                    return Boolean.TRUE;
+                }
+                if (value.equals("false") || value.equals("f") || value.equals("0")) {
+                    return Boolean.FALSE;
+                }
+                throw new IllegalArgumentException("Invalid boolean " + field);
+            default:
+                throw new IllegalArgumentException("Unsupported column type " + type);
+        }
+    }
+
+    /**
+     * Encodes the definition levels and the non null values of a column as the body of a data page.
+     */
+    private byte[] encodePage(List<Object[]> rows, int column) throws IOException {
+        ByteArrayOutputStream levels = new ByteArrayOutputStream();
+        // RLE runs of bit width 1: 1 for a value, 0 for a null
+        int runStart = 0;
+        for (int i = 1; i <= rows.size(); i++) {
+            if (i == rows.size() || (rows.get(i)[column] == null) != (rows.get(runStart)[column] == null)) {
+                writeUnsignedVarint(levels, (long) (i - runStart) << 1);
+                levels.write(rows.get(runStart)[column] == null ? 0 : 1);
+                runStart = i;
+            }
+        }
+
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        writeIntLittleEndian(page, levels.size());
+        levels.writeTo(page);
+        int bits = 0;
+        int bitCount = 0;
+        for (Object[] row : rows) {
+            Object value = row[column];
+            if (value == null) {
+                continue;
+            }
+            switch (columnTypes.get(column)) {
+                case VARCHAR:
+                    byte[] bytes = (byte[]) value;
+                    writeIntLittleEndian(page, bytes.length);
+                    page.write(bytes);
+                    break;
+                case INTEGER:
+                    writeIntLittleEndian(page, (Integer) value);
+                    break;
+                case BIGINT:
+                    writeLongLittleEndian(page, (Long) value);
+                    break;
+                case DOUBLE:
+                    writeLongLittleEndian(page, Double.doubleToLongBits((Double) value));
+                    break;
+                case BOOLEAN:
+                    // Booleans are bit packed, least significant bit first
+                    if ((Boolean) value) {
+                        bits |= 1 << bitCount;
+                    }
+                    if (++bitCount == 8) {
+                        page.write(bits);
+                        bits = 0;
+                        bitCount = 0;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported column type " + columnTypes.get(column));
+            }
+        }
+        if (bitCount > 0) {
+            page.write(bits);
+        }
+        return page.toByteArray();
+    }
+
+    private static byte[] encodePageHeader(int numValues, int uncompressedSize, int compressedSize) {
+        ThriftCompactWriter header = new ThriftCompactWriter();
+        header.structBegin();
+        header.i32Field(1, PAGE_TYPE_DATA_PAGE);
+        header.i32Field(2, uncompressedSize);
+        header.i32Field(3, compressedSize);
+        // DataPageHeader
+        header.structFieldBegin(5);
+        header.i32Field(1, numValues);
+        header.i32Field(2, ENCODING_PLAIN);
+        header.i32Field(3, ENCODING_RLE);
+        header.i32Field(4, ENCODING_RLE);
+        header.structEnd();
+        header.structEnd();
+        return header.toByteArray();
+    }
+
+    private byte[] encodeFileMetaData(int numRows, byte[] columnChunks, long totalByteSize) {
+        ThriftCompactWriter metaData = new ThriftCompactWriter();
+        metaData.structBegin();
+        metaData.i32Field(1, 1);
+        metaData.listFieldBegin(2, ThriftCompactWriter.STRUCT, columnTypes.size() + 1);
+        // The root of the schema
+        metaData.structBegin();
+        metaData.binaryField(4, "schema".getBytes(UTF_8));
+        metaData.i32Field(5, columnTypes.size());
+        metaData.structEnd();
+        for (int column = 0; column < columnTypes.size(); column++) {
+            ColumnType type = columnTypes.get(column);
+            metaData.structBegin();
+            metaData.i32Field(1, type.physicalType);
+            metaData.i32Field(3, REPETITION_OPTIONAL);
+            metaData.binaryField(4, getColumnName(column).getBytes(UTF_8));
+            if (type.convertedType != null) {
+                metaData.i32Field(6, type.convertedType);
+            }
+            metaData.structEnd();
+        }
+        metaData.i64Field(3, numRows);
+        // An empty file has no row groups
+        metaData.listFieldBegin(4, ThriftCompactWriter.STRUCT, numRows > 0 ? 1 : 0);
+        if (numRows > 0) {
+            metaData.structBegin();
+            metaData.listFieldBegin(1, ThriftCompactWriter.STRUCT, columnTypes.size());
+            metaData.raw(columnChunks);
+            metaData.i64Field(2, totalByteSize);
+            metaData.i64Field(3, numRows);
+            metaData.structEnd();
+        }
+        metaData.structEnd();
+        return metaData.toByteArray();
+    }
+
+    private static String getColumnName(int column) {
+        // Amazon Redshift matches the columns of Parquet files by position
+        return "column" + (column + 1);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static void writeIntLittleEndian(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void writeLongLittleEndian(ByteArrayOutputStream out, long value) {
+        writeIntLittleEndian(out, (int) value);
+        writeIntLittleEndian(out, (int) (value >>> 32));
+    }
+
+    private static void writeUnsignedVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Writes the Parquet metadata structures with the Thrift compact protocol.
+     */
+    private static final class ThriftCompactWriter {
+        static final int I32 = 5;
+        static final int I64 = 6;
+        static final int BINARY = 8;
+        static final int LIST = 9;
+        static final int STRUCT = 12;
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Deque<Integer> lastFieldIds = new ArrayDeque<Integer>();
+        private int lastFieldId;
+
+        void structBegin() {
+            lastFieldIds.push(lastFieldId);
+            lastFieldId = 0;
+        }
+
+        void structEnd() {
+            out.write(0);
+            lastFieldId = lastFieldIds.pop();
+        }
+
+        void structFieldBegin(int id) {
+            fieldBegin(id, STRUCT);
+            structBegin();
+        }
+
+        void listFieldBegin(int id, int elementType, int size) {
+            fieldBegin(id, LIST);
+            if (size < 15) {
+                out.write(size << 4 | elementType);
+            } else {
+                out.write(0xF0 | elementType);
+                writeUnsignedVarint(out, size);
+            }
+        }
+
+        void i32Field(int id, int value) {
+            fieldBegin(id, I32);
+            i32(value);
+        }
+
+        void i64Field(int id, long value) {
+            fieldBegin(id, I64);
+            writeUnsignedVarint(out, (value << 1) ^ (value >> 63));
+        }
+
+        void binaryField(int id, byte[] value) {
+            fieldBegin(id, BINARY);
+            binary(value);
+        }
+
+        void i32(int value) {
+            writeUnsignedVarint(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        }
+
+        void binary(byte[] value) {
+            writeUnsignedVarint(out, value.length);
+            out.write(value, 0, value.length);
+        }
+
+        void raw(byte[] value) {
+            out.write(value, 0, value.length);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private void fieldBegin(int id, int type) {
+            int delta = id - lastFieldId;
+            if (delta > 0 && delta <= 15) {
+                out.write(delta << 4 | type);
+            } else {
+                out.write(type);
+                i32(id);
+            }
+            lastFieldId = id;
+        }
+    }
+}
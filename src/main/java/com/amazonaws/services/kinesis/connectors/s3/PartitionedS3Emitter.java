@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
+import com.amazonaws.services.kinesis.connectors.interfaces.IPartitioner;
+
+/**
+ * This implementation of IEmitter stores each batch in Amazon S3 as one file per partition. An IPartitioner
+ * assigns every record to a partition, and the records of each partition are written to a file under the
+ * partition's prefix, e.g. "dt=2016-01-01/hour=05/firstSeq-lastSeq". Query engines can then prune partitions,
+ * and requests are spread across prefixes.
+ * <p>
+ * The records of a partition are grouped when the buffer is flushed and are uploaded from the buffer, so
+ * partitioning does not hold extra copies of the records or delay checkpoints. At most s3MaxPartitions
+ * partitions are written per flush; records of any further partitions, and records without a partition, are
+ * written to the default partition. If the upload of a partition fails, only its records are failed.
+ * <p>
+ * The partition of each record is kept until its batch has been emitted, so a retried record is written to
+ * the partition it was first assigned to, even if it overflowed into the default partition or a
+ * ProcessingTimePartitioner has moved on to the next hour. The retry therefore rewrites the same file.
+ */
+public class PartitionedS3Emitter extends S3Emitter {
+    private static final Log LOG = LogFactory.getLog(PartitionedS3Emitter.class);
+    public static final String DEFAULT_PARTITION = "partition=__HIVE_DEFAULT_PARTITION__";
+
+    protected final IPartitioner<byte[]> partitioner;
+    protected final int maxPartitions;
+    // Partitions assigned to the records of the batch with this file name, until the batch has been emitted
+    private String assignedFileName;
+    private final Map<byte[], String> assignedPartitions = new IdentityHashMap<byte[], String>();
+
+    public PartitionedS3Emitter(KinesisConnectorConfiguration configuration, IPartitioner<byte[]> partitioner) {
+        super(configuration);
+        if (partitioner == null) {
+            throw new IllegalArgumentException("partitioner must not be null");
+        }
+        this.partitioner = partitioner;
+        this.maxPartitions = Math.max(1, configuration.S3_MAX_PARTITIONS);
+    }
+
+    @Override
+    public List<byte[]> emit(final UnmodifiableBuffer<byte[]> buffer) throws IOException {
+        String s3FileName = getS3FileName(buffer.getFirstSequenceNumber(), buffer.getLastSequenceNumber());
+        if (!s3FileName.equals(assignedFileName)) {
+            // A new batch rather than a retry of the previous one
+            assignedPartitions.clear();
+            assignedFileName = s3FileName;
+        }
+        Map<String, List<byte[]>> partitions = partition(buffer.getRecords());
+        List<byte[]> failed = new ArrayList<byte[]>();
+        for (Map.Entry<String, List<byte[]>> partition : partitions.entrySet()) {
+            String s3Key = partition.getKey() + "/" + s3FileName;
+            try {
+                // Records that cannot be encoded are failed, and the file of the others is kept on retry
+                List<byte[]> rejected = new ArrayList<byte[]>();
+                upload(s3Key, partition.getValue(), rejected);
+                failed.addAll(rejected);
+            } catch (Exception e) {
+                LOG.error("Caught exception when uploading file " + getS3URI(s3Key)
+                        + " to Amazon S3. Failing the records of this partition.", e);
+                failed.addAll(partition.getValue());
+            }
+        }
+        LOG.info("Emitted " + (buffer.getRecords().size() - failed.size()) + " records to Amazon S3 in "
+                + partitions.size() + " partitions of " + s3FileName + ". " + failed.size() + " records failed.");
+        if (failed.isEmpty()) {
+            assignedPartitions.clear();
+            assignedFileName = null;
+        }
+        return failed;
+    }
+
+    /**
+     * Groups the records by partition, keeping their order within each partition. Records that were already
+     * assigned a partition by an earlier attempt of the batch keep it.
+     *
+     * @param records
+     *        the records of the batch
+     * @return the records of each partition, in the order the partitions first appear
+     */
+    protected Map<String, List<byte[]>> partition(List<byte[]> records) {
+        Map<String, List<byte[]>> partitions = new LinkedHashMap<String, List<byte[]>>();
+        for (byte[] record : records) {
+            String partition = assignedPartitions.get(record);
+            if (partition == null) {
+                partition = partitioner.getPartition(record);
+                if (partition == null || partition.isEmpty()) {
+                    partition = DEFAULT_PARTITION;
+                }
+                if (!partitions.containsKey(partition) && partitions.size() >= maxPartitions) {
+                    // Route records of partitions over the limit to the default partition
+                    partition = DEFAULT_PARTITION;
+                }
+                assignedPartitions.put(record, partition);
+            }
+            List<byte[]> partitionRecords = partitions.get(partition);
+            if (partitionRecords == null) {
+                partitionRecords = new ArrayList<byte[]>();
+                partitions.put(partition, partitionRecords);
+            }
+            partitionRecords.add(record);
+        }
+        return partitions;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class is an InputStream over the concatenation of a list of byte array records. The records
+ * are read in place, so a batch can be used as the body of an Amazon S3 request without copying it
+ * into a single array. The content length is computed up front, and each record is fetched from the list
+ * only once per pass, which matters for lists that decode their records on access. A stream can also
+ * cover a byte range of the records, for example one part of a multipart upload.
+ * <p>
+ * The stream supports mark() and reset() without any read limit, so the AWS SDK can retry a request
+ * by rewinding the stream instead of buffering what it has sent.
+ * <p>
+ * Null records are skipped, and logged when the total length of the records is computed.
+ */
+public class RecordListInputStream extends InputStream {
+    private static final Log LOG = LogFactory.getLog(RecordListInputStream.class);
+    private static final byte[] EMPTY_RECORD = new byte[0];
+
+    private final List<byte[]> records;
+    private final long contentLength;
+
+    private int recordIndex;
+    private int recordOffset;
+    private byte[] record;
+    // Number of bytes read from the start of the range
+    private long position;
+
+    private int markedRecordIndex;
+    private int markedRecordOffset;
+    private long markedPosition;
+
+    public RecordListInputStream(List<byte[]> records) {
+        this(records, 0, getTotalLength(records));
+    }
+
+    /**
+     * @param records
+     *        the records to read
+     * @param offset
+     *        the position in the concatenated records to start reading at
+     * @param length
+     *        the number of bytes to read
+     */
+    public RecordListInputStream(List<byte[]> records, long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("offset and length must not be negative");
+        }
+        this.records = records;
+        this.record = recordAt(0);
+        if (advance(offset) < offset) {
+            throw new IllegalArgumentException("offset is beyond the end of the records");
+        }
+        this.contentLength = length;
+        mark(0);
+    }
+
+    /**
+     * @param records
+     *        byte array records
+     * @return the total number of bytes in the records, skipping null records
+     */
+    public static long getTotalLength(List<byte[]> records) {
+        long length = 0;
+        int index = 0;
+        for (byte[] record : records) {
+            if (record == null) {
+                LOG.error("Skipping null record at index " + index);
+            } else {
+                length += record.length;
+            }
+            index++;
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of bytes the stream reads
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public int read() {
+        while (record != null && position < contentLength) {
+            if (recordOffset < record.length) {
+                position++;
+                return record[recordOffset++] & 0xFF;
+            }
+            nextRecord();
+        }
+        return -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        len = (int) Math.min(len, contentLength - position);
+        int read = 0;
+        while (read < len && record != null) {
+            int count = Math.min(len - read, record.length - recordOffset);
+            System.arraycopy(record, recordOffset, b, off + read, count);
+            recordOffset += count;
+            read += count;
+            if (recordOffset == record.length) {
+                nextRecord();
+            }
+        }
+        position += read;
+        return (read == 0) ? -1 : read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = advance(Math.min(n, contentLength - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, contentLength - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        markedRecordIndex = recordIndex;
+        markedRecordOffset = recordOffset;
+        markedPosition = position;
+    }
+
+    @Override
+    public void reset() {
+        recordIndex = markedRecordIndex;
+        recordOffset = markedRecordOffset;
+        position = markedPosition;
+        record = recordAt(recordIndex);
+    }
+
+    /**
+     * Moves forward through the records without reading them or updating the position.
+     */
+    private long advance(long n) {
+        long skipped = 0;
+        while (skipped < n && record != null) {
+            int count = (int) Math.min(n - skipped, record.length - recordOffset);
+            recordOffset += count;
+            skipped += count;
+            if (recordOffset == record.length) {
+                nextRecord();
+            }
+        }
+        return skipped;
+    }
+
+    private void nextRecord() {
+        recordIndex++;
+        recordOffset = 0;
+        record = recordAt(recordIndex);
+    }
+
+    /**
+     * @return the record at the index, an empty record for a null record, or null past the last record
+     */
+    private byte[] recordAt(int index) {
+        if (index >= records.size()) {
+            return null;
+        }
+        byte[] result = records.get(index);
+        return (result == null) ? EMPTY_RECORD : result;
+    }
+}
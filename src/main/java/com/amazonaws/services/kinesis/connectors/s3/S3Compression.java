@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013-2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+/**
+ * The compression applied to files written to Amazon S3 by the S3Emitter. Each value defines the extension
+ * appended to the file name and the option that tells an Amazon Redshift COPY how to read the file.
+ */
+public enum S3Compression {
+    /**
+     * Files are written as the concatenated records.
+     */
+    NONE("", null),
+    /**
+     * Files are written as one or more concatenated gzip members, which Amazon Redshift and most gzip
+     * readers decompress as a single stream.
+     */
+    GZIP(".gz", "GZIP");
+
+    private final String fileExtension;
+    private final String copyOption;
+
+    private S3Compression(String fileExtension, String copyOption) {
+        this.fileExtension = fileExtension;
+        this.copyOption = copyOption;
+    }
+
+    /**
+     * @return the extension to append to file names, or an empty string
+     */
+    public String getFileExtension() {
+        return fileExtension;
+    }
+
+    /**
+     * @return the Amazon Redshift COPY option for files with this compression, or null if none is needed
+     */
+    public String getCopyOption() {
+        return copyOption;
+    }
+}
@@ -4,12 +4,22 @@
  */
 package com.amazonaws.services.kinesis.connectors.s3;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -18,33 +28,96 @@ import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
 import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
 import com.amazonaws.services.kinesis.connectors.interfaces.IEmitter;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 
 /**
  * This implementation of IEmitter is used to store files from an Amazon Kinesis stream in S3. The use of
  * this class requires the configuration of an Amazon S3 bucket/endpoint. When the buffer is full, this
  * class's emit method adds the contents of the buffer to Amazon S3 as one file. The filename is generated
  * from the first and last sequence numbers of the records contained in that file separated by a
- * dash. This class requires the configuration of an Amazon S3 bucket and endpoint.
+ * dash. This class requires the configuration of an Amazon S3 bucket and endpoint. The records are streamed
+ * to Amazon S3 directly from the buffer.
+ * <p>
+ * Files of at least s3MultipartUploadThreshold bytes are uploaded with a multipart upload. The parts are
+ * s3MultipartPartSize bytes and are uploaded concurrently on a thread pool shared by all S3Emitters of the
+ * JVM, which has as many threads as the largest s3MultipartUploadThreads of these emitters and is shut down with
+ * the last of them. If any part fails, the multipart upload is aborted and the emit attempt fails.
+ * <p>
+ * If s3Compression is set, files are compressed while they are uploaded and the matching extension is appended to
+ * the file name. Batches larger than s3CompressionBlockSize are compressed in blocks on the same shared thread
+ * pool, and the compressed blocks are concatenated into one file.
+ * <p>
+ * If redshiftCopyFormat is PARQUET, each batch of delimited records is written as one Parquet file with the
+ * columns of redshiftCopyColumnTypes and the .parquet extension. The Parquet pages are compressed with
+ * s3Compression instead of the whole file. Records that do not match these columns are left out of the file and
+ * returned as unprocessed, so they are retried and finally passed to fail(). A retry of only such records does not
+ * upload a file, so it never replaces the file of the valid records.
  */
 public class S3Emitter implements IEmitter<byte[]> {
     private static final Log LOG = LogFactory.getLog(S3Emitter.class);
+    // Amazon S3 limits for multipart uploads
+    private static final long MIN_PART_SIZE = 5 * 1024 * 1024L;
+    private static final int MAX_PARTS = 10000;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Shared by all S3Emitters of the JVM and sized for the largest s3MultipartUploadThreads among them.
+    // The pool is shut down with the last of these emitters. Guarded by the S3Emitter class.
+    private static ThreadPoolExecutor workerExecutor;
+    private static int workerExecutorThreads;
+    private static int workerExecutorUsers;
+
     protected final String s3Bucket;
     protected final String s3Endpoint;
 
     protected final AmazonS3Client s3client;
+    protected final S3Compression compression;
+    protected final long compressionBlockSize;
+    protected final long multipartUploadThreshold;
+    protected final long multipartPartSize;
+    protected final ParquetFileEncoder parquetEncoder;
+    private final int multipartUploadThreads;
+    private boolean isShutdown;
 
     public S3Emitter(KinesisConnectorConfiguration configuration) {
         s3Bucket = configuration.S3_BUCKET;
         s3Endpoint = configuration.S3_ENDPOINT;
+        compression = configuration.S3_COMPRESSION;
+        compressionBlockSize = Math.max(1, configuration.S3_COMPRESSION_BLOCK_SIZE);
+        multipartUploadThreshold = configuration.S3_MULTIPART_UPLOAD_THRESHOLD;
+        multipartPartSize = Math.max(MIN_PART_SIZE, configuration.S3_MULTIPART_PART_SIZE);
+        multipartUploadThreads = configuration.S3_MULTIPART_UPLOAD_THREADS;
+        if (ParquetFileEncoder.isParquet(configuration.REDSHIFT_COPY_FORMAT)) {
+            parquetEncoder =
+                    new ParquetFileEncoder(ParquetFileEncoder.parseColumnTypes(configuration.REDSHIFT_COPY_COLUMN_TYPES),
+                            configuration.REDSHIFT_DATA_DELIMITER,
+                            compression);
+        } else {
+            parquetEncoder = null;
+        }
         s3client = new AmazonS3Client(configuration.AWS_CREDENTIALS_PROVIDER);
         if (s3Endpoint != null) {
             s3client.setEndpoint(s3Endpoint);
         }
+        registerWorkerExecutorUser(multipartUploadThreads);
     }
 
     protected String getS3FileName(String firstSeq, String lastSeq) {
-        return firstSeq + "-" + lastSeq;
+        return firstSeq + "-" + lastSeq + getFileExtension();
+    }
+
+    /**
+     * @return the extension of the file format, or of the compression of files of delimited records
+     */
+    protected String getFileExtension() {
+        if (parquetEncoder != null) {
+            return parquetEncoder.getFileExtension();
+        }
+        return compression.getFileExtension();
     }
 
     protected String getS3URI(String s3FileName) {
@@ -54,35 +127,234 @@ public class S3Emitter implements IEmitter<byte[]> {
     @Override
     public List<byte[]> emit(final UnmodifiableBuffer<byte[]> buffer) throws IOException {
         List<byte[]> records = buffer.getRecords();
-        // Write all of the records to a compressed output stream
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        for (byte[] record : records) {
-            try {
-                baos.write(record);
-            } catch (Exception e) {
-                LOG.error("Error writing record to output stream. Failing this emit attempt. Record: "
-                        + Arrays.toString(record),
-                        e);
-                return buffer.getRecords();
-            }
-        }
         // Get the Amazon S3 filename
         String s3FileName = getS3FileName(buffer.getFirstSequenceNumber(), buffer.getLastSequenceNumber());
         String s3URI = getS3URI(s3FileName);
         try {
-            ByteArrayInputStream object = new ByteArrayInputStream(baos.toByteArray());
-            LOG.debug("Starting upload of file " + s3URI + " to Amazon S3 containing " + records.size() + " records.");
-            ObjectMetadata meta = new ObjectMetadata();
-            meta.setContentLength(baos.size());
-            s3client.putObject(s3Bucket, s3FileName, object, meta);
-            LOG.info("Successfully emitted " + buffer.getRecords().size() + " records to Amazon S3 in " + s3URI);
-            return Collections.emptyList();
+            List<byte[]> rejected = new ArrayList<byte[]>();
+            if (upload(s3FileName, records, rejected)) {
+                LOG.info("Successfully emitted " + (records.size() - rejected.size()) + " records to Amazon S3 in "
+                        + s3URI);
+            }
+            return rejected;
         } catch (Exception e) {
             LOG.error("Caught exception when uploading file " + s3URI + "to Amazon S3. Failing this emit attempt.", e);
             return buffer.getRecords();
         }
     }
 
+    /**
+     * Uploads the records as one file, encoding and compressing them if configured and using a multipart upload for
+     * large files. Parquet files are compressed internally and are not compressed again.
+     *
+     * @param s3FileName
+     *        the key of the file in the Amazon S3 bucket
+     * @param records
+     *        the records to write to the file
+     * @param rejectedRecords
+     *        receives the records that cannot be encoded and are left out of the file
+     * @return true if the file was uploaded, false if all records were rejected and no file was uploaded
+     */
+    protected boolean upload(String s3FileName, List<byte[]> records, List<byte[]> rejectedRecords)
+        throws IOException {
+        int numRejected = rejectedRecords.size();
+        List<byte[]> encoded = encode(records, rejectedRecords);
+        if (encoded.isEmpty() && rejectedRecords.size() > numRejected) {
+            LOG.warn("None of the " + records.size() + " records could be encoded. Not uploading "
+                    + getS3URI(s3FileName));
+            return false;
+        }
+        // Stream the file into the request body without copying it into a single array
+        List<byte[]> data = (parquetEncoder != null) ? encoded : compress(encoded);
+        RecordListInputStream object = new RecordListInputStream(data);
+        LOG.debug("Starting upload of file " + getS3URI(s3FileName) + " to Amazon S3 containing " + records.size()
+                + " records in " + object.getContentLength() + " bytes.");
+        if (object.getContentLength() >= multipartUploadThreshold) {
+            uploadMultipart(s3FileName, data, object.getContentLength());
+        } else {
+            ObjectMetadata meta = new ObjectMetadata();
+            meta.setContentLength(object.getContentLength());
+            s3client.putObject(s3Bucket, s3FileName, object, meta);
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the records into the contents of a file. The file is the concatenated records, or a Parquet file if
+     * redshiftCopyFormat is PARQUET. Subclasses can override this to write another file format.
+     *
+     * @param records
+     *        the records of the batch
+     * @param rejectedRecords
+     *        receives the records that cannot be encoded and are left out of the file
+     * @return the contents of the file, as blocks to be concatenated, or an empty list if all records were rejected
+     */
+    protected List<byte[]> encode(List<byte[]> records, List<byte[]> rejectedRecords) throws IOException {
+        if (parquetEncoder != null) {
+            return parquetEncoder.encode(records, rejectedRecords);
+        }
+        return records;
+    }
+
+    /**
+     * Compresses the records with the configured compression. Records larger than compressionBlockSize in total
+     * are split into blocks that are compressed concurrently.
+     *
+     * @param records
+     *        the records of the batch
+     * @return the contents of the file, as blocks to be concatenated
+     */
+    protected List<byte[]> compress(final List<byte[]> records) throws IOException {
+        if (compression == S3Compression.NONE) {
+            return records;
+        }
+        long contentLength = RecordListInputStream.getTotalLength(records);
+        if (contentLength <= compressionBlockSize) {
+            return Collections.singletonList(gzip(records, 0, contentLength));
+        }
+        List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>();
+        try {
+            ExecutorService executor = getWorkerExecutor();
+            for (long offset = 0; offset < contentLength; offset += compressionBlockSize) {
+                final long blockOffset = offset;
+                final long blockSize = Math.min(compressionBlockSize, contentLength - offset);
+                blocks.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return gzip(records, blockOffset, blockSize);
+                    }
+                }));
+            }
+            List<byte[]> compressed = new ArrayList<byte[]>(blocks.size());
+            for (Future<byte[]> block : blocks) {
+                compressed.add(block.get());
+            }
+            return compressed;
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            for (Future<byte[]> block : blocks) {
+                block.cancel(true);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Unable to compress records", e);
+        }
+    }
+
+    /**
+     * Compresses a byte range of the records into a complete gzip member.
+     */
+    private static byte[] gzip(List<byte[]> records, long offset, long length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, length / 4 + 64));
+        try (InputStream in = new RecordListInputStream(records, offset, length);
+                GZIPOutputStream gzip = new GZIPOutputStream(compressed, COPY_BUFFER_SIZE)) {
+            byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(copyBuffer)) != -1) {
+                gzip.write(copyBuffer, 0, read);
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Uploads the records as one file in parts of multipartPartSize bytes, uploading the parts concurrently.
+     * The upload is aborted if any part fails.
+     */
+    protected void uploadMultipart(final String s3FileName, final List<byte[]> records, long contentLength)
+        throws IOException {
+        // Grow the parts if the file would have too many of them
+        long partSize = Math.max(multipartPartSize, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+        final String uploadId =
+                s3client.initiateMultipartUpload(new InitiateMultipartUploadRequest(s3Bucket, s3FileName)).getUploadId();
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        try {
+            ExecutorService executor = getWorkerExecutor();
+            int partNumber = 1;
+            for (long offset = 0; offset < contentLength; offset += partSize) {
+                long size = Math.min(partSize, contentLength - offset);
+                final UploadPartRequest request = new UploadPartRequest().withBucketName(s3Bucket)
+                        .withKey(s3FileName)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber++)
+                        .withPartSize(size)
+                        .withInputStream(new RecordListInputStream(records, offset, size))
+                        .withLastPart(offset + size == contentLength);
+                parts.add(executor.submit(new Callable<PartETag>() {
+                    @Override
+                    public PartETag call() {
+                        return s3client.uploadPart(request).getPartETag();
+                    }
+                }));
+            }
+            List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            s3client.completeMultipartUpload(new CompleteMultipartUploadRequest(s3Bucket, s3FileName, uploadId,
+                    partETags));
+            LOG.debug("Completed multipart upload of " + getS3URI(s3FileName) + " in " + parts.size() + " parts.");
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            for (Future<PartETag> part : parts) {
+                part.cancel(true);
+            }
+            try {
+                s3client.abortMultipartUpload(new AbortMultipartUploadRequest(s3Bucket, s3FileName, uploadId));
+            } catch (RuntimeException abortException) {
+                LOG.warn("Unable to abort multipart upload " + uploadId + " of " + getS3URI(s3FileName),
+                        abortException);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Multipart upload of " + getS3URI(s3FileName) + " failed", e);
+        }
+    }
+
+    private static synchronized void registerWorkerExecutorUser(int threads) {
+        workerExecutorUsers++;
+        threads = Math.max(1, threads);
+        if (workerExecutorThreads > 0 && threads != workerExecutorThreads) {
+            LOG.warn("s3MultipartUploadThreads of " + threads + " differs from the " + workerExecutorThreads
+                    + " threads of the shared pool. Using " + Math.max(threads, workerExecutorThreads) + " threads.");
+        }
+        if (threads > workerExecutorThreads) {
+            workerExecutorThreads = threads;
+            if (workerExecutor != null) {
+                // Raise the maximum first, it must never be below the core size
+                workerExecutor.setMaximumPoolSize(threads);
+                workerExecutor.setCorePoolSize(threads);
+            }
+        }
+    }
+
+    private static synchronized void releaseWorkerExecutorUser() {
+        if (--workerExecutorUsers == 0) {
+            if (workerExecutor != null) {
+                workerExecutor.shutdown();
+                workerExecutor = null;
+            }
+            workerExecutorThreads = 0;
+        }
+    }
+
+    private static synchronized ExecutorService getWorkerExecutor() {
+        if (workerExecutor == null) {
+            workerExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(workerExecutorThreads,
+                    new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "s3-emitter-worker-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return workerExecutor;
+    }
+
     @Override
     public void fail(List<byte[]> records) {
         for (byte[] record : records) {
@@ -93,6 +365,10 @@ public class S3Emitter implements IEmitter<byte[]> {
     @Override
     public void shutdown() {
         s3client.shutdown();
+        if (!isShutdown) {
+            isShutdown = true;
+            releaseWorkerExecutorUser();
+        }
     }
 
 }
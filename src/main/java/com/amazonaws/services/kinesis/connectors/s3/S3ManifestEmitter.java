@@ -6,8 +6,16 @@ package com.amazonaws.services.kinesis.connectors.s3;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -16,6 +24,7 @@ import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
 import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
 import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
+import com.amazonaws.services.kinesis.connectors.redshift.RedshiftConnectionPool;
 import com.amazonaws.services.kinesis.model.PutRecordRequest;
 
 /**
@@ -31,12 +40,35 @@ import com.amazonaws.services.kinesis.model.PutRecordRequest;
  * <li>Puts the single file name into the manifest stream</li>
  * </ol>
  * <p>
+ * If s3ManifestSlices is set to the number of slices of the Amazon Redshift cluster, buffers of at least one
+ * megabyte per slice are split at record boundaries into one file of about the same size per slice, so the
+ * manifest copy of the files loads on all slices in parallel. The file names are put into the manifest stream in
+ * order. A negative s3ManifestSlices reads the slice count from the cluster at redshiftURL on the first emit, through
+ * the shared RedshiftConnectionPool. The slice count is cached per cluster for all S3ManifestEmitters of the JVM; if
+ * it cannot be read, files are not split and the count is read again after a minute.
+ * <p>
+ * If batchRecordsInPutRequest is set, the file names are put through the ManifestStreamPublisher, which batches
+ * the file names of all S3ManifestEmitters of the JVM into PutRecords requests. Each emitter then uses its own
+ * partition key, so its file names stay in order without putting all file names into one shard. The emitter releases
+ * the shared publisher when it shuts down.
+ * <p>
  * NOTE: the Amazon S3 bucket and Amazon Redshift cluster must be in the same region.
  */
 public class S3ManifestEmitter extends S3Emitter {
     private static final Log LOG = LogFactory.getLog(S3ManifestEmitter.class);
+    // Amazon Redshift loads files of at least this size efficiently
+    private static final long MIN_SLICE_FILE_SIZE = 1024 * 1024L;
+    private static final long SLICE_LOOKUP_RETRY_MILLIS = 60 * 1000L;
+    // Slice counts by Amazon Redshift URL, guarded by CLUSTER_SLICES
+    private static final Map<String, ClusterSlices> CLUSTER_SLICES = new HashMap<String, ClusterSlices>();
     private final AmazonKinesisClient kinesisClient;
     private final String manifestStream;
+    private final int numSlices;
+    private final String redshiftURL;
+    private final RedshiftConnectionPool connectionPool;
+    private final ManifestStreamPublisher publisher;
+    private final String partitionKey;
+    private boolean isShutdown;
 
     public S3ManifestEmitter(KinesisConnectorConfiguration configuration) {
         super(configuration);
@@ -45,36 +77,157 @@ public class S3ManifestEmitter extends S3Emitter {
         if (configuration.KINESIS_ENDPOINT != null) {
             kinesisClient.setEndpoint(configuration.KINESIS_ENDPOINT);
         }
+        numSlices = configuration.S3_MANIFEST_SLICES;
+        redshiftURL = configuration.REDSHIFT_URL;
+        connectionPool = (numSlices < 0) ? RedshiftConnectionPool.getPool(configuration) : null;
+        if (configuration.BATCH_RECORDS_IN_PUT_REQUEST) {
+            publisher = ManifestStreamPublisher.getPublisher(configuration);
+            partitionKey = UUID.randomUUID().toString();
+        } else {
+            publisher = null;
+            // Use constant partition key to ensure file order
+            partitionKey = manifestStream;
+        }
     }
 
     @Override
     public List<byte[]> emit(final UnmodifiableBuffer<byte[]> buffer) throws IOException {
-        // Store the contents of buffer.getRecords because superclass will
-        // clear the buffer on success
-        List<byte[]> failed = super.emit(buffer);
-        // calls S3Emitter to write objects to Amazon S3
-        if (!failed.isEmpty()) {
+        List<List<byte[]>> parts = splitForSlices(buffer.getRecords());
+        List<String> s3Files = new ArrayList<String>();
+        // Records that cannot be encoded are left out of the files and retried without the uploaded files
+        List<byte[]> rejected = new ArrayList<byte[]>();
+        try {
+            for (int i = 0; i < parts.size(); i++) {
+                String s3File = (parts.size() == 1)
+                        ? getS3FileName(buffer.getFirstSequenceNumber(), buffer.getLastSequenceNumber())
+                        : getS3PartFileName(buffer.getFirstSequenceNumber(), buffer.getLastSequenceNumber(), i);
+                if (upload(s3File, parts.get(i), rejected)) {
+                    s3Files.add(s3File);
+                }
+            }
+            LOG.info("Successfully emitted " + (buffer.getRecords().size() - rejected.size())
+                    + " records to Amazon S3 in " + s3Files.size() + " files.");
+        } catch (Exception e) {
+            LOG.error("Caught exception when uploading files to Amazon S3. Failing this emit attempt.", e);
             return buffer.getRecords();
         }
-        String s3File = getS3FileName(buffer.getFirstSequenceNumber(), buffer.getLastSequenceNumber());
-        // wrap the name of the Amazon S3 file as the record data
-        ByteBuffer data = ByteBuffer.wrap(s3File.getBytes());
-        // Put the list of file names to the manifest Amazon Kinesis stream
-        PutRecordRequest putRecordRequest = new PutRecordRequest();
-        putRecordRequest.setData(data);
-        putRecordRequest.setStreamName(manifestStream);
-        // Use constant partition key to ensure file order
-        putRecordRequest.setPartitionKey(manifestStream);
+        if (s3Files.isEmpty()) {
+            return rejected;
+        }
         try {
-            kinesisClient.putRecord(putRecordRequest);
-            LOG.info("S3ManifestEmitter emitted record downstream: " + s3File);
-            return Collections.emptyList();
+            if (publisher != null) {
+                publisher.publish(partitionKey, s3Files);
+                LOG.info("S3ManifestEmitter emitted records downstream: " + s3Files);
+                return rejected;
+            }
+            for (String s3File : s3Files) {
+                // wrap the name of the Amazon S3 file as the record data
+                ByteBuffer data = ByteBuffer.wrap(s3File.getBytes());
+                // Put the list of file names to the manifest Amazon Kinesis stream
+                PutRecordRequest putRecordRequest = new PutRecordRequest();
+                putRecordRequest.setData(data);
+                putRecordRequest.setStreamName(manifestStream);
+                putRecordRequest.setPartitionKey(partitionKey);
+                kinesisClient.putRecord(putRecordRequest);
+                LOG.info("S3ManifestEmitter emitted record downstream: " + s3File);
+            }
+            return rejected;
         } catch (Exception e) {
             LOG.error(e);
             return buffer.getRecords();
         }
     }
 
+    /**
+     * Splits the records of a buffer into one part per slice of about the same number of bytes. Buffers that are
+     * too small to give every slice a file of at least one megabyte are not split. A record larger than a part
+     * can leave fewer parts than slices.
+     *
+     * @param records
+     *        the records of the buffer
+     * @return the parts in order
+     */
+    protected List<List<byte[]>> splitForSlices(List<byte[]> records) {
+        int numSlices = getNumSlices();
+        long totalLength = RecordListInputStream.getTotalLength(records);
+        if (numSlices <= 1 || records.size() < numSlices || totalLength < numSlices * MIN_SLICE_FILE_SIZE) {
+            return Collections.singletonList(records);
+        }
+        List<List<byte[]>> parts = new ArrayList<List<byte[]>>(numSlices);
+        int partStart = 0;
+        long length = 0;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] record = records.get(i);
+            if (record != null) {
+                length += record.length;
+            }
+            // Cut when the bytes so far reach the end of the next part's share of the total
+            if (parts.size() < numSlices - 1 && length >= totalLength * (parts.size() + 1) / numSlices) {
+                parts.add(records.subList(partStart, i + 1));
+                partStart = i + 1;
+            }
+        }
+        if (partStart < records.size()) {
+            parts.add(records.subList(partStart, records.size()));
+        }
+        return parts;
+    }
+
+    /**
+     * @return the name of one part of a split buffer, ordered by part within the buffer
+     */
+    protected String getS3PartFileName(String firstSeq, String lastSeq, int part) {
+        return firstSeq + "-" + lastSeq + String.format("-part%04d", part) + getFileExtension();
+    }
+
+    /**
+     * @return s3ManifestSlices, or the slice count of the Amazon Redshift cluster if s3ManifestSlices is negative.
+     *         Returns 1, which disables splitting, while the slice count cannot be read.
+     */
+    protected int getNumSlices() {
+        if (numSlices >= 0) {
+            return numSlices;
+        }
+        long now = getCurrentTimeMilliseconds();
+        synchronized (CLUSTER_SLICES) {
+            ClusterSlices cached = CLUSTER_SLICES.get(redshiftURL);
+            if (cached != null && now < cached.expiresAt) {
+                return cached.slices;
+            }
+        }
+        // Query without holding the lock, so other emitters are not blocked by a slow or unreachable cluster
+        ClusterSlices slices;
+        try {
+            int count = readClusterSlices();
+            LOG.info("Splitting manifest files for " + count + " Amazon Redshift slices.");
+            slices = new ClusterSlices(count, Long.MAX_VALUE);
+        } catch (SQLException | RuntimeException e) {
+            LOG.warn("Unable to read the slice count of the Amazon Redshift cluster. Files will not be split.", e);
+            slices = new ClusterSlices(1, now + SLICE_LOOKUP_RETRY_MILLIS);
+        }
+        synchronized (CLUSTER_SLICES) {
+            CLUSTER_SLICES.put(redshiftURL, slices);
+        }
+        return slices.slices;
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected int readClusterSlices() throws SQLException {
+        Connection conn = connectionPool.getConnection();
+        try (Statement stmt = conn.createStatement();
+                ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM stv_slices;")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        } finally {
+            connectionPool.release(conn);
+        }
+    }
+
+    // This method has protected access for unit testing purposes.
+    protected long getCurrentTimeMilliseconds() {
+        return System.currentTimeMillis();
+    }
+
     @Override
     public void fail(List<byte[]> records) {
         super.fail(records);
@@ -84,6 +237,25 @@ public class S3ManifestEmitter extends S3Emitter {
     public void shutdown() {
         super.shutdown();
         kinesisClient.shutdown();
+        if (!isShutdown) {
+            isShutdown = true;
+            if (publisher != null) {
+                ManifestStreamPublisher.releasePublisher(publisher);
+            }
+            if (connectionPool != null) {
+                RedshiftConnectionPool.releasePool(connectionPool);
+            }
+        }
+    }
+
+    private static class ClusterSlices {
+        private final int slices;
+        private final long expiresAt;
+
+        ClusterSlices(int slices, long expiresAt) {
+            this.slices = slices;
+            this.expiresAt = expiresAt;
+        }
     }
 
 }
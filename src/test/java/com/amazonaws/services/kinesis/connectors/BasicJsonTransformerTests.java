@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.connectors.impl.JsonToByteArrayTransformer;
+import com.amazonaws.services.kinesis.model.Record;
+
+public class BasicJsonTransformerTests {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        JsonToByteArrayTransformer<Model> transformer = new JsonToByteArrayTransformer<Model>(Model.class);
+        Record record = new Record().withData(ByteBuffer.wrap("{\"value\":\"data\"}".getBytes()));
+        Model model = transformer.toClass(record);
+        assertEquals("data", model.value);
+        assertEquals("{\"value\":\"data\"}", new String(transformer.fromClass(model)));
+    }
+
+    @Test
+    public void testSubclassFieldsAreSerialized() throws Exception {
+        SubModel model = new SubModel();
+        model.value = "data";
+        model.extra = "more";
+        assertEquals("{\"value\":\"data\",\"extra\":\"more\"}",
+                new String(new JsonToByteArrayTransformer<Model>(Model.class).fromClass(model)));
+    }
+
+    public static class Model {
+        public String value;
+    }
+
+    public static class SubModel extends Model {
+        public String extra;
+    }
+}
@@ -4,12 +4,25 @@
  */
 package com.amazonaws.services.kinesis.connectors;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.easymock.EasyMock;
 import org.easymock.IMocksControl;
@@ -26,6 +39,10 @@ import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
 import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
 import com.amazonaws.services.kinesis.connectors.KinesisConnectorRecordProcessor;
 import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
+import com.amazonaws.services.kinesis.connectors.impl.AllPassFilter;
+import com.amazonaws.services.kinesis.connectors.impl.BasicMemoryBuffer;
+import com.amazonaws.services.kinesis.connectors.impl.StringToStringTransformer;
+import com.amazonaws.services.kinesis.connectors.impl.SwappingMemoryBuffer;
 import com.amazonaws.services.kinesis.connectors.interfaces.IBuffer;
 import com.amazonaws.services.kinesis.connectors.interfaces.ICollectionTransformer;
 import com.amazonaws.services.kinesis.connectors.interfaces.IEmitter;
@@ -539,6 +556,310 @@ public class KinesisConnectorRecordProcessorTests {
         control.verify();
     }
 
+    /**
+     * Test asynchronous emit emits batches in order and only checkpoints completed batches, in order.
+     */
+    @Test
+    public void testAsyncEmitCheckpointsInOrder() {
+        configuration = getAsyncEmitConfiguration();
+        runAsyncEmit(new BasicMemoryBuffer<String>(configuration));
+    }
+
+    /**
+     * Test asynchronous emit with a buffer that swaps its records out instead of copying them.
+     */
+    @Test
+    public void testAsyncEmitWithSwappingBuffer() {
+        configuration = getAsyncEmitConfiguration();
+        runAsyncEmit(new SwappingMemoryBuffer<String>(configuration));
+    }
+
+    /**
+     * Test an asynchronous batch whose emit threw an IOException is emitted again before any later record, and the
+     * checkpoint only advances past it once it has been emitted.
+     */
+    @Test
+    public void testAsyncEmitFailureIsEmittedAgainInOrder() {
+        configuration = getAsyncEmitConfiguration();
+        final List<String> emitted = new CopyOnWriteArrayList<String>();
+        final List<String> failed = new CopyOnWriteArrayList<String>();
+        IEmitter<String> failingOnceEmitter = new IEmitter<String>() {
+            private boolean thrown = false;
+
+            @Override
+            public List<String> emit(UnmodifiableBuffer<String> buffer) throws IOException {
+                if (!thrown && buffer.getRecords().contains("2")) {
+                    thrown = true;
+                    throw new IOException("emit failed");
+                }
+                emitted.addAll(buffer.getRecords());
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void fail(List<String> records) {
+                failed.addAll(records);
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+        List<String> checkpoints = new CopyOnWriteArrayList<String>();
+
+        KinesisConnectorRecordProcessor<String, String> kcrp = new KinesisConnectorRecordProcessor<String, String>(
+                new BasicMemoryBuffer<String>(configuration), new AllPassFilter<String>(), failingOnceEmitter,
+                new StringToStringTransformer(), configuration);
+        kcrp.initialize("shardId");
+        for (int i = 1; i <= 4; i++) {
+            kcrp.processRecords(getSequencedRecord(i), getRecordingCheckpointer(checkpoints));
+            // the checkpoint never passes the failed batch before it has been emitted again
+            assertTrue(checkpoints.isEmpty() || checkpoints.get(checkpoints.size() - 1).compareTo("2") < 0
+                    || emitted.contains("2"));
+        }
+        kcrp.shutdown(getRecordingCheckpointer(checkpoints), ShutdownReason.TERMINATE);
+
+        assertEquals(Collections.singletonList("2"), failed);
+        assertEquals(Arrays.asList("1", "2", "3", "4"), emitted);
+        List<String> sorted = new ArrayList<String>(checkpoints);
+        Collections.sort(sorted);
+        assertEquals(sorted, checkpoints);
+        assertEquals(Arrays.asList("4", "SHARD_END"),
+                checkpoints.subList(checkpoints.size() - 2, checkpoints.size()));
+    }
+
+    /**
+     * Test the end of the shard is not checkpointed while an asynchronous batch whose emit threw keeps failing, and
+     * that the records after it are not emitted.
+     */
+    @Test
+    public void testAsyncEmitFailureBlocksEndOfShard() {
+        configuration = getAsyncEmitConfiguration();
+        final List<String> emitted = new CopyOnWriteArrayList<String>();
+        final boolean[] emitterShutdown = { false };
+        IEmitter<String> failingEmitter = new IEmitter<String>() {
+            @Override
+            public List<String> emit(UnmodifiableBuffer<String> buffer) throws IOException {
+                if (buffer.getRecords().contains("2")) {
+                    throw new IOException("emit failed");
+                }
+                emitted.addAll(buffer.getRecords());
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void fail(List<String> records) {
+            }
+
+            @Override
+            public void shutdown() {
+                emitterShutdown[0] = true;
+            }
+        };
+        List<String> checkpoints = new CopyOnWriteArrayList<String>();
+
+        KinesisConnectorRecordProcessor<String, String> kcrp = new KinesisConnectorRecordProcessor<String, String>(
+                new BasicMemoryBuffer<String>(configuration), new AllPassFilter<String>(), failingEmitter,
+                new StringToStringTransformer(), configuration);
+        kcrp.initialize("shardId");
+        for (int i = 1; i <= 4; i++) {
+            kcrp.processRecords(getSequencedRecord(i), getRecordingCheckpointer(checkpoints));
+        }
+        try {
+            kcrp.shutdown(getRecordingCheckpointer(checkpoints), ShutdownReason.TERMINATE);
+            fail("shutdown must not finish the shard without the failed batch");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Collections.singletonList("1"), emitted);
+        assertEquals(Collections.singletonList("1"), checkpoints);
+        assertFalse(emitterShutdown[0]);
+
+        // the lease can still be given up
+        kcrp.shutdown(getRecordingCheckpointer(checkpoints), ShutdownReason.ZOMBIE);
+        assertTrue(emitterShutdown[0]);
+        assertEquals(Collections.singletonList("1"), checkpoints);
+    }
+
+    private List<Record> getSequencedRecord(int sequenceNumber) {
+        Record record = new Record();
+        record.setData(ByteBuffer.wrap(Integer.toString(sequenceNumber).getBytes()));
+        record.setPartitionKey(DEFAULT_PARTITION_KEY);
+        record.setSequenceNumber(Integer.toString(sequenceNumber));
+        return Collections.singletonList(record);
+    }
+
+    private IRecordProcessorCheckpointer getRecordingCheckpointer(final List<String> checkpoints) {
+        return new IRecordProcessorCheckpointer() {
+            @Override
+            public void checkpoint(String sequenceNumber) {
+                checkpoints.add(sequenceNumber);
+            }
+
+            @Override
+            public void checkpoint() {
+                checkpoints.add("SHARD_END");
+            }
+
+            @Override
+            public void checkpoint(Record record) {
+            }
+
+            @Override
+            public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+            }
+        };
+    }
+
+    /**
+     * Test the flush timer emits and checkpoints buffered records without further processRecords calls, and that
+     * the flush runs on the flush executor rather than the scheduler thread.
+     */
+    @Test
+    public void testTimerFlush() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_BUFFER_TIMER_FLUSH, "true");
+        props.setProperty(KinesisConnectorConfiguration.PROP_BUFFER_MILLISECONDS_LIMIT, String.valueOf(50));
+        configuration = new KinesisConnectorConfiguration(props, new DefaultAWSCredentialsProviderChain());
+        String shardId = "shardId";
+        String sequenceNumber = "1";
+
+        final CountDownLatch emitted = new CountDownLatch(1);
+        final List<String> emittedRecords = new CopyOnWriteArrayList<String>();
+        final List<String> emitThreads = new CopyOnWriteArrayList<String>();
+        IEmitter<String> countingEmitter = new IEmitter<String>() {
+            @Override
+            public List<String> emit(UnmodifiableBuffer<String> buffer) {
+                emittedRecords.addAll(buffer.getRecords());
+                emitThreads.add(Thread.currentThread().getName());
+                emitted.countDown();
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void fail(List<String> records) {
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+        checkpointer.checkpoint(sequenceNumber);
+        control.replay();
+
+        ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "timer");
+            }
+        });
+        ExecutorService flushExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "flush");
+            }
+        });
+        try {
+            KinesisConnectorRecordProcessor<String, String> kcrp = new KinesisConnectorRecordProcessor<String, String>(
+                    new BasicMemoryBuffer<String>(configuration), new AllPassFilter<String>(), countingEmitter,
+                    new StringToStringTransformer(), configuration, null, flushScheduler, flushExecutor);
+            kcrp.initialize(shardId);
+            List<Record> records = getDummyRecordList(1);
+            records.get(0).setSequenceNumber(sequenceNumber);
+            kcrp.processRecords(records, checkpointer);
+
+            assertTrue(emitted.await(10, TimeUnit.SECONDS));
+            kcrp.shutdown(checkpointer, ShutdownReason.ZOMBIE);
+        } finally {
+            flushScheduler.shutdownNow();
+            flushExecutor.shutdownNow();
+        }
+        assertEquals(1, emittedRecords.size());
+        assertEquals(Collections.singletonList("flush"), emitThreads);
+        control.verify();
+    }
+
+    private KinesisConnectorConfiguration getAsyncEmitConfiguration() {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_ASYNC_EMIT, "true");
+        props.setProperty(KinesisConnectorConfiguration.PROP_ASYNC_EMIT_MAX_IN_FLIGHT, String.valueOf(2));
+        // flush after every record
+        props.setProperty(KinesisConnectorConfiguration.PROP_BUFFER_RECORD_COUNT_LIMIT, String.valueOf(1));
+        return new KinesisConnectorConfiguration(props, new DefaultAWSCredentialsProviderChain());
+    }
+
+    private void runAsyncEmit(IBuffer<String> asyncBuffer) {
+        String shardId = "shardId";
+
+        final List<String> emitted = new CopyOnWriteArrayList<String>();
+        IEmitter<String> slowEmitter = new IEmitter<String>() {
+            @Override
+            public List<String> emit(UnmodifiableBuffer<String> buffer) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // shutdown emits whatever is left in the buffer, even if it is empty
+                if (!buffer.getRecords().isEmpty()) {
+                    emitted.add(buffer.getLastSequenceNumber());
+                }
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void fail(List<String> records) {
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+        final List<String> checkpoints = new CopyOnWriteArrayList<String>();
+        IRecordProcessorCheckpointer recordingCheckpointer = new IRecordProcessorCheckpointer() {
+            @Override
+            public void checkpoint(String sequenceNumber) {
+                checkpoints.add(sequenceNumber);
+            }
+
+            @Override
+            public void checkpoint() {
+            }
+
+            @Override
+            public void checkpoint(Record record) {
+            }
+
+            @Override
+            public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+            }
+        };
+
+        KinesisConnectorRecordProcessor<String, String> kcrp = new KinesisConnectorRecordProcessor<String, String>(
+                asyncBuffer, new AllPassFilter<String>(), slowEmitter,
+                new StringToStringTransformer(), configuration);
+        kcrp.initialize(shardId);
+
+        int numBatches = 5;
+        for (int i = 1; i <= numBatches; i++) {
+            List<Record> records = getDummyRecordList(1);
+            records.get(0).setSequenceNumber(Integer.toString(i));
+            kcrp.processRecords(records, recordingCheckpointer);
+        }
+        kcrp.shutdown(recordingCheckpointer, ShutdownReason.TERMINATE);
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 1; i <= numBatches; i++) {
+            expected.add(Integer.toString(i));
+        }
+        assertEquals(expected, emitted);
+        // checkpoints never go backwards and end at the last batch
+        for (int i = 1; i < checkpoints.size(); i++) {
+            assertTrue(Integer.parseInt(checkpoints.get(i - 1)) <= Integer.parseInt(checkpoints.get(i)));
+        }
+        assertEquals(Integer.toString(numBatches), checkpoints.get(checkpoints.size() - 1));
+    }
+
     private List<Record> getDummyRecordList(int length) {
         ArrayList<Record> list = new ArrayList<Record>();
         for (int i = 0; i < length; i++) {
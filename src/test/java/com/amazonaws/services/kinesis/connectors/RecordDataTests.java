@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.connectors.impl.JsonToByteArrayTransformer;
+import com.amazonaws.services.kinesis.connectors.impl.StringToStringTransformer;
+import com.amazonaws.services.kinesis.model.Record;
+
+public class RecordDataTests {
+
+    @Test
+    public void testSlicedBuffer() throws Exception {
+        ByteBuffer backing = ByteBuffer.wrap("xxdataxx".getBytes());
+        backing.position(2);
+        backing.limit(6);
+        Record record = new Record().withData(backing.slice());
+
+        assertEquals(4, RecordData.size(record));
+        assertEquals("data", RecordData.asString(record));
+        assertArrayEquals("data".getBytes(), RecordData.toByteArray(record));
+        assertEquals("data", new StringToStringTransformer().toClass(record));
+        assertEquals(4, RecordData.size(record));
+    }
+
+    @Test
+    public void testDirectBuffer() throws Exception {
+        byte[] json = "{\"value\":\"data\"}".getBytes();
+        ByteBuffer direct = ByteBuffer.allocateDirect(json.length);
+        direct.put(json);
+        direct.flip();
+        Record record = new Record().withData(direct);
+
+        assertFalse(RecordData.hasArray(record));
+        assertEquals(json.length, RecordData.size(record));
+        InputStream in = RecordData.asInputStream(record);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        assertArrayEquals(json, out.toByteArray());
+
+        Model model = new JsonToByteArrayTransformer<Model>(Model.class).toClass(record);
+        assertEquals("data", model.value);
+        assertEquals(json.length, RecordData.size(record));
+    }
+
+    public static class Model {
+        public String value;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WorkerMemoryBudgetTests {
+
+    @Test
+    public void testRequestsFlushOfLargestBuffer() {
+        WorkerMemoryBudget budget = new WorkerMemoryBudget(100);
+        WorkerMemoryBudget.Account small = budget.register("small");
+        WorkerMemoryBudget.Account large = budget.register("large");
+
+        small.add(30);
+        large.add(60);
+        assertFalse(small.isFlushRequested());
+        assertFalse(large.isFlushRequested());
+
+        // crossing the limit asks the largest buffer to flush, which is enough to get under the low watermark
+        small.add(10);
+        assertTrue(large.isFlushRequested());
+        assertFalse(small.isFlushRequested());
+        assertEquals(100, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testRequestsFlushesUntilUnderLowWatermark() {
+        WorkerMemoryBudget budget = new WorkerMemoryBudget(100);
+        WorkerMemoryBudget.Account emitting = budget.register("emitting");
+        WorkerMemoryBudget.Account first = budget.register("first");
+        WorkerMemoryBudget.Account second = budget.register("second");
+        WorkerMemoryBudget.Account third = budget.register("third");
+
+        // bytes that are being emitted cannot be flushed again
+        emitting.add(50);
+        emitting.detach();
+        first.add(20);
+        second.add(20);
+        third.add(10);
+        // flushing the two largest buffers leaves 60 bytes, which is below the low watermark of 75
+        assertTrue(first.isFlushRequested());
+        assertTrue(second.isFlushRequested());
+        assertFalse(third.isFlushRequested());
+        assertFalse(emitting.isFlushRequested());
+    }
+
+    @Test
+    public void testDetachedBytesStayChargedUntilReleased() {
+        WorkerMemoryBudget budget = new WorkerMemoryBudget(100);
+        WorkerMemoryBudget.Account account = budget.register("shardId");
+        account.add(100);
+        assertTrue(account.isFlushRequested());
+
+        long flushed = account.detach();
+        assertEquals(100, flushed);
+        assertFalse(account.isFlushRequested());
+        assertEquals(0, account.getBufferedBytes());
+        assertEquals(100, budget.getUsedBytes());
+
+        account.release(flushed);
+        assertEquals(0, budget.getUsedBytes());
+
+        account.add(10);
+        account.close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+}
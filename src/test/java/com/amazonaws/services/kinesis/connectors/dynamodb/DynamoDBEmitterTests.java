@@ -6,13 +6,17 @@ package com.amazonaws.services.kinesis.connectors.dynamodb;
 
 import static junit.framework.Assert.assertEquals;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.easymock.EasyMock;
 import org.easymock.IMocksControl;
@@ -21,8 +25,13 @@ import org.junit.Test;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
 import com.amazonaws.services.kinesis.connectors.dynamodb.DynamoDBEmitter;
+import com.amazonaws.services.kinesis.connectors.interfaces.IBuffer;
 
 public class DynamoDBEmitterTests {
     IMocksControl control;
@@ -54,6 +63,149 @@ public class DynamoDBEmitterTests {
 
     }
 
+    @Test
+    public void testPackBatches() {
+        control.reset();
+        control.replay();
+        DynamoDBEmitter emitter = new DynamoDBEmitter(config);
+
+        // small items fill batches up to 25 items
+        List<List<Map<String, AttributeValue>>> batches = emitter.packBatches(createItems(60, 10));
+        assertEquals(3, batches.size());
+        assertEquals(25, batches.get(0).size());
+        assertEquals(25, batches.get(1).size());
+        assertEquals(10, batches.get(2).size());
+
+        // items of one megabyte are cut at the request size limit
+        batches = emitter.packBatches(createItems(20, 1024 * 1024));
+        assertEquals(2, batches.size());
+        assertEquals(15, batches.get(0).size());
+        assertEquals(5, batches.get(1).size());
+    }
+
+    @Test
+    public void testConcurrentBatchRequestsMergeUnprocessedItems() throws IOException {
+        control.reset();
+        IBuffer<?> buffer = control.createMock(IBuffer.class);
+        control.replay();
+        Properties props = new Properties();
+        // return unprocessed items without retrying them
+        props.setProperty(KinesisConnectorConfiguration.PROP_DYNAMODB_RETRY_TIME_BUDGET, "0");
+        final AtomicInteger requests = new AtomicInteger();
+        DynamoDBEmitter emitter = new DynamoDBEmitter(new KinesisConnectorConfiguration(props, credsProvider)) {
+            @Override
+            protected BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+                requests.incrementAndGet();
+                // leave the first item of every batch unprocessed
+                List<WriteRequest> writes = request.getRequestItems().get(dynamoDBTableName);
+                return new BatchWriteItemResult().withUnprocessedItems(
+                        Collections.singletonMap(dynamoDBTableName, writes.subList(0, 1)));
+            }
+        };
+
+        List<Map<String, AttributeValue>> items = createItems(100, 10);
+        List<Map<String, AttributeValue>> unprocessed =
+                emitter.emit(new UnmodifiableBuffer<Map<String, AttributeValue>>(buffer, items));
+        assertEquals(4, requests.get());
+        assertEquals(4, unprocessed.size());
+    }
+
+    @Test
+    public void testRetriesUnprocessedItems() throws IOException {
+        control.reset();
+        IBuffer<?> buffer = control.createMock(IBuffer.class);
+        control.replay();
+        final List<Integer> requestSizes = new ArrayList<Integer>();
+        DynamoDBEmitter emitter = new DynamoDBEmitter(config) {
+            @Override
+            protected BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+                List<WriteRequest> writes = request.getRequestItems().get(dynamoDBTableName);
+                requestSizes.add(writes.size());
+                // throttle two items of the first request only
+                List<WriteRequest> unprocessed =
+                        (requestSizes.size() == 1) ? writes.subList(0, 2) : Collections.<WriteRequest> emptyList();
+                return new BatchWriteItemResult().withUnprocessedItems(
+                        Collections.singletonMap(dynamoDBTableName, unprocessed));
+            }
+        };
+
+        List<Map<String, AttributeValue>> items = createItems(10, 10);
+        List<Map<String, AttributeValue>> unprocessed =
+                emitter.emit(new UnmodifiableBuffer<Map<String, AttributeValue>>(buffer, items));
+        assertEquals(0, unprocessed.size());
+        // only the unprocessed items are sent again
+        assertEquals(Arrays.asList(10, 2), requestSizes);
+    }
+
+    @Test
+    public void testCoalesceByKey() throws IOException {
+        control.reset();
+        IBuffer<?> buffer = control.createMock(IBuffer.class);
+        control.replay();
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_DYNAMODB_COALESCE_BY_KEY, "true");
+        final List<WriteRequest> written = new ArrayList<WriteRequest>();
+        DynamoDBEmitter emitter = new DynamoDBEmitter(new KinesisConnectorConfiguration(props, credsProvider)) {
+            @Override
+            protected List<String> describeKeyAttributeNames() {
+                return Arrays.asList("id");
+            }
+
+            @Override
+            protected BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+                written.addAll(request.getRequestItems().get(dynamoDBTableName));
+                return new BatchWriteItemResult();
+            }
+        };
+
+        // three writes to id 0 and one write to id 1
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        items.addAll(createItems(2, 1));
+        items.addAll(createItems(1, 2));
+        items.addAll(createItems(1, 3));
+        List<Map<String, AttributeValue>> unprocessed =
+                emitter.emit(new UnmodifiableBuffer<Map<String, AttributeValue>>(buffer, items));
+        assertEquals(0, unprocessed.size());
+        assertEquals(2, written.size());
+        // the last writes win, in sequence order
+        assertEquals("1", written.get(0).getPutRequest().getItem().get("id").getN());
+        assertEquals("x", written.get(0).getPutRequest().getItem().get("value").getS());
+        assertEquals("0", written.get(1).getPutRequest().getItem().get("id").getN());
+        assertEquals("xxx", written.get(1).getPutRequest().getItem().get("value").getS());
+    }
+
+    @Test
+    public void testCoalesceByKeyDedupesItemsWithoutKey() {
+        control.reset();
+        control.replay();
+        DynamoDBEmitter emitter = new DynamoDBEmitter(config);
+
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        for (int i = 0; i < 3; i++) {
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            item.put("value", new AttributeValue().withS("no key"));
+            items.add(item);
+        }
+        items.addAll(createItems(1, 1));
+        // identical items without the key attribute are written once
+        assertEquals(2, emitter.coalesceByKey(items, Arrays.asList("id")).size());
+    }
+
+    private List<Map<String, AttributeValue>> createItems(int count, int valueSize) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueSize; i++) {
+            value.append('x');
+        }
+        List<Map<String, AttributeValue>> list = new ArrayList<Map<String, AttributeValue>>();
+        for (int i = 0; i < count; i++) {
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            item.put("id", new AttributeValue().withN(Integer.toString(i)));
+            item.put("value", new AttributeValue().withS(value.toString()));
+            list.add(item);
+        }
+        return list;
+    }
+
     private List<Map<String, AttributeValue>> createDuplicateList(int size) {
         List<Map<String, AttributeValue>> list = new ArrayList<Map<String, AttributeValue>>();
 
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.dynamodb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DynamoDBWriteLimiterTest {
+
+    long currentTime;
+    List<Long> sleeps;
+    DynamoDBWriteLimiter limiter;
+
+    @Before
+    public void setUp() {
+        currentTime = 0;
+        sleeps = new ArrayList<Long>();
+        limiter = new DynamoDBWriteLimiter(100) {
+            @Override
+            protected long getCurrentTimeMilliseconds() {
+                return currentTime;
+            }
+
+            @Override
+            protected void sleep(long millis) {
+                sleeps.add(millis);
+                currentTime += millis;
+            }
+        };
+    }
+
+    @Test
+    public void testPacesWritesAtRate() throws InterruptedException {
+        // the bucket starts with one second of writes
+        limiter.acquire(100);
+        assertEquals(0, sleeps.size());
+        limiter.acquire(50);
+        assertEquals(500L, (long) sleeps.get(0));
+
+        // consumed capacity below the estimate is returned to the bucket
+        limiter.onResult(50, 0.0, false);
+        limiter.acquire(50);
+        assertEquals(1, sleeps.size());
+    }
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() throws InterruptedException {
+        limiter.acquire(150);
+        // the limiter was limiting and not throttled for a second
+        currentTime += 500;
+        limiter.onResult(150, 150.0, false);
+        assertEquals(105.0, limiter.getRate(), 0.001);
+
+        currentTime += 1000;
+        limiter.onResult(10, 10.0, true);
+        assertEquals(52.5, limiter.getRate(), 0.001);
+
+        // only one adjustment per second
+        limiter.onResult(10, 10.0, true);
+        assertEquals(52.5, limiter.getRate(), 0.001);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+public class DiskSpillingBufferTests {
+    KinesisConnectorConfiguration config;
+
+    int buffRecCount = 100;
+    int recordSize = 4;
+    // keep the first two records in memory
+    long spillThreshold = 2 * recordSize;
+    // small segments so records are spread across several of them
+    int segmentSize = 64;
+
+    @Rule
+    public TemporaryFolder spillDirectory = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_BUFFER_RECORD_COUNT_LIMIT,
+                Integer.toString(buffRecCount));
+        config = new KinesisConnectorConfiguration(props, new DefaultAWSCredentialsProviderChain());
+    }
+
+    @Test
+    public void testSpillAndRead() throws Exception {
+        DiskSpillingBuffer<String> buffer = newBuffer();
+        for (int i = 0; i < buffRecCount; i++) {
+            assertFalse(buffer.shouldFlush());
+            buffer.consumeRecord("record" + i, recordSize, Integer.toString(i));
+        }
+        assertTrue(buffer.shouldFlush());
+        assertEquals(buffRecCount - 2, buffer.getNumSpilledRecords());
+        assertEquals(Integer.toString(0), buffer.getFirstSequenceNumber());
+        assertEquals(Integer.toString(buffRecCount - 1), buffer.getLastSequenceNumber());
+
+        List<String> records = buffer.getRecords();
+        assertEquals(buffRecCount, records.size());
+        int i = 0;
+        for (String record : records) {
+            assertEquals("record" + i++, record);
+        }
+    }
+
+    @Test
+    public void testClearReusesSegments() throws Exception {
+        DiskSpillingBuffer<String> buffer = newBuffer();
+        for (int i = 0; i < buffRecCount; i++) {
+            buffer.consumeRecord("first" + i, recordSize, Integer.toString(i));
+        }
+        buffer.clear();
+        assertTrue(buffer.getRecords().isEmpty());
+        assertEquals(0, buffer.getNumSpilledRecords());
+
+        for (int i = 0; i < 10; i++) {
+            buffer.consumeRecord("second" + i, recordSize, Integer.toString(i));
+        }
+        List<String> records = buffer.getRecords();
+        assertEquals(10, records.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("second" + i, records.get(i));
+        }
+    }
+
+    @Test
+    public void testCloseDeletesSpillFile() throws Exception {
+        DiskSpillingBuffer<String> buffer = newBuffer();
+        for (int i = 0; i < buffRecCount; i++) {
+            buffer.consumeRecord("record" + i, recordSize, Integer.toString(i));
+        }
+        assertEquals(1, spillDirectory.getRoot().list().length);
+
+        buffer.close();
+        assertEquals(0, spillDirectory.getRoot().list().length);
+        assertTrue(buffer.getRecords().isEmpty());
+        // closing twice is harmless
+        buffer.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConsumeAfterClose() throws Exception {
+        DiskSpillingBuffer<String> buffer = newBuffer();
+        buffer.close();
+        for (int i = 0; i < buffRecCount; i++) {
+            buffer.consumeRecord("record" + i, recordSize, Integer.toString(i));
+        }
+    }
+
+    @Test
+    public void testRecordLargerThanSegment() throws Exception {
+        DiskSpillingBuffer<String> buffer = newBuffer();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < segmentSize * 3; i++) {
+            large.append('x');
+        }
+        buffer.consumeRecord("small0", recordSize, "0");
+        buffer.consumeRecord("small1", recordSize, "1");
+        buffer.consumeRecord(large.toString(), large.length(), "2");
+        buffer.consumeRecord("small3", recordSize, "3");
+        assertEquals(2, buffer.getNumSpilledRecords());
+        assertEquals(large.toString(), buffer.getRecords().get(2));
+        assertEquals("small3", buffer.getRecords().get(3));
+    }
+
+    private DiskSpillingBuffer<String> newBuffer() throws Exception {
+        return new DiskSpillingBuffer<String>(config, new DiskSpillingBuffer.StringCodec(),
+                spillDirectory.getRoot(), spillThreshold, segmentSize);
+    }
+}
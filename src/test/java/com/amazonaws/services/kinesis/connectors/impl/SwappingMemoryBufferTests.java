@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.kinesis.connectors.FlushedBuffer;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+public class SwappingMemoryBufferTests {
+    KinesisConnectorConfiguration config;
+
+    int buffRecCount = 10;
+
+    @Before
+    public void setUp() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_BUFFER_RECORD_COUNT_LIMIT,
+                Integer.toString(buffRecCount));
+        config = new KinesisConnectorConfiguration(props, new DefaultAWSCredentialsProviderChain());
+    }
+
+    @Test
+    public void testSwap() {
+        SwappingMemoryBuffer<Integer> buffer = new SwappingMemoryBuffer<Integer>(config, 2);
+        for (int i = 0; i < buffRecCount; i++) {
+            assertFalse(buffer.shouldFlush());
+            buffer.consumeRecord(i, 1, Integer.toString(i));
+        }
+        assertTrue(buffer.shouldFlush());
+        List<Integer> active = buffer.getRecords();
+
+        FlushedBuffer<Integer> sealed = buffer.swap();
+
+        // sealed records keep their contents and sequence numbers
+        assertEquals(buffRecCount, sealed.getRecords().size());
+        for (int i = 0; i < buffRecCount; i++) {
+            assertEquals(new Integer(i), sealed.getRecords().get(i));
+        }
+        assertEquals(Integer.toString(0), sealed.getFirstSequenceNumber());
+        assertEquals(Integer.toString(buffRecCount - 1), sealed.getLastSequenceNumber());
+
+        // the buffer continues with an empty list
+        assertNotSame(active, buffer.getRecords());
+        assertTrue(buffer.getRecords().isEmpty());
+        assertFalse(buffer.shouldFlush());
+        buffer.consumeRecord(buffRecCount, 1, Integer.toString(buffRecCount));
+        assertEquals(Integer.toString(buffRecCount), buffer.getFirstSequenceNumber());
+        assertEquals(buffRecCount, sealed.getRecords().size());
+    }
+
+    @Test
+    public void testRecycle() {
+        SwappingMemoryBuffer<Integer> buffer = new SwappingMemoryBuffer<Integer>(config, 2);
+        buffer.consumeRecord(1, 1, "1");
+        List<Integer> first = buffer.getRecords();
+        FlushedBuffer<Integer> sealed = buffer.swap();
+        buffer.recycle(sealed);
+        assertTrue(first.isEmpty());
+
+        buffer.consumeRecord(2, 1, "2");
+        buffer.swap();
+        // the recycled list is reused for the next batch
+        assertSame(first, buffer.getRecords());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecycleForeignRecords() {
+        SwappingMemoryBuffer<Integer> buffer = new SwappingMemoryBuffer<Integer>(config, 2);
+        BasicMemoryBuffer<Integer> other = new BasicMemoryBuffer<Integer>(config);
+        buffer.recycle(new FlushedBuffer<Integer>(other, other.getRecords()));
+    }
+}
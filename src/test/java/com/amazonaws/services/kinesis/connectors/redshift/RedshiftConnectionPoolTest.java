@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+public class RedshiftConnectionPoolTest {
+
+    IMocksControl control;
+    LinkedList<Connection> newConnections;
+    long currentTime;
+    long idleTimeout = 1000;
+
+    @Before
+    public void setUp() {
+        control = EasyMock.createNiceControl();
+        newConnections = new LinkedList<Connection>();
+        currentTime = 0;
+    }
+
+    @Test
+    public void testReusesValidConnection() throws SQLException {
+        Connection conn = newConnection(true);
+        control.replay();
+
+        RedshiftConnectionPool pool = newPool(2);
+        assertSame(conn, pool.getConnection());
+        pool.release(conn);
+        assertEquals(1, pool.getNumIdleConnections());
+        assertSame(conn, pool.getConnection());
+        control.verify();
+    }
+
+    @Test
+    public void testDiscardsInvalidAndIdleConnections() throws SQLException {
+        Connection invalid = newConnection(false);
+        invalid.close();
+        Connection idle = newConnection(true);
+        idle.close();
+        Connection fresh = newConnection(true);
+        control.replay();
+
+        RedshiftConnectionPool pool = newPool(2);
+        pool.release(pool.getConnection());
+        // the invalid connection is closed and replaced
+        Connection second = pool.getConnection();
+        assertSame(idle, second);
+        pool.release(second);
+
+        currentTime += idleTimeout;
+        Connection third = pool.getConnection();
+        assertSame(fresh, third);
+        assertEquals(0, pool.getNumIdleConnections());
+        control.verify();
+    }
+
+    @Test
+    public void testWaitsForConnectionAtLimit() throws Exception {
+        final Connection conn = newConnection(true);
+        control.replay();
+
+        final RedshiftConnectionPool pool = newPool(1);
+        pool.getConnection();
+        final AtomicReference<Connection> waited = new AtomicReference<Connection>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waited.set(pool.getConnection());
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        waiter.start();
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+
+        pool.release(conn);
+        waiter.join(10000);
+        assertSame(conn, waited.get());
+    }
+
+    @Test
+    public void testPoolsAreSharedPerSettings() {
+        KinesisConnectorConfiguration configuration = newConfiguration("secret", "2");
+        RedshiftConnectionPool pool = RedshiftConnectionPool.getPool(configuration);
+        assertSame(pool, RedshiftConnectionPool.getPool(newConfiguration("secret", "2")));
+        RedshiftConnectionPool otherPassword = RedshiftConnectionPool.getPool(newConfiguration("other", "2"));
+        RedshiftConnectionPool otherLimit = RedshiftConnectionPool.getPool(newConfiguration("secret", "3"));
+        assertNotSame(pool, otherPassword);
+        assertNotSame(pool, otherLimit);
+        assertNotSame(otherPassword, otherLimit);
+
+        RedshiftConnectionPool.releasePool(pool);
+        assertSame(pool, RedshiftConnectionPool.getPool(configuration));
+        RedshiftConnectionPool.releasePool(pool);
+        RedshiftConnectionPool.releasePool(pool);
+        // the pool is closed with its last user and replaced on the next use
+        RedshiftConnectionPool replacement = RedshiftConnectionPool.getPool(configuration);
+        assertNotSame(pool, replacement);
+        RedshiftConnectionPool.releasePool(replacement);
+        RedshiftConnectionPool.releasePool(otherPassword);
+        RedshiftConnectionPool.releasePool(otherLimit);
+    }
+
+    @Test
+    public void testCloseClosesIdleAndReturnedConnections() throws SQLException {
+        Connection idle = newConnection(true);
+        idle.close();
+        Connection inUse = newConnection(true);
+        inUse.close();
+        control.replay();
+
+        RedshiftConnectionPool pool = newPool(2);
+        Connection first = pool.getConnection();
+        Connection second = pool.getConnection();
+        pool.release(first);
+        pool.close();
+        assertEquals(0, pool.getNumIdleConnections());
+        pool.release(second);
+        assertEquals(0, pool.getNumIdleConnections());
+        control.verify();
+    }
+
+    private KinesisConnectorConfiguration newConfiguration(String password, String maxConnections) {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_URL, "jdbc:shared");
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_USERNAME, "user");
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_PASSWORD, password);
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_MAX_CONNECTIONS, maxConnections);
+        return new KinesisConnectorConfiguration(props, EasyMock.createMock(AWSCredentialsProvider.class));
+    }
+
+    private Connection newConnection(boolean valid) throws SQLException {
+        Connection conn = control.createMock(Connection.class);
+        expect(conn.isValid(anyInt())).andStubReturn(valid);
+        expect(conn.getAutoCommit()).andStubReturn(true);
+        newConnections.add(conn);
+        return conn;
+    }
+
+    private RedshiftConnectionPool newPool(int maxConnections) {
+        return new RedshiftConnectionPool("jdbc:test", new Properties(), maxConnections, idleTimeout) {
+            @Override
+            protected Connection openConnection() {
+                return newConnections.removeFirst();
+            }
+
+            @Override
+            protected long getCurrentTimeMilliseconds() {
+                return currentTime;
+            }
+        };
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+public class RedshiftCopyCoalescerTest {
+
+    List<Runnable> scheduledTasks;
+    List<Long> scheduledDelays;
+    List<List<String>> copies;
+    RedshiftCopyCoalescer coalescer;
+    RedshiftCopyCoalescer.ManifestCopier copier;
+
+    @Before
+    public void setUp() {
+        scheduledTasks = new ArrayList<Runnable>();
+        scheduledDelays = new ArrayList<Long>();
+        copies = new ArrayList<List<String>>();
+        coalescer = new RedshiftCopyCoalescer(500) {
+            @Override
+            protected void schedule(Runnable task, long delayMillis) {
+                scheduledTasks.add(task);
+                scheduledDelays.add(delayMillis);
+            }
+        };
+        copier = new RedshiftCopyCoalescer.ManifestCopier() {
+            @Override
+            public void copyManifest(List<String> s3Files) {
+                copies.add(new ArrayList<String>(s3Files));
+            }
+        };
+    }
+
+    @Test
+    public void testConcurrentFilesAreCopiedTogether() throws Exception {
+        // files added within the window join the batch of the first file
+        List<RedshiftCopyCoalescer.Batch> batches = new ArrayList<RedshiftCopyCoalescer.Batch>();
+        for (int i = 0; i < 4; i++) {
+            batches.add(coalescer.add("file" + i, copier));
+        }
+        assertEquals(1, scheduledTasks.size());
+        assertEquals(500L, (long) scheduledDelays.get(0));
+        assertEquals(0, copies.size());
+
+        // the end of the window copies the batch and releases every emitter of the batch
+        scheduledTasks.get(0).run();
+        assertEquals(Arrays.asList(Arrays.asList("file0", "file1", "file2", "file3")), copies);
+        for (RedshiftCopyCoalescer.Batch batch : batches) {
+            assertSame(batches.get(0), batch);
+            batch.await();
+        }
+
+        // the next file opens a new batch
+        coalescer.add("file4", copier);
+        assertEquals(2, scheduledTasks.size());
+        scheduledTasks.get(1).run();
+        assertEquals(Arrays.asList("file4"), copies.get(1));
+    }
+
+    @Test
+    public void testFailedCopyFailsEmit() {
+        RedshiftCopyCoalescer.Batch batch = coalescer.add("file", new RedshiftCopyCoalescer.ManifestCopier() {
+            @Override
+            public void copyManifest(List<String> s3Files) throws Exception {
+                throw new Exception("COPY failed");
+            }
+        });
+        scheduledTasks.get(0).run();
+        try {
+            batch.await();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("COPY failed", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testCoalescerIsShutDownWithItsLastUser() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_DATA_TABLE, "released_table");
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_COALESCE_WINDOW, "50");
+        KinesisConnectorConfiguration configuration =
+                new KinesisConnectorConfiguration(props, EasyMock.createMock(AWSCredentialsProvider.class));
+        RedshiftCopyCoalescer shared = RedshiftCopyCoalescer.getCoalescer(configuration);
+        assertSame(shared, RedshiftCopyCoalescer.getCoalescer(configuration));
+        RedshiftCopyCoalescer.releaseCoalescer(shared);
+        assertSame(shared, RedshiftCopyCoalescer.getCoalescer(configuration));
+        RedshiftCopyCoalescer.releaseCoalescer(shared);
+
+        // the batch that is still open is copied after the last user has released the coalescer
+        RedshiftCopyCoalescer.Batch batch = shared.add("file", copier);
+        RedshiftCopyCoalescer.releaseCoalescer(shared);
+        batch.await();
+        assertEquals(Collections.singletonList(Arrays.asList("file")), copies);
+
+        RedshiftCopyCoalescer replacement = RedshiftCopyCoalescer.getCoalescer(configuration);
+        assertNotSame(shared, replacement);
+        RedshiftCopyCoalescer.releaseCoalescer(replacement);
+    }
+}
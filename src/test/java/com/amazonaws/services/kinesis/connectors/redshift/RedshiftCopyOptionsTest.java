@@ -0,0 +1,29 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.connectors.s3.S3Compression;
+
+public class RedshiftCopyOptionsTest {
+
+    @Test
+    public void testDelimitedText() {
+        assertEquals("DELIMITER '|'", new RedshiftCopyOptions(null, '|', S3Compression.NONE).toString());
+        assertEquals("DELIMITER '|' GZIP", new RedshiftCopyOptions("", '|', S3Compression.GZIP).toString());
+    }
+
+    @Test
+    public void testFormats() {
+        assertEquals("FORMAT AS JSON 'auto' GZIP",
+                new RedshiftCopyOptions("JSON 'auto'", '|', S3Compression.GZIP).toString());
+        // columnar files carry their own compression
+        assertEquals("FORMAT AS parquet", new RedshiftCopyOptions("parquet", '|', S3Compression.GZIP).toString());
+        assertEquals("FORMAT AS ORC", new RedshiftCopyOptions("ORC", '|', S3Compression.NONE).toString());
+    }
+}
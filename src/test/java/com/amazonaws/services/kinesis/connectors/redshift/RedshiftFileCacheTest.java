@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedshiftFileCacheTest {
+
+    long currentTime;
+    long retention = 24000;
+    RedshiftFileCache cache;
+
+    @Before
+    public void setUp() {
+        currentTime = 0;
+        cache = new RedshiftFileCache(retention) {
+            @Override
+            protected long getCurrentTimeMilliseconds() {
+                return currentTime;
+            }
+        };
+    }
+
+    @Test
+    public void testNewCacheKnowsNoFiles() {
+        // the cache is not loaded from the files table, every file is looked up until it is added
+        assertFalse(cache.isKnownCopied("a"));
+        cache.addAll(Arrays.asList("a"));
+        assertTrue(cache.isKnownCopied("a"));
+    }
+
+    @Test
+    public void testHashIsMurmurHash64A() {
+        // reference values of MurmurHash64A with the seed 0x9747b28c, covering full blocks and every tail length
+        assertEquals(-8964588313662369710L, RedshiftFileCache.hash(""));
+        assertEquals(-1627098790175280210L, RedshiftFileCache.hash("a"));
+        assertEquals(-863212664723559915L, RedshiftFileCache.hash("file-0001"));
+        // String.hashCode collides for these keys
+        assertTrue(RedshiftFileCache.hash("Aa") != RedshiftFileCache.hash("BB"));
+    }
+
+    @Test
+    public void testAddedFilesExpireAfterRetention() {
+        cache.addAll(Arrays.asList("a", "b"));
+        currentTime += retention / 2;
+        cache.addAll(Arrays.asList("c"));
+
+        assertTrue(cache.isKnownCopied("a"));
+        assertTrue(cache.isKnownCopied("c"));
+        assertFalse(cache.isKnownCopied("d"));
+
+        currentTime += retention / 2;
+        assertFalse(cache.isKnownCopied("a"));
+        assertTrue(cache.isKnownCopied("c"));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+public class RedshiftManifestEmitterTest {
+
+    IMocksControl control;
+    Connection conn;
+    RedshiftManifestEmitter emitter;
+
+    @Before
+    public void setUp() {
+        // the order of the statements and of their parameters is verified
+        control = EasyMock.createStrictControl();
+        conn = control.createMock(Connection.class);
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_USERNAME, "user");
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_PASSWORD, "password");
+        emitter = new RedshiftManifestEmitter(new KinesisConnectorConfiguration(props,
+                control.createMock(AWSCredentialsProvider.class)));
+    }
+
+    @Test
+    public void testInsertLessThanOneChunk() throws SQLException {
+        testInsert(499);
+    }
+
+    @Test
+    public void testInsertOneChunk() throws SQLException {
+        testInsert(500);
+    }
+
+    @Test
+    public void testInsertOneChunkAndRemainder() throws SQLException {
+        testInsert(501);
+    }
+
+    @Test
+    public void testInsertTwoChunksAndRemainder() throws SQLException {
+        testInsert(1001);
+    }
+
+    @Test
+    public void testQueryLessThanOneChunk() throws SQLException {
+        testQuery(499, null);
+    }
+
+    @Test
+    public void testQueryOneChunk() throws SQLException {
+        testQuery(500, "file0000");
+    }
+
+    @Test
+    public void testQueryPadsLastChunk() throws SQLException {
+        testQuery(501, "file0500");
+    }
+
+    @Test
+    public void testQueryTwoChunksAndPaddedRemainder() throws SQLException {
+        testQuery(1001, "file0999");
+    }
+
+    /**
+     * Full chunks of 500 files are inserted with one batch of a 500 row statement, the rest with one statement.
+     */
+    private void testInsert(int numFiles) throws SQLException {
+        List<String> files = createFiles(numFiles);
+        int numFullChunks = numFiles / 500;
+        if (numFullChunks > 0) {
+            PreparedStatement stmt = control.createMock(PreparedStatement.class);
+            expect(conn.prepareStatement(getInsertStatement(500))).andReturn(stmt);
+            for (int chunk = 0; chunk < numFullChunks; chunk++) {
+                for (int i = 0; i < 500; i++) {
+                    stmt.setString(i + 1, files.get(chunk * 500 + i));
+                }
+                stmt.addBatch();
+            }
+            expect(stmt.executeBatch()).andReturn(new int[numFullChunks]);
+            stmt.close();
+        }
+        int remaining = numFiles - numFullChunks * 500;
+        if (remaining > 0) {
+            PreparedStatement stmt = control.createMock(PreparedStatement.class);
+            expect(conn.prepareStatement(getInsertStatement(remaining))).andReturn(stmt);
+            for (int i = 0; i < remaining; i++) {
+                stmt.setString(i + 1, files.get(numFullChunks * 500 + i));
+            }
+            expect(stmt.executeUpdate()).andReturn(remaining);
+            stmt.close();
+        }
+        control.replay();
+
+        emitter.insertRecords(conn, files);
+        control.verify();
+    }
+
+    /**
+     * Files are queried in chunks of up to 500 with one statement, and the last chunk is padded with its last
+     * file.
+     */
+    private void testQuery(int numFiles, String existingFile) throws SQLException {
+        List<String> files = createFiles(numFiles);
+        int chunkSize = Math.min(numFiles, 500);
+        PreparedStatement stmt = control.createMock(PreparedStatement.class);
+        expect(conn.prepareStatement("SELECT file FROM files WHERE file IN (" + getPlaceholders("?", chunkSize)
+                + ");")).andReturn(stmt);
+        for (int start = 0; start < numFiles; start += chunkSize) {
+            int end = Math.min(start + chunkSize, numFiles);
+            for (int i = start; i < start + chunkSize; i++) {
+                stmt.setString(i - start + 1, files.get(Math.min(i, end - 1)));
+            }
+            ResultSet resultSet = control.createMock(ResultSet.class);
+            expect(stmt.executeQuery()).andReturn(resultSet);
+            if (existingFile != null && files.subList(start, end).contains(existingFile)) {
+                expect(resultSet.next()).andReturn(true);
+                expect(resultSet.getString(1)).andReturn(existingFile);
+            }
+            expect(resultSet.next()).andReturn(false);
+            resultSet.close();
+        }
+        stmt.close();
+        control.replay();
+
+        List<String> remainingFiles = emitter.checkForExistingFiles(conn, files);
+        control.verify();
+        List<String> expected = new ArrayList<String>(files);
+        expected.remove(existingFile);
+        assertEquals(expected, remainingFiles);
+    }
+
+    private static List<String> createFiles(int numFiles) {
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < numFiles; i++) {
+            files.add(String.format("file%04d", i));
+        }
+        return files;
+    }
+
+    private static String getInsertStatement(int numFiles) {
+        return "INSERT INTO files VALUES " + getPlaceholders("(?)", numFiles) + ";";
+    }
+
+    private static String getPlaceholders(String placeholder, int count) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            s.append(i > 0 ? "," : "").append(placeholder);
+        }
+        return s.toString();
+    }
+}
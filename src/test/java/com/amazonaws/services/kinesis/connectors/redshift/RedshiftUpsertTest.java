@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.redshift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+import org.junit.Test;
+
+public class RedshiftUpsertTest {
+
+    @Test
+    public void testAppendWithoutKeyColumns() {
+        assertNull(RedshiftUpsert.forKeyColumns("users", null, null));
+        assertNull(RedshiftUpsert.forKeyColumns("users", " ", "seq"));
+    }
+
+    @Test
+    public void testStatements() {
+        RedshiftUpsert upsert = RedshiftUpsert.forKeyColumns("public.users", "id, region", " seq ");
+        assertEquals("public_users_staging", upsert.getStagingTable());
+        assertEquals("CREATE TEMP TABLE public_users_staging (LIKE public.users);",
+                upsert.getCreateStagingTableStatement());
+        // only the staged row with the highest sequence of each key is inserted
+        assertEquals(Arrays.asList("DELETE FROM public.users USING public_users_staging WHERE "
+                + "public.users.id = public_users_staging.id AND public.users.region = public_users_staging.region;",
+                "INSERT INTO public.users (\"id\", \"region\", \"seq\") SELECT \"id\", \"region\", \"seq\" FROM "
+                + "(SELECT *, ROW_NUMBER() OVER (PARTITION BY id, region ORDER BY seq DESC) AS upsert_row_number "
+                + "FROM public_users_staging) AS staged WHERE upsert_row_number = 1;",
+                "DROP TABLE public_users_staging;"),
+                upsert.getMergeStatements(Arrays.asList("id", "region", "seq")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOrderColumnIsRequired() {
+        RedshiftUpsert.forKeyColumns("users", "id", " ");
+    }
+
+    @Test
+    public void testColumnsAreReadFromStagingTable() throws Exception {
+        IMocksControl control = EasyMock.createControl();
+        Connection conn = control.createMock(Connection.class);
+        Statement stmt = control.createMock(Statement.class);
+        ResultSet resultSet = control.createMock(ResultSet.class);
+        ResultSetMetaData metaData = control.createMock(ResultSetMetaData.class);
+        EasyMock.expect(conn.createStatement()).andReturn(stmt);
+        EasyMock.expect(stmt.executeQuery("SELECT * FROM users_staging LIMIT 0;")).andReturn(resultSet);
+        EasyMock.expect(resultSet.getMetaData()).andReturn(metaData);
+        EasyMock.expect(metaData.getColumnCount()).andReturn(2).anyTimes();
+        EasyMock.expect(metaData.getColumnName(1)).andReturn("id");
+        EasyMock.expect(metaData.getColumnName(2)).andReturn("user");
+        resultSet.close();
+        stmt.close();
+        control.replay();
+
+        RedshiftUpsert upsert = RedshiftUpsert.forKeyColumns("users", "id", "id");
+        assertEquals("INSERT INTO users (\"id\", \"user\") SELECT \"id\", \"user\" FROM (SELECT *, ROW_NUMBER() "
+                + "OVER (PARTITION BY id ORDER BY id DESC) AS upsert_row_number FROM users_staging) AS staged "
+                + "WHERE upsert_row_number = 1;", upsert.getMergeStatements(conn).get(1));
+        control.verify();
+    }
+}
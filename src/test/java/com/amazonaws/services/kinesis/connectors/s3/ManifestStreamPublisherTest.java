@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+public class ManifestStreamPublisherTest {
+
+    @Test
+    public void testRetriesFailedEntriesInOrder() throws Exception {
+        final List<String> put = Collections.synchronizedList(new ArrayList<String>());
+        ManifestStreamPublisher publisher = new ManifestStreamPublisher(null, "manifest") {
+            private boolean failedOnce;
+
+            @Override
+            protected PutRecordsResult putRecords(PutRecordsRequest request) {
+                List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>();
+                for (PutRecordsRequestEntry entry : request.getRecords()) {
+                    String s3File = new String(entry.getData().array(), StandardCharsets.UTF_8);
+                    PutRecordsResultEntry result = new PutRecordsResultEntry();
+                    if (s3File.equals("a1") && !failedOnce) {
+                        failedOnce = true;
+                        result.setErrorCode("ProvisionedThroughputExceededException");
+                    } else {
+                        put.add(s3File);
+                    }
+                    results.add(result);
+                }
+                return new PutRecordsResult().withRecords(results);
+            }
+        };
+
+        publisher.publish("a", Arrays.asList("a1", "a2"));
+        publisher.publish("b", Arrays.asList("b1"));
+
+        // a2 is put again after the retried a1
+        assertEquals(Arrays.asList("a2", "a1", "a2", "b1"), put);
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testEntriesOfAPartitionKeyShareARequest() throws Exception {
+        final List<List<String>> requests = Collections.synchronizedList(new ArrayList<List<String>>());
+        ManifestStreamPublisher publisher = new ManifestStreamPublisher(null, "manifest") {
+            @Override
+            protected PutRecordsResult putRecords(PutRecordsRequest request) {
+                List<String> s3Files = new ArrayList<String>();
+                List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>();
+                for (PutRecordsRequestEntry entry : request.getRecords()) {
+                    assertEquals("a", entry.getPartitionKey());
+                    s3Files.add(new String(entry.getData().array(), StandardCharsets.UTF_8));
+                    results.add(new PutRecordsResultEntry());
+                }
+                requests.add(s3Files);
+                return new PutRecordsResult().withRecords(results);
+            }
+        };
+
+        publisher.publish("a", Arrays.asList("a1", "a2", "a3"));
+
+        assertEquals(Collections.singletonList(Arrays.asList("a1", "a2", "a3")), requests);
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testPublishTimesOut() throws Exception {
+        final List<String> put = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final ManifestStreamPublisher publisher = new ManifestStreamPublisher(null, "manifest", 500) {
+            @Override
+            protected PutRecordsResult putRecords(PutRecordsRequest request) {
+                // the first request hangs until the publications have timed out
+                inFlight.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>();
+                for (PutRecordsRequestEntry entry : request.getRecords()) {
+                    put.add(new String(entry.getData().array(), StandardCharsets.UTF_8));
+                    results.add(new PutRecordsResultEntry());
+                }
+                return new PutRecordsResult().withRecords(results);
+            }
+        };
+        final List<IOException> laterFailures = Collections.synchronizedList(new ArrayList<IOException>());
+        Thread later = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inFlight.await();
+                    publisher.publish("a", Arrays.asList("a2"));
+                } catch (IOException e) {
+                    laterFailures.add(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        later.start();
+
+        try {
+            publisher.publish("a", Arrays.asList("a1"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        later.join();
+        assertEquals(1, laterFailures.size());
+        released.countDown();
+
+        // the entry in flight is put, the entry of the failed publication that was not in a request is dropped
+        publisher.publish("a", Arrays.asList("a3"));
+        assertEquals(Arrays.asList("a1", "a3"), put);
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testSenderSurvivesErrors() throws Exception {
+        final List<String> put = Collections.synchronizedList(new ArrayList<String>());
+        ManifestStreamPublisher publisher = new ManifestStreamPublisher(null, "manifest") {
+            private boolean failedOnce;
+
+            @Override
+            protected PutRecordsResult putRecords(PutRecordsRequest request) {
+                if (!failedOnce) {
+                    failedOnce = true;
+                    throw new AssertionError("unexpected error");
+                }
+                List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>();
+                for (PutRecordsRequestEntry entry : request.getRecords()) {
+                    put.add(new String(entry.getData().array(), StandardCharsets.UTF_8));
+                    results.add(new PutRecordsResultEntry());
+                }
+                return new PutRecordsResult().withRecords(results);
+            }
+        };
+
+        publisher.publish("a", Arrays.asList("a1"));
+        assertEquals(Arrays.asList("a1"), put);
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testPublishersAreSharedPerCredentials() {
+        AWSCredentialsProvider credentials1 = EasyMock.createMock(AWSCredentialsProvider.class);
+        AWSCredentialsProvider credentials2 = EasyMock.createMock(AWSCredentialsProvider.class);
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_KINESIS_OUTPUT_STREAM, "shared-manifest");
+        ManifestStreamPublisher publisher1 =
+                ManifestStreamPublisher.getPublisher(new KinesisConnectorConfiguration(props, credentials1));
+        assertSame(publisher1,
+                ManifestStreamPublisher.getPublisher(new KinesisConnectorConfiguration(props, credentials1)));
+        ManifestStreamPublisher publisher2 =
+                ManifestStreamPublisher.getPublisher(new KinesisConnectorConfiguration(props, credentials2));
+        assertNotSame(publisher1, publisher2);
+        ManifestStreamPublisher.releasePublisher(publisher1);
+        ManifestStreamPublisher.releasePublisher(publisher1);
+        ManifestStreamPublisher.releasePublisher(publisher2);
+    }
+
+    @Test
+    public void testPublisherIsShutDownWithItsLastUser() throws Exception {
+        AWSCredentialsProvider credentials = EasyMock.createMock(AWSCredentialsProvider.class);
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_KINESIS_OUTPUT_STREAM, "released-manifest");
+        KinesisConnectorConfiguration configuration = new KinesisConnectorConfiguration(props, credentials);
+        ManifestStreamPublisher publisher = ManifestStreamPublisher.getPublisher(configuration);
+        assertSame(publisher, ManifestStreamPublisher.getPublisher(configuration));
+
+        ManifestStreamPublisher.releasePublisher(publisher);
+        assertSame(publisher, ManifestStreamPublisher.getPublisher(configuration));
+        ManifestStreamPublisher.releasePublisher(publisher);
+        ManifestStreamPublisher.releasePublisher(publisher);
+
+        try {
+            publisher.publish("a", Arrays.asList("a1"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("shut down"));
+        }
+        ManifestStreamPublisher replacement = ManifestStreamPublisher.getPublisher(configuration);
+        assertNotSame(publisher, replacement);
+        ManifestStreamPublisher.releasePublisher(replacement);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.hadoop.metadata.ParquetMetadata;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.OriginalType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Type.Repetition;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.connectors.s3.ParquetFileEncoder.ColumnType;
+
+public class ParquetFileEncoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParseColumnTypes() {
+        assertEquals(Arrays.asList(ColumnType.VARCHAR, ColumnType.BIGINT, ColumnType.BOOLEAN),
+                ParquetFileEncoder.parseColumnTypes("varchar, BIGINT,Boolean"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingColumnTypes() {
+        ParquetFileEncoder.parseColumnTypes(" ");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnsupportedColumnType() {
+        ParquetFileEncoder.parseColumnTypes("VARCHAR,TIMESTAMP");
+    }
+
+    @Test
+    public void testEncodedFileIsReadByParquetReader() throws Exception {
+        ParquetFileEncoder encoder =
+                new ParquetFileEncoder(ParquetFileEncoder.parseColumnTypes("VARCHAR,INTEGER,BIGINT,DOUBLE,BOOLEAN"),
+                        '|',
+                        S3Compression.NONE);
+        List<byte[]> records = new ArrayList<byte[]>();
+        records.add("alice|1|10000000000|1.5|true\n".getBytes());
+        records.add("|2||\\N|f\n".getBytes());
+        records.add(null);
+        records.add("bob|-3|-4|-0.25|0\r\n".getBytes());
+        List<byte[]> rejected = new ArrayList<byte[]>();
+        Path path = write(encoder.encode(records, rejected));
+        assertTrue(rejected.isEmpty());
+
+        ParquetMetadata footer = ParquetFileReader.readFooter(new Configuration(), path);
+        MessageType schema = footer.getFileMetaData().getSchema();
+        assertEquals(5, schema.getFieldCount());
+        assertEquals(PrimitiveTypeName.BINARY, schema.getType("column1").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(OriginalType.UTF8, schema.getType("column1").getOriginalType());
+        assertEquals(PrimitiveTypeName.INT32, schema.getType("column2").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(PrimitiveTypeName.INT64, schema.getType("column3").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(PrimitiveTypeName.DOUBLE, schema.getType("column4").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(PrimitiveTypeName.BOOLEAN, schema.getType("column5").asPrimitiveType().getPrimitiveTypeName());
+        assertEquals(Repetition.OPTIONAL, schema.getType("column3").getRepetition());
+        assertEquals(1, footer.getBlocks().size());
+        assertEquals(3, footer.getBlocks().get(0).getRowCount());
+
+        List<Group> rows = read(path);
+        assertEquals(3, rows.size());
+        assertEquals("alice", rows.get(0).getString("column1", 0));
+        assertEquals(1, rows.get(0).getInteger("column2", 0));
+        assertEquals(10000000000L, rows.get(0).getLong("column3", 0));
+        assertEquals(1.5, rows.get(0).getDouble("column4", 0), 0.0);
+        assertTrue(rows.get(0).getBoolean("column5", 0));
+
+        // empty VARCHAR fields are empty strings, other empty fields and \N are nulls
+        assertEquals("", rows.get(1).getString("column1", 0));
+        assertEquals(2, rows.get(1).getInteger("column2", 0));
+        assertEquals(0, rows.get(1).getFieldRepetitionCount("column3"));
+        assertEquals(0, rows.get(1).getFieldRepetitionCount("column4"));
+        assertFalse(rows.get(1).getBoolean("column5", 0));
+
+        assertEquals("bob", rows.get(2).getString("column1", 0));
+        assertEquals(-3, rows.get(2).getInteger("column2", 0));
+        assertEquals(-4L, rows.get(2).getLong("column3", 0));
+        assertEquals(-0.25, rows.get(2).getDouble("column4", 0), 0.0);
+        assertFalse(rows.get(2).getBoolean("column5", 0));
+    }
+
+    @Test
+    public void testGzipPagesAreReadByParquetReader() throws Exception {
+        ParquetFileEncoder encoder =
+                new ParquetFileEncoder(ParquetFileEncoder.parseColumnTypes("VARCHAR,BOOLEAN"), ',', S3Compression.GZIP);
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            // more than a byte of bit packed booleans, with runs of nulls in between
+            records.add(("the same value," + ((i % 3 == 0) ? "" : Boolean.toString(i % 2 == 0)) + "\n").getBytes());
+        }
+        List<byte[]> file = encoder.encode(records, new ArrayList<byte[]>());
+        // the repeated values are compressed inside the pages
+        assertTrue(file.get(0).length < 1000);
+        assertEquals(".parquet", encoder.getFileExtension());
+        Path path = write(file);
+
+        ParquetMetadata footer = ParquetFileReader.readFooter(new Configuration(), path);
+        assertEquals(CompressionCodecName.GZIP, footer.getBlocks().get(0).getColumns().get(0).getCodec());
+        List<Group> rows = read(path);
+        assertEquals(1000, rows.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("the same value", rows.get(i).getString("column1", 0));
+            if (i % 3 == 0) {
+                assertEquals(0, rows.get(i).getFieldRepetitionCount("column2"));
+            } else {
+                assertEquals(i % 2 == 0, rows.get(i).getBoolean("column2", 0));
+            }
+        }
+    }
+
+    @Test
+    public void testRecordsThatDoNotMatchTheColumnsAreRejected() throws Exception {
+        ParquetFileEncoder encoder =
+                new ParquetFileEncoder(ParquetFileEncoder.parseColumnTypes("VARCHAR,INTEGER"), '|', S3Compression.NONE);
+        byte[] tooFewFields = "carol\n".getBytes();
+        byte[] wrongType = "dave|four\n".getBytes();
+        List<byte[]> records = new ArrayList<byte[]>();
+        records.add("alice|1\n".getBytes());
+        records.add(tooFewFields);
+        records.add(wrongType);
+        List<byte[]> rejected = new ArrayList<byte[]>();
+        Path path = write(encoder.encode(records, rejected));
+        assertEquals(2, rejected.size());
+        assertArrayEquals(tooFewFields, rejected.get(0));
+        assertArrayEquals(wrongType, rejected.get(1));
+        List<Group> rows = read(path);
+        assertEquals(1, rows.size());
+        assertEquals("alice", rows.get(0).getString("column1", 0));
+
+        // no file is written if every record is rejected
+        rejected.clear();
+        assertTrue(encoder.encode(Arrays.asList(tooFewFields, wrongType), rejected).isEmpty());
+        assertEquals(2, rejected.size());
+    }
+
+    private Path write(List<byte[]> contents) throws IOException {
+        File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (byte[] block : contents) {
+                out.write(block);
+            }
+        }
+        return new Path(file.toURI());
+    }
+
+    private static List<Group> read(Path path) throws IOException {
+        List<Group> rows = new ArrayList<Group>();
+        try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(), path).build()) {
+            Group row;
+            while ((row = reader.read()) != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import static org.easymock.EasyMock.createControl;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.easymock.IMocksControl;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
+import com.amazonaws.services.kinesis.connectors.impl.BasicMemoryBuffer;
+import com.amazonaws.services.kinesis.connectors.interfaces.IPartitioner;
+
+public class PartitionedS3EmitterTest {
+
+    IMocksControl control;
+    AWSCredentialsProvider credentials;
+    // partitions records by their first character
+    IPartitioner<byte[]> partitioner = new IPartitioner<byte[]>() {
+        @Override
+        public String getPartition(byte[] record) {
+            return (record.length == 0) ? null : "key=" + (char) record[0];
+        }
+    };
+
+    @Before
+    public void setup() {
+        control = createControl();
+        credentials = control.createMock(AWSCredentialsProvider.class);
+    }
+
+    @Test
+    public void testPartitionKeepsRecordOrder() {
+        PartitionedS3Emitter emitter = newEmitter(10);
+        Map<String, List<byte[]>> partitions = emitter.partition(records("a1", "b1", "a2", "", "b2"));
+
+        assertEquals(Arrays.asList("key=a", "key=b", PartitionedS3Emitter.DEFAULT_PARTITION),
+                new ArrayList<String>(partitions.keySet()));
+        assertEquals(Arrays.asList("a1", "a2"), strings(partitions.get("key=a")));
+        assertEquals(Arrays.asList("b1", "b2"), strings(partitions.get("key=b")));
+        assertEquals(Arrays.asList(""), strings(partitions.get(PartitionedS3Emitter.DEFAULT_PARTITION)));
+    }
+
+    @Test
+    public void testPartitionsOverLimitGoToDefaultPartition() {
+        PartitionedS3Emitter emitter = newEmitter(2);
+        Map<String, List<byte[]>> partitions = emitter.partition(records("a1", "b1", "c1", "a2", "d1"));
+
+        // the default partition counts towards the limit only once it is used
+        assertEquals(3, partitions.size());
+        assertEquals(Arrays.asList("a1", "a2"), strings(partitions.get("key=a")));
+        assertEquals(Arrays.asList("c1", "d1"), strings(partitions.get(PartitionedS3Emitter.DEFAULT_PARTITION)));
+    }
+
+    @Test
+    public void testRetryKeepsPartitions() throws Exception {
+        final String[] hour = { "hour=05" };
+        IPartitioner<byte[]> clockPartitioner = new IPartitioner<byte[]>() {
+            @Override
+            public String getPartition(byte[] record) {
+                return (record[0] == 'c') ? "key=c/" + hour[0] : "key=" + (char) record[0] + "/" + hour[0];
+            }
+        };
+        final List<String> uploaded = new ArrayList<String>();
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_S3_MAX_PARTITIONS, String.valueOf(2));
+        PartitionedS3Emitter emitter = new PartitionedS3Emitter(new KinesisConnectorConfiguration(props, credentials),
+                clockPartitioner) {
+            @Override
+            protected boolean upload(String s3FileName, List<byte[]> records, List<byte[]> rejectedRecords)
+                throws IOException {
+                if (uploaded.isEmpty() && s3FileName.startsWith("key=a")) {
+                    uploaded.add("failed " + s3FileName);
+                    throw new IOException("upload failed");
+                }
+                if (s3FileName.startsWith(PartitionedS3Emitter.DEFAULT_PARTITION)) {
+                    throw new IOException("upload failed");
+                }
+                uploaded.add(s3FileName);
+                return true;
+            }
+        };
+        BasicMemoryBuffer<byte[]> buffer = new BasicMemoryBuffer<byte[]>(
+                new KinesisConnectorConfiguration(new Properties(), credentials));
+        List<byte[]> records = records("a1", "b1", "c1");
+        for (int i = 0; i < records.size(); i++) {
+            buffer.consumeRecord(records.get(i), 2, Integer.toString(i));
+        }
+
+        List<byte[]> failed = emitter.emit(new UnmodifiableBuffer<byte[]>(buffer, buffer.getRecords()));
+        assertEquals(Arrays.asList("a1", "c1"), strings(failed));
+
+        // the retry happens in the next hour, and with fewer records c1 would otherwise get a partition of its own
+        hour[0] = "hour=06";
+        failed = emitter.emit(new UnmodifiableBuffer<byte[]>(buffer, failed));
+        assertEquals(Arrays.asList("c1"), strings(failed));
+        assertEquals(Arrays.asList("failed key=a/hour=05/0-2", "key=b/hour=05/0-2", "key=a/hour=05/0-2"),
+                uploaded);
+    }
+
+    private PartitionedS3Emitter newEmitter(int maxPartitions) {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_S3_MAX_PARTITIONS, String.valueOf(maxPartitions));
+        return new PartitionedS3Emitter(new KinesisConnectorConfiguration(props, credentials), partitioner);
+    }
+
+    private List<byte[]> records(String... values) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (String value : values) {
+            records.add(value.getBytes());
+        }
+        return records;
+    }
+
+    private List<String> strings(List<byte[]> records) {
+        List<String> values = new ArrayList<String>();
+        for (byte[] record : records) {
+            values.add(new String(record));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RecordListInputStreamTest {
+
+    List<byte[]> records = Arrays.asList("abc".getBytes(), new byte[0], "de".getBytes(), "fghij".getBytes());
+    byte[] expected = "abcdefghij".getBytes();
+
+    @Test
+    public void testReadConcatenatesRecords() {
+        RecordListInputStream in = new RecordListInputStream(records);
+        assertEquals(expected.length, in.getContentLength());
+        assertEquals(expected.length, in.available());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4];
+        int read;
+        while ((read = in.read(chunk, 0, chunk.length)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        assertArrayEquals(expected, out.toByteArray());
+        assertEquals(0, in.available());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testResetToMark() {
+        RecordListInputStream in = new RecordListInputStream(records);
+        assertEquals(2, in.skip(2));
+        in.mark(0);
+        byte[] first = new byte[6];
+        assertEquals(6, in.read(first, 0, first.length));
+        assertArrayEquals("cdefgh".getBytes(), first);
+
+        in.reset();
+        assertEquals('c', in.read());
+        assertEquals('d', in.read());
+        assertEquals(expected.length - 4, in.available());
+    }
+
+    @Test
+    public void testRangesCoverRecords() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long partSize = 3;
+        for (long offset = 0; offset < expected.length; offset += partSize) {
+            long size = Math.min(partSize, expected.length - offset);
+            RecordListInputStream part = new RecordListInputStream(records, offset, size);
+            assertEquals(size, part.getContentLength());
+            int b;
+            while ((b = part.read()) != -1) {
+                out.write(b);
+            }
+            // a retried part starts over from the beginning of its range
+            part.reset();
+            assertEquals(expected[(int) offset], part.read());
+        }
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void testSkipsNullRecords() {
+        RecordListInputStream in = new RecordListInputStream(Arrays.asList(null, "abc".getBytes(), null,
+                "de".getBytes(), null));
+        assertEquals(5, in.getContentLength());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        assertArrayEquals("abcde".getBytes(), out.toByteArray());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.amazonaws.services.kinesis.connectors.s3;
+
+import static org.easymock.EasyMock.createControl;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import org.easymock.IMocksControl;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.connectors.KinesisConnectorConfiguration;
+import com.amazonaws.services.kinesis.connectors.UnmodifiableBuffer;
+import com.amazonaws.services.kinesis.connectors.impl.BasicMemoryBuffer;
+
+public class S3EmitterTest {
+
+    IMocksControl control;
+    AWSCredentialsProvider credentials;
+    List<byte[]> records;
+
+    @Before
+    public void setup() {
+        control = createControl();
+        credentials = control.createMock(AWSCredentialsProvider.class);
+        records = new ArrayList<byte[]>();
+        for (int i = 0; i < 100; i++) {
+            records.add(("record" + i + "\n").getBytes());
+        }
+    }
+
+    @Test
+    public void testNoCompression() throws Exception {
+        S3Emitter emitter = new S3Emitter(new KinesisConnectorConfiguration(new Properties(), credentials));
+        assertSame(records, emitter.compress(records));
+        assertEquals("1-2", emitter.getS3FileName("1", "2"));
+    }
+
+    @Test
+    public void testGzipCompressionInBlocks() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_S3_COMPRESSION, "gzip");
+        // several blocks that do not line up with record boundaries
+        props.setProperty(KinesisConnectorConfiguration.PROP_S3_COMPRESSION_BLOCK_SIZE, String.valueOf(100));
+        S3Emitter emitter = new S3Emitter(new KinesisConnectorConfiguration(props, credentials));
+        assertEquals("1-2.gz", emitter.getS3FileName("1", "2"));
+
+        List<byte[]> compressed = emitter.compress(records);
+        assertEquals((RecordListInputStream.getTotalLength(records) + 99) / 100, compressed.size());
+
+        // the concatenated blocks decompress to the concatenated records
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new RecordListInputStream(compressed))) {
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                decompressed.write(buffer, 0, read);
+            }
+        }
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (byte[] record : records) {
+            expected.write(record);
+        }
+        assertArrayEquals(expected.toByteArray(), decompressed.toByteArray());
+    }
+
+    @Test
+    public void testParquetFilesAreNotCompressedAgain() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_S3_COMPRESSION, "gzip");
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_FORMAT, "PARQUET");
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_COLUMN_TYPES, "VARCHAR");
+        S3Emitter emitter = new S3Emitter(new KinesisConnectorConfiguration(props, credentials));
+        assertEquals("1-2.parquet", emitter.getS3FileName("1", "2"));
+        byte[] file = emitter.encode(records, new ArrayList<byte[]>()).get(0);
+        assertArrayEquals("PAR1".getBytes(), Arrays.copyOfRange(file, 0, 4));
+    }
+
+    @Test
+    public void testRecordsThatCannotBeEncodedAreReturnedAsUnprocessed() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_FORMAT, "PARQUET");
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_COLUMN_TYPES, "VARCHAR,BIGINT");
+        // upload through the overridable multipart upload
+        props.setProperty(KinesisConnectorConfiguration.PROP_S3_MULTIPART_UPLOAD_THRESHOLD, String.valueOf(0));
+        final List<String> uploaded = new ArrayList<String>();
+        S3Emitter emitter = new S3Emitter(new KinesisConnectorConfiguration(props, credentials)) {
+            @Override
+            protected void uploadMultipart(String s3FileName, List<byte[]> records, long contentLength) {
+                uploaded.add(s3FileName);
+            }
+        };
+        BasicMemoryBuffer<byte[]> buffer =
+                new BasicMemoryBuffer<byte[]>(new KinesisConnectorConfiguration(new Properties(), credentials));
+        List<byte[]> batch = Arrays.asList("a|1\n".getBytes(), "b|two\n".getBytes(), "c\n".getBytes());
+        for (int i = 0; i < batch.size(); i++) {
+            buffer.consumeRecord(batch.get(i), 4, Integer.toString(i));
+        }
+        try {
+            List<byte[]> unprocessed = emitter.emit(new UnmodifiableBuffer<byte[]>(buffer, buffer.getRecords()));
+            assertEquals(Arrays.asList(batch.get(1), batch.get(2)), unprocessed);
+            assertEquals(Arrays.asList("0-2.parquet"), uploaded);
+
+            // the retry of the rejected records keeps the file of the valid record
+            unprocessed = emitter.emit(new UnmodifiableBuffer<byte[]>(buffer, unprocessed));
+            assertEquals(Arrays.asList(batch.get(1), batch.get(2)), unprocessed);
+            assertEquals(Arrays.asList("0-2.parquet"), uploaded);
+        } finally {
+            emitter.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOrcIsRejected() {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_FORMAT, "ORC");
+        new KinesisConnectorConfiguration(props, credentials);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParquetWithoutColumnTypesIsRejected() {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_FORMAT, "PARQUET");
+        new KinesisConnectorConfiguration(props, credentials);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParquetWithUnsupportedColumnTypeIsRejected() {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_FORMAT, "PARQUET");
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_COLUMN_TYPES, "VARCHAR,TIMESTAMP");
+        new KinesisConnectorConfiguration(props, credentials);
+    }
+
+    @Test
+    public void testOtherCopyFormatsArePassedThrough() {
+        Properties props = new Properties();
+        props.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_COPY_FORMAT, "JSON 'auto'");
+        assertEquals("JSON 'auto'", new KinesisConnectorConfiguration(props, credentials).REDSHIFT_COPY_FORMAT);
+        assertNull(new KinesisConnectorConfiguration(new Properties(), credentials).REDSHIFT_COPY_FORMAT);
+    }
+}
@@ -4,9 +4,14 @@
  */
 package com.amazonaws.services.kinesis.connectors.s3;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import static org.easymock.EasyMock.createControl;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import org.easymock.IMocksControl;
 import org.junit.Before;
@@ -34,4 +39,70 @@ public class S3ManifestEmitterTest {
         new S3ManifestEmitter(config);
     }
 
+    @Test
+    public void testSplitForSlices() {
+        Properties properties = new Properties();
+        properties.setProperty(KinesisConnectorConfiguration.PROP_S3_MANIFEST_SLICES, "4");
+        S3ManifestEmitter emitter =
+                new S3ManifestEmitter(new KinesisConnectorConfiguration(properties, credentials));
+
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = 0; i < 8; i++) {
+            records.add(new byte[1024 * 1024]);
+        }
+        List<List<byte[]>> parts = emitter.splitForSlices(records);
+        assertEquals(4, parts.size());
+        for (List<byte[]> part : parts) {
+            assertEquals(2, part.size());
+        }
+
+        // too small to give each slice a file of a megabyte
+        List<byte[]> small = records.subList(0, 3);
+        assertEquals(1, emitter.splitForSlices(small).size());
+        assertSame(small, emitter.splitForSlices(small).get(0));
+        assertEquals("1-2-part0003", emitter.getS3PartFileName("1", "2", 3));
+    }
+
+    @Test
+    public void testClusterSliceLookupIsRetriedAfterFailure() {
+        Properties properties = new Properties();
+        properties.setProperty(KinesisConnectorConfiguration.PROP_S3_MANIFEST_SLICES, "-1");
+        properties.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_URL, "jdbc:redshift://slice-lookup-test");
+        properties.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_USERNAME, "user");
+        properties.setProperty(KinesisConnectorConfiguration.PROP_REDSHIFT_PASSWORD, "password");
+        final List<Integer> lookups = new ArrayList<Integer>();
+        final long[] currentTime = { 0 };
+        S3ManifestEmitter emitter =
+                new S3ManifestEmitter(new KinesisConnectorConfiguration(properties, credentials)) {
+                    @Override
+                    protected int readClusterSlices() throws SQLException {
+                        lookups.add(lookups.size());
+                        if (lookups.size() == 1) {
+                            throw new SQLException("cluster unavailable");
+                        }
+                        return 4;
+                    }
+
+                    @Override
+                    protected long getCurrentTimeMilliseconds() {
+                        return currentTime[0];
+                    }
+                };
+        // the constructor does not query the cluster
+        assertEquals(0, lookups.size());
+
+        // a failed lookup disables splitting until it is retried a minute later
+        assertEquals(1, emitter.getNumSlices());
+        assertEquals(1, emitter.getNumSlices());
+        assertEquals(1, lookups.size());
+        currentTime[0] += 60 * 1000L;
+        assertEquals(4, emitter.getNumSlices());
+        assertEquals(2, lookups.size());
+
+        // the slice count is kept once it has been read
+        currentTime[0] += 60 * 60 * 1000L;
+        assertEquals(4, emitter.getNumSlices());
+        assertEquals(2, lookups.size());
+    }
+
 }